@@ -7,8 +7,8 @@ import java.util.concurrent.TimeUnit;
  * Main configuration file. Adapt if necessary.
  */
 public enum Config {
-    DEFAULT("http", "188.226.178.35", 4000, "tabequals4", "ip-addresses", "ip-addresses/new", "ip-addresses/remove", "keepalive", 5, TimeUnit.MINUTES, "./P2PFS", false, "keys", 4096),
-    CLI("http", "188.226.178.35", 4000, "tabequals4", "ip-addresses", "ip-addresses/new", "ip-addresses/remove", "keepalive", 5, TimeUnit.MINUTES, "./P2PFS", true, "keys", 4096);
+    DEFAULT("http", "188.226.178.35", 4000, "tabequals4", "ip-addresses", "ip-addresses/new", "ip-addresses/remove", "keepalive", 5, TimeUnit.MINUTES, "./P2PFS", false, "keys", 4096, 10000, 2000, false, 1024, 16384, 16, 16, 67108864L, "./.P2PFS-cache", 1000, 2000, 8, true, "namespace-journal", false, true, 2000, false, false),
+    CLI("http", "188.226.178.35", 4000, "tabequals4", "ip-addresses", "ip-addresses/new", "ip-addresses/remove", "keepalive", 5, TimeUnit.MINUTES, "./P2PFS", true, "keys", 4096, 10000, 2000, false, 1024, 16384, 16, 16, 67108864L, "./.P2PFS-cache", 1000, 2000, 8, true, "namespace-journal", false, true, 2000, false, false);
 
     private String   _protocol;
 
@@ -71,8 +71,133 @@ public enum Config {
      */
     private int      _chunkSizeBytes;
 
+    /**
+     * Maximum number of resolved paths kept in the path cache
+     */
+    private int      _pathCacheSize;
+
+    /**
+     * Time in milliseconds during which cached file contents
+     * are served without checking their version in the DHT
+     */
+    private int      _readCacheValidationMillis;
+
+    /**
+     * Whether chunk boundaries are derived from the content
+     * instead of splitting into chunks of fixed size.
+     * The chunk size then is the average size of chunks.
+     */
+    private boolean  _contentDefinedChunking;
+
+    /**
+     * Minimal size of content defined chunks in bytes
+     */
+    private int      _minChunkSizeBytes;
+
+    /**
+     * Maximal size of content defined chunks in bytes
+     */
+    private int      _maxChunkSizeBytes;
+
+    /**
+     * Maximum number of chunks which are fetched
+     * concurrently while reading chunked data
+     */
+    private int      _chunkFetchWindow;
+
+    /**
+     * Maximum number of chunks which are hashed and held in memory
+     * before they get uploaded while storing chunked data
+     */
+    private int      _chunkUploadWindow;
+
+    /**
+     * Size in bytes above which the contents of a file are moved
+     * from the heap to a memory mapped spill file. A negative value disables spilling.
+     */
+    private long     _contentSpillThresholdBytes;
+
+    /**
+     * Local directory in which spill files are created
+     */
+    private String   _contentSpillDirectory;
+
+    /**
+     * Time in milliseconds without any change after
+     * which a file gets written back to the DHT
+     */
+    private int      _writeBackDelayMillis;
+
+    /**
+     * Period in milliseconds in between synchronizations
+     * of the local file system with the DHT
+     */
+    private int      _syncIntervalMillis;
+
+    /**
+     * Number of threads writing completed
+     * files concurrently to the DHT
+     */
+    private int      _writeBackWorkers;
+
+    /**
+     * Whether paths written concurrently get stored
+     * in batches, instead of one by one
+     */
+    private boolean  _batchPathCommits;
+
+    /**
+     * The name from which the keys of the journal recording
+     * all changes of the stored paths get derived
+     */
+    private String   _namespaceJournalKey;
+
+    /**
+     * Whether paths get stored on one location key
+     * per directory, instead of on the master location key.
+     * All peers of the network must use the same setting, and paths
+     * stored with the other setting are not found. Therefore, enabling it
+     * requires a new network.
+     */
+    private boolean  _shardedPathIndex;
+
+    /**
+     * Whether the contents of directories are loaded from the DHT
+     * on their first access, instead of all paths on startup.
+     * Only takes effect with the sharded path index, as otherwise
+     * loading a single directory fetches all paths. Thus, directories
+     * are loaded on startup by default.
+     */
+    private boolean  _lazyDirectoryLoading;
+
+    /**
+     * Time in milliseconds during which a path not found
+     * is answered from the path cache
+     */
+    private int      _absentPathCacheMillis;
+
+    /**
+     * Whether creating a file or directory waits until
+     * its path is stored in the DHT, instead of storing it in the background
+     */
+    private boolean  _awaitPathRegistration;
+
+    /**
+     * Whether the contents of files are stored as chunks listed by a manifest,
+     * instead of as a single value agreed on by the peers.
+     * All peers of the network must use the same setting, and contents stored
+     * with the other setting cannot be read. Therefore, enabling it requires
+     * a new network or writing all files again.
+     */
+    private boolean  _chunkedDataPersistence;
+
     Config(String protocol, String host, int port, String authToken, String getPath, String postPath, String removePath, String keepAlivePath, int keepAliveMsgPeriod,
-            TimeUnit keepAliveMsgPeriod_T, String mountPoint, boolean startCommandLineInterface, String masterLocationPathsKey, int chunkSizeBytes) {
+            TimeUnit keepAliveMsgPeriod_T, String mountPoint, boolean startCommandLineInterface, String masterLocationPathsKey, int chunkSizeBytes,
+            int pathCacheSize, int readCacheValidationMillis, boolean contentDefinedChunking, int minChunkSizeBytes, int maxChunkSizeBytes,
+            int chunkFetchWindow, int chunkUploadWindow, long contentSpillThresholdBytes, String contentSpillDirectory,
+            int writeBackDelayMillis, int syncIntervalMillis, int writeBackWorkers, boolean batchPathCommits, String namespaceJournalKey,
+            boolean shardedPathIndex, boolean lazyDirectoryLoading, int absentPathCacheMillis,
+            boolean awaitPathRegistration, boolean chunkedDataPersistence) {
         _protocol = protocol;
         _port = port;
         _keepAliveMsgPeriod = keepAliveMsgPeriod;
@@ -87,6 +212,25 @@ public enum Config {
         _startCommandLineInterface = startCommandLineInterface;
         _masterLocationPathsKey = masterLocationPathsKey;
         _chunkSizeBytes = chunkSizeBytes;
+        _pathCacheSize = pathCacheSize;
+        _readCacheValidationMillis = readCacheValidationMillis;
+        _contentDefinedChunking = contentDefinedChunking;
+        _minChunkSizeBytes = minChunkSizeBytes;
+        _maxChunkSizeBytes = maxChunkSizeBytes;
+        _chunkFetchWindow = chunkFetchWindow;
+        _chunkUploadWindow = chunkUploadWindow;
+        _contentSpillThresholdBytes = contentSpillThresholdBytes;
+        _contentSpillDirectory = contentSpillDirectory;
+        _writeBackDelayMillis = writeBackDelayMillis;
+        _syncIntervalMillis = syncIntervalMillis;
+        _writeBackWorkers = writeBackWorkers;
+        _batchPathCommits = batchPathCommits;
+        _namespaceJournalKey = namespaceJournalKey;
+        _shardedPathIndex = shardedPathIndex;
+        _lazyDirectoryLoading = lazyDirectoryLoading;
+        _absentPathCacheMillis = absentPathCacheMillis;
+        _awaitPathRegistration = awaitPathRegistration;
+        _chunkedDataPersistence = chunkedDataPersistence;
     }
 
     public String getProtocol() {
@@ -148,4 +292,80 @@ public enum Config {
     public int getChunkSizeBytes() {
         return _chunkSizeBytes;
     }
+
+    public int getPathCacheSize() {
+        return _pathCacheSize;
+    }
+
+    public int getReadCacheValidationMillis() {
+        return _readCacheValidationMillis;
+    }
+
+    public boolean getContentDefinedChunking() {
+        return _contentDefinedChunking;
+    }
+
+    public int getMinChunkSizeBytes() {
+        return _minChunkSizeBytes;
+    }
+
+    public int getMaxChunkSizeBytes() {
+        return _maxChunkSizeBytes;
+    }
+
+    public int getChunkFetchWindow() {
+        return _chunkFetchWindow;
+    }
+
+    public int getChunkUploadWindow() {
+        return _chunkUploadWindow;
+    }
+
+    public long getContentSpillThresholdBytes() {
+        return _contentSpillThresholdBytes;
+    }
+
+    public String getContentSpillDirectory() {
+        return _contentSpillDirectory;
+    }
+
+    public int getWriteBackDelayMillis() {
+        return _writeBackDelayMillis;
+    }
+
+    public int getSyncIntervalMillis() {
+        return _syncIntervalMillis;
+    }
+
+    public int getWriteBackWorkers() {
+        return _writeBackWorkers;
+    }
+
+    public boolean isBatchPathCommits() {
+        return _batchPathCommits;
+    }
+
+    public String getNamespaceJournalKey() {
+        return _namespaceJournalKey;
+    }
+
+    public boolean isShardedPathIndex() {
+        return _shardedPathIndex;
+    }
+
+    public boolean isLazyDirectoryLoading() {
+        return _lazyDirectoryLoading;
+    }
+
+    public int getAbsentPathCacheMillis() {
+        return _absentPathCacheMillis;
+    }
+
+    public boolean isAwaitPathRegistration() {
+        return _awaitPathRegistration;
+    }
+
+    public boolean isChunkedDataPersistence() {
+        return _chunkedDataPersistence;
+    }
 }
@@ -5,14 +5,18 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import net.f4fs.config.Config;
 import net.f4fs.config.FSStatConfig;
 import net.f4fs.filesystem.event.listeners.SyncFileEventListener;
 import net.f4fs.filesystem.event.listeners.WriteFileEventListener;
+import net.f4fs.filesystem.fscontent.FSFileContent;
 import net.f4fs.filesystem.fsfilemonitor.FSFileMonitor;
+import net.f4fs.filesystem.fspathcache.FSPathCache;
 import net.f4fs.filesystem.partials.AMemoryPath;
 import net.f4fs.filesystem.partials.MemoryDirectory;
 import net.f4fs.filesystem.partials.MemoryFile;
@@ -31,6 +35,7 @@ import net.fusejna.StructTimeBuffer;
 import net.fusejna.types.TypeMode.ModeWrapper;
 import net.fusejna.util.FuseFilesystemAdapterFull;
 import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,6 +65,11 @@ public class P2PFS
 
     private FSFileMonitor         fsFileMonitor;
 
+    /**
+     * Cache of already resolved paths
+     */
+    private final FSPathCache     pathCache;
+
     private ExecutorService       executorService;
 
     private FSPeer                peer;
@@ -77,7 +87,9 @@ public class P2PFS
 
         this.peer = pPeer;
 
-        rootDirectory = new MemoryDirectory("/", this.peer);
+        // the root directory gets loaded on its first access if loading is lazy
+        rootDirectory = new MemoryDirectory("/", this.peer, !this.peer.isLazyDirectoryLoading());
+        pathCache = new FSPathCache(Config.DEFAULT.getPathCacheSize(), Config.DEFAULT.getAbsentPathCacheMillis());
 
 
         WriteFileEventListener writeFileEventListener = new WriteFileEventListener();
@@ -201,7 +213,9 @@ public class P2PFS
      * Create a file with the path indicated, then open a
      * handle for reading and/or writing with the supplied
      * mode flags. Can also return a file handle like open()
-     * as part of the call.
+     * as part of the call. <br>
+     * The file is created locally and stored in the DHT in the background,
+     * unless configured to wait until it is stored.
      * 
      * @param path Path to file to create
      * @param mode Create mask
@@ -209,40 +223,53 @@ public class P2PFS
      */
     @Override
     public int create(final String path, final ModeWrapper mode, final FileInfoWrapper info) {
+        int result = createLocally(path);
+        if (0 != result) {
+            return result;
+        }
+
+        AMemoryPath createdPath = getPath(path);
+        if (createdPath instanceof MemoryFile) {
+            if (FSFileUtils.isContainedInVersionFolder(createdPath)) {
+                // NOTE: we only add the file to the monitor
+                // if it is not a version. This due to the procedure
+                // how the versions get put into the vDHT: Version files get written
+                // directly into the vDHT, then the FSFileSyncer creates them locally.
+                // If we would not check this here, an infinite number of version folders
+                // would be created in each other, containing the version of the version (of the version, ...)
+                return 0;
+            }
+
+            this.fsFileMonitor.addMonitoredFile(path, ((MemoryFile) createdPath).getContent());
+        } else {
+            this.fsFileMonitor.addMonitoredFile(path, ByteBuffer.allocate(0));
+        }
+
+        return awaitRegistration(path);
+    }
 
+    /**
+     * Creates the file or directory on the given path locally only,
+     * e.g. because it exists in the DHT already.
+     * Whether a file or a directory is created depends on the name.
+     * 
+     * @param path Path to the file or directory to create
+     * @return 0 on success, a negative error code otherwise
+     */
+    public int createLocally(final String path) {
         if (getPath(path) != null) {
             this.logger.warn("File on path " + path + " could not be created. A file with the same name already exists (Error code " + -ErrorCodes.EEXIST() + ").");
             return -ErrorCodes.EEXIST();
         }
         final AMemoryPath parent = getParentPath(path);
         if (parent instanceof MemoryDirectory) {
+            this.pathCache.invalidate(path);
             String fileName = FSFileUtils.getLastComponent(path);
             // check if it is a file based on the filename
             if (FSFileUtils.isFile(fileName)) {
-                ((MemoryDirectory) parent).mkfile(FSFileUtils.getLastComponent(path));
-
-                try {
-                    // check if file does not exist yet in the DHT
-                    if (null == this.peer.getPath(Number160.createHash(path))) {
-                        // create file if it does not exist yet
-                        MemoryFile createdFile = (MemoryFile) ((MemoryDirectory) parent).find(FSFileUtils.getLastComponent(path));
-
-                        if (!FSFileUtils.isContainedInVersionFolder(createdFile)) {
-                            // NOTE: we only add the file to the monitor
-                            // if it is not a version. This due to the procedure
-                            // how the versions get put into the vDHT: Version files get written
-                            // directly into the vDHT, then the FSFileSyncer creates them locally.
-                            // If we would not check this here, an infinite number of version folders
-                            // would be created in each other, containing the version of the version (of the version, ...)
-                            this.fsFileMonitor.addMonitoredFile(path, createdFile.getContent());
-                        }
-                    }
-                } catch (ClassNotFoundException | InterruptedException | IOException e) {
-                    this.logger.error("Failed to add a monitored file '" + path + "'. Check if it exists already in the DHT failed. Message: " + e.getMessage());
-                    e.printStackTrace();
-                }
+                ((MemoryDirectory) parent).mkfile(fileName);
             } else {
-                ((MemoryDirectory) parent).mkdir(FSFileUtils.getLastComponent(path));
+                ((MemoryDirectory) parent).mkdir(fileName);
             }
 
             return 0;
@@ -252,6 +279,74 @@ public class P2PFS
         return -ErrorCodes.ENOENT();
     }
 
+    /**
+     * Gets called on each close of a file descriptor.
+     * Writes pending changes of the file without waiting
+     * for the write back delay.
+     * 
+     * @param path The path of the flushed file
+     * @param info The FileInfoWrapper of the file descriptor
+     */
+    @Override
+    public int flush(final String path, final FileInfoWrapper info) {
+        this.fsFileMonitor.flush(path);
+
+        return 0;
+    }
+
+    /**
+     * Synchronizes the contents of the file on path.
+     * Writes pending changes of the file without waiting
+     * for the write back delay and blocks until they are stored in the DHT.
+     * 
+     * @param path The path of the file to synchronize
+     * @param datasync If non-zero, only the contents should be synchronized
+     * @param info The FileInfoWrapper of the file descriptor
+     */
+    @Override
+    public int fsync(final String path, final int datasync, final FileInfoWrapper info) {
+        return flushAndWait(path);
+    }
+
+    /**
+     * Writes pending changes of the file on path without waiting for
+     * the write back delay and blocks until they are stored in the DHT
+     * 
+     * @param path The path of the file to write
+     * @return 0 on success, <code>-EIO</code> if the file could not be stored
+     */
+    private int flushAndWait(final String path) {
+        try {
+            this.fsFileMonitor.flush(path).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logger.warn("Interrupted while synchronizing file on path " + path + " (Error code " + -ErrorCodes.EIO() + ").");
+            return -ErrorCodes.EIO();
+        } catch (ExecutionException e) {
+            this.logger.warn("Failed to synchronize file on path " + path + ". Message: " + e.getCause().getMessage() + " (Error code " + -ErrorCodes.EIO() + ").");
+            return -ErrorCodes.EIO();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Waits until the newly created element on path is stored in the DHT,
+     * if configured to do so. Otherwise, it gets stored in the background. <br>
+     * An element which could not be stored stays created locally
+     * and its storage is retried later.
+     * 
+     * @param path The path of the created element
+     * @return 0 on success, <code>-EIO</code> if the element could not be stored
+     */
+    private int awaitRegistration(final String path) {
+        if (!Config.DEFAULT.isAwaitPathRegistration()) {
+            return 0;
+        }
+
+        return flushAndWait(path);
+    }
+
     /**
      * Sets different statistics about the entity located at path
      * like remaining capacity in the given StatWrapper.
@@ -276,11 +371,58 @@ public class P2PFS
      * @return The parent path
      */
     private AMemoryPath getParentPath(final String path) {
-        return rootDirectory.find(path.substring(0, path.lastIndexOf("/")));
+        String parentPath = path.substring(0, path.lastIndexOf("/"));
+        if (parentPath.isEmpty()) {
+            parentPath = "/";
+        }
+
+        return getPath(parentPath);
     }
 
+    /**
+     * Returns the memory path located at the given path.
+     * Resolved absolute paths and paths not found recently are served from the path cache.
+     * Directories on the way which are not loaded yet get loaded.
+     * 
+     * @param path The absolute path
+     * @return The memory path or null, if it does not exist
+     */
     public AMemoryPath getPath(final String path) {
-        return rootDirectory.find(path);
+        if (!path.startsWith("/")) {
+            // relative paths would alias absolute cache entries
+            return rootDirectory.find(path);
+        }
+
+        AMemoryPath memoryPath = this.pathCache.get(path);
+        if (null != memoryPath) {
+            return memoryPath;
+        }
+
+        if (this.pathCache.isAbsent(path)) {
+            return null;
+        }
+
+        // a concurrent invalidation makes the result stale, so it is not cached then
+        long generation = this.pathCache.getGeneration();
+        memoryPath = rootDirectory.find(path);
+        if (null != memoryPath) {
+            this.pathCache.put(path, memoryPath, generation);
+        } else {
+            this.pathCache.putAbsent(path, generation);
+        }
+
+        return memoryPath;
+    }
+
+    /**
+     * Returns the memory path located at the given path,
+     * if it exists locally. Does not load any directory.
+     * 
+     * @param path The absolute path
+     * @return The memory path or null, if it does not exist locally
+     */
+    public AMemoryPath getMaterializedPath(final String path) {
+        return rootDirectory.findMaterialized(path);
     }
 
     @Override
@@ -290,10 +432,11 @@ public class P2PFS
         }
         final AMemoryPath parent = getParentPath(path);
         if (parent instanceof MemoryDirectory) {
+            this.pathCache.invalidate(path);
             ((MemoryDirectory) parent).mkdir(FSFileUtils.getLastComponent(path));
-            // add dir to fsFileMonitor
+            // add dir to fsFileMonitor, which stores it in the DHT
             this.fsFileMonitor.addMonitoredFile(path, ByteBuffer.allocate(0));
-            return 0;
+            return awaitRegistration(path);
         }
 
         return -ErrorCodes.ENOENT();
@@ -315,7 +458,7 @@ public class P2PFS
 
             // read only file contents when empty on disk
             // to force loading of the content from the DHT
-            if (file.getContent().capacity() == 0) {
+            if (file.getSize() == 0) {
                 read(path, ByteBuffer.allocate((int) FSStatConfig.BIGGER.getBsize()), FSStatConfig.BIGGER.getBsize(), 0, null);
             }
         } else if (filePath instanceof MemorySymLink) {
@@ -326,7 +469,7 @@ public class P2PFS
                 MemoryFile targetFile = (MemoryFile) target;
                 // read only file contents when empty on disk
                 // to force loading of the content from the DHT
-                if (targetFile.getContent().capacity() == 0) {
+                if (targetFile.getSize() == 0) {
                     read(targetFile.getPath(), ByteBuffer.allocate((int) FSStatConfig.BIGGER.getBsize()), FSStatConfig.BIGGER.getBsize(), 0, null);
                 }
             }
@@ -348,15 +491,10 @@ public class P2PFS
             return -ErrorCodes.EISDIR();
         }
 
-        ByteBuffer monitoredFile = this.fsFileMonitor.getFileContent(path);
+        FSFileContent monitoredFile = this.fsFileMonitor.getFileContent(path);
         if (null != monitoredFile) {
-            final int bytesToRead = (int) Math.min(monitoredFile.capacity() - offset, size);
-            final byte[] bytesRead = new byte[bytesToRead];
-
-            monitoredFile.position((int) offset);
-            monitoredFile.get(bytesRead, 0, bytesToRead);
-            buffer.put(bytesRead);
-            monitoredFile.position(0); // Rewind
+            // copies from views on the pages, so the monitored contents are not changed
+            final int bytesToRead = monitoredFile.read(buffer, offset, (int) Math.min(size, Integer.MAX_VALUE));
 
             this.logger.info("Read contents from file on path '" + path + "' from file monitor");
             return bytesToRead;
@@ -407,6 +545,21 @@ public class P2PFS
         return 0;
     }
 
+    /**
+     * Gets called once the last file descriptor of the file on path
+     * got closed. Writes pending changes of the file without waiting
+     * for the write back delay.
+     * 
+     * @param path The path of the released file
+     * @param info The FileInfoWrapper of the file descriptor
+     */
+    @Override
+    public int release(final String path, final FileInfoWrapper info) {
+        this.fsFileMonitor.flush(path);
+
+        return 0;
+    }
+
     /**
      * Renames the element on path to newName
      * 
@@ -427,20 +580,35 @@ public class P2PFS
             return -ErrorCodes.ENOTDIR();
         }
 
+        if (p instanceof MemoryDirectory) {
+            // children are loaded from the path of a directory, which changes now
+            ((MemoryDirectory) p).load();
+        }
+
         MemoryDirectory oldParentDir = p.getParent();
         oldParentDir.deleteChild(p);
         p.setParent(null);
+
+        // the moved element and all its children are reachable by other paths now
+        this.pathCache.invalidateSubtree(path);
+        this.pathCache.invalidateSubtree(newName);
         
         // remove old file if still contained in fileMonitor
-        if (this.fsFileMonitor.getMonitoredFilePaths().contains(path)) {
-            this.fsFileMonitor.removeMonitoredFile(path);
-        }
+        // and remember to write it again since it has unsaved changes
+        boolean rewriteContent = this.fsFileMonitor.removeMonitoredFile(path);
         
         try {
-            this.peer.removePath(Number160.createHash(path));
-            this.peer.removeData(Number160.createHash(path));
-        } catch (InterruptedException e) {
+            this.peer.removePath(Number160.createHash(path), path);
+
+            if (p instanceof MemoryFile) {
+                // the stored content stays the same, so it is moved instead of written again
+                this.peer.moveData(Number160.createHash(path), Number160.createHash(newName));
+            } else {
+                this.peer.removeData(Number160.createHash(path));
+            }
+        } catch (InterruptedException | ClassNotFoundException | IOException e) {
             e.printStackTrace();
+            rewriteContent = true;
         }
         
         // Add old memoryPath to new directory (parent)
@@ -458,7 +626,17 @@ public class P2PFS
             this.fsFileMonitor.addMonitoredFile(symLink.getPath(), symLink.getContents());
         } else if (p instanceof MemoryFile) {
             MemoryFile file = (MemoryFile) p;
-            this.fsFileMonitor.addMonitoredFile(file.getPath(), file.getContent());
+
+            if (rewriteContent) {
+                this.fsFileMonitor.addMonitoredFile(file.getPath(), file.getContent());
+            } else {
+                try {
+                    this.peer.putPath(Number160.createHash(file.getPath()), new Data(file.getPath()));
+                } catch (InterruptedException | ClassNotFoundException | IOException e) {
+                    this.logger.error("Could not store moved path '" + file.getPath() + "'. Message: " + e.getMessage());
+                    this.fsFileMonitor.addMonitoredFile(file.getPath(), file.getContent());
+                }
+            }
         }
         
         logger.info("Moved file from '" + path + "' to '" + newName + "'");
@@ -476,17 +654,18 @@ public class P2PFS
             return -ErrorCodes.ENOTDIR();
         }
 
+        // children stored in the DHT only are not contained before loading
+        ((MemoryDirectory) p).load();
         if (!((MemoryDirectory) p).getContents().isEmpty()) {
             return -ErrorCodes.ENOTEMPTY();
         }
 
         // remove file from fsMonitor to prevent store it after deletion
-        if (this.fsFileMonitor.getMonitoredFilePaths().contains(p.getPath())) {
-            this.fsFileMonitor.removeMonitoredFile(p.getPath());
-        }
+        this.fsFileMonitor.removeMonitoredFile(p.getPath());
         
         // remove file from the DHT
-        p.delete();        
+        p.delete();
+        this.pathCache.invalidate(path);
         
         return 0;
     }
@@ -520,6 +699,7 @@ public class P2PFS
         }
 
         MemoryDirectory parentDir = (MemoryDirectory) newParent;
+        this.pathCache.invalidate(target);
         parentDir.symlink(existingPath, FSFileUtils.getLastComponent(target));
 
         // add symlink to monitored files
@@ -564,6 +744,7 @@ public class P2PFS
                 // remove version folder on local disk
                 String versionFolder = archiver.getVersionFolder(Number160.createHash(path));
                 p.getParent().deleteChild(p.getParent().find(versionFolder));
+                this.pathCache.invalidateSubtree(versionFolder);
             } catch (ClassNotFoundException | IOException | InterruptedException e) {
                 e.printStackTrace();
             }
@@ -571,11 +752,11 @@ public class P2PFS
 
 
         // remove file from fsMonitor to prevent store it after deletion
-        if (this.fsFileMonitor.getMonitoredFilePaths().contains(p.getPath())) {
-            this.fsFileMonitor.removeMonitoredFile(p.getPath());
-        }
+        this.fsFileMonitor.removeMonitoredFile(p.getPath());
        
         p.delete();
+        // unlink is also used to remove directories deleted on other peers
+        this.pathCache.invalidateSubtree(path);
 
         return 0;
     }
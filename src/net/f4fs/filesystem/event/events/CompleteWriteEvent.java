@@ -1,9 +1,11 @@
 package net.f4fs.filesystem.event.events;
 
-import java.nio.ByteBuffer;
+import java.util.List;
 
 import net.f4fs.filesystem.P2PFS;
+import net.f4fs.filesystem.fscontent.FSFileContent;
 import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.data.ByteRange;
 
 /**
  * An event which gets dispatched when the file is completely
@@ -11,7 +13,9 @@ import net.f4fs.fspeer.FSPeer;
  * Holds the context of the the file system, the peer, the file name of
  * the file which is complete and should be written by an event listener
  * registered to this event, and finally the content which represents 
- * the complete file. 
+ * the complete file together with the ranges of it which changed
+ * since it was last written. A listener which fails to write the file
+ * sets the error, so that the file can be written again.
  * 
  * @author Raphael
  *
@@ -25,15 +29,20 @@ public class CompleteWriteEvent
     
     protected String path;
     
-    protected ByteBuffer content;
+    protected FSFileContent content;
+
+    protected List<ByteRange> changedRanges;
+
+    protected Exception error;
     
     public static String eventName = "filesystem.complete_write_event";
 
-    public CompleteWriteEvent(P2PFS pFilesystem, FSPeer pFsPeer, String pPath, ByteBuffer pContent) {
+    public CompleteWriteEvent(P2PFS pFilesystem, FSPeer pFsPeer, String pPath, FSFileContent pContent, List<ByteRange> pChangedRanges) {
         this.filesystem = pFilesystem;
         this.fsPeer = pFsPeer;
         this.path = pPath;
         this.content = pContent;
+        this.changedRanges = pChangedRanges;
     }
 
     
@@ -61,13 +70,32 @@ public class CompleteWriteEvent
         this.path = path;
     }
 
-    public ByteBuffer getContent() {
+    public FSFileContent getContent() {
         return content;
     }
 
-    public void setContent(ByteBuffer content) {
+    public void setContent(FSFileContent content) {
         this.content = content;
     }
+
+    public List<ByteRange> getChangedRanges() {
+        return changedRanges;
+    }
+
+    public void setChangedRanges(List<ByteRange> changedRanges) {
+        this.changedRanges = changedRanges;
+    }
+
+    /**
+     * @return The error which occurred while writing the file, null if it was written
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public void setError(Exception error) {
+        this.error = error;
+    }
     
 
 }
@@ -1,10 +1,21 @@
 package net.f4fs.filesystem.event.listeners;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
+import net.f4fs.filesystem.P2PFS;
 import net.f4fs.filesystem.event.events.AEvent;
 import net.f4fs.filesystem.event.events.AfterWriteEvent;
+import net.f4fs.filesystem.partials.AMemoryPath;
+import net.f4fs.filesystem.partials.MemoryDirectory;
 import net.f4fs.filesystem.util.FSFileUtils;
+import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.path.DirectoryDigest;
+import net.f4fs.persistence.path.JournalEntry;
 import net.tomp2p.peers.Number160;
 
 import org.slf4j.Logger;
@@ -13,7 +24,17 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Synchronizes files on disk with the ones on the DHT.
- * Gets invoked after all completely written files are written to the DHT.
+ * Gets invoked after all completely written files are written to the DHT. <br>
+ * On the first invocation, all paths on the DHT are compared with the ones on disk,
+ * unless directories are loaded lazily on their first access.
+ * Afterwards, only the changes recorded in the namespace journal since then are applied,
+ * so that the costs depend on the number of changes instead of the number of files.
+ * Changes within directories which are not loaded yet are skipped, since loading lists them.
+ * If the changes not applied yet were removed from the journal in the meantime, all paths get compared again. <br>
+ * To detect changes missed in the journal, the digest over all local names is compared with
+ * the one stored by the peers. Only if they differ, the directories of which the digests differ
+ * are compared name by name, the differing names are checked against the paths on the DHT,
+ * and the resulting digests are stored for the other peers.
  * 
  * @author Reto
  *
@@ -21,7 +42,23 @@ import org.slf4j.LoggerFactory;
 public class SyncFileEventListener
         implements IEventListener {
 
-    private final Logger logger = LoggerFactory.getLogger(SyncFileEventListener.class);
+    /**
+     * Number of journal batches after which the remaining ones
+     * are applied on the next invocation
+     */
+    private static final int          MAX_JOURNAL_BATCHES = 1024;
+
+    private final Logger              logger              = LoggerFactory.getLogger(SyncFileEventListener.class);
+
+    /**
+     * Whether all paths were synchronized once, so that the journal can be applied
+     */
+    private boolean                   initialized         = false;
+
+    /**
+     * Sequence number of the next journal batch to apply
+     */
+    private long                      journalCursor       = 0;
 
     @Override
     public void handleEvent(AEvent pEvent) {
@@ -32,41 +69,31 @@ public class SyncFileEventListener
         AfterWriteEvent afterWriteEvent = (AfterWriteEvent) pEvent;
 
         try {
-            Set<String> localPaths = afterWriteEvent.getFilesystem().getAllPaths();
-            Set<String> keys = afterWriteEvent.getFsPeer().getAllPaths();
-            // add monitored files to prevent local removing -> removing in the DHT
-            keys.addAll(afterWriteEvent.getFilesystem().getMonitoredFilePaths());
-
-            // create local non-existing files
-            for (String key : keys) {
-                if (FSFileUtils.isRootDirectory(key)) {
-                    // no changes are allowed to root directory
-                    continue;
-                }
+            if (!this.initialized) {
+                synchronizeFully(afterWriteEvent.getFilesystem(), afterWriteEvent.getFsPeer());
 
-                if (afterWriteEvent.getFilesystem().getPath(key) == null) {
-                    // check whether the path is a link, that means key and target are different
-                    String foundPath = afterWriteEvent.getFsPeer().getPath(Number160.createHash(key));
-                    if (null != foundPath && !key.equals(foundPath)) {
-                        // target key is different from source key -> is a symlink
-                        this.logger.info("Call 'symlink' for target '" + foundPath + "' on path '" + key + "'");
-                        afterWriteEvent.getFilesystem().symlink(foundPath, key);
-                    } else {
-                        this.logger.info("Call 'create' for file/dir on path '" + key + "'");
-                        afterWriteEvent.getFilesystem().create(key, null, null);
-                    }
-                }
+                return;
             }
 
-            // remove deleted files / dirs / symlinks / ...
-            localPaths.removeAll(keys); // list of all localPaths which are removed in the DHT
-            for (String pathToDelete : localPaths) {
-                if (FSFileUtils.isRootDirectory(pathToDelete)) {
-                    // no changes are allowed to root directory
-                    continue;
+            List<List<JournalEntry>> batches = afterWriteEvent.getFsPeer().readJournal(this.journalCursor, MAX_JOURNAL_BATCHES);
+            if (batches.isEmpty() && this.journalCursor < afterWriteEvent.getFsPeer().getJournalTail()) {
+                this.logger.info("Journal was truncated after sequence number '" + this.journalCursor + "', comparing all paths");
+                synchronizeFully(afterWriteEvent.getFilesystem(), afterWriteEvent.getFsPeer());
+
+                return;
+            }
+
+            for (List<JournalEntry> batch : batches) {
+                for (JournalEntry entry : batch) {
+                    applyJournalEntry(afterWriteEvent.getFilesystem(), entry);
                 }
-                this.logger.info("Call removal of element on path '" + pathToDelete + "'. LocalPaths: " + localPaths + ", DHTPaths: " + keys);
-                afterWriteEvent.getFilesystem().unlink(pathToDelete);
+                this.journalCursor++;
+            }
+            afterWriteEvent.getFsPeer().acknowledgeJournal(this.journalCursor);
+
+            if (batches.size() < MAX_JOURNAL_BATCHES) {
+                // otherwise, the remaining entries are likely to resolve the differences
+                compareDigests(afterWriteEvent.getFilesystem(), afterWriteEvent.getFsPeer());
             }
 
         } catch (Exception pEx) {
@@ -76,6 +103,217 @@ public class SyncFileEventListener
 
     }
 
+    /**
+     * Compares all paths, unless directories are loaded lazily, and continues
+     * with the changes recorded in the journal from then on
+     * 
+     * @param pFilesystem The file system to synchronize
+     * @param pFsPeer The peer providing access to the DHT
+     * 
+     * @throws Exception If the paths could not be fetched from the DHT
+     */
+    private void synchronizeFully(P2PFS pFilesystem, FSPeer pFsPeer)
+            throws Exception {
+        // changes recorded during the full synchronization are applied again the next time
+        long journalHead = pFsPeer.getJournalHead();
+        if (!pFsPeer.isLazyDirectoryLoading()) {
+            synchronizeAllPaths(pFilesystem, pFsPeer);
+        }
+        this.journalCursor = journalHead;
+        this.initialized = true;
+        pFsPeer.acknowledgeJournal(this.journalCursor);
+    }
+
+    /**
+     * Creates local files which exist on the DHT and removes
+     * local files which do not exist anymore on the DHT
+     * 
+     * @param pFilesystem The file system to synchronize
+     * @param pFsPeer The peer providing access to the DHT
+     * 
+     * @throws Exception If the paths could not be fetched from the DHT
+     */
+    private void synchronizeAllPaths(P2PFS pFilesystem, FSPeer pFsPeer)
+            throws Exception {
+        Set<String> localPaths = pFilesystem.getAllPaths();
+        Set<String> keys = pFsPeer.getAllPaths();
+        // add monitored files to prevent local removing -> removing in the DHT
+        keys.addAll(pFilesystem.getMonitoredFilePaths());
+
+        // create local non-existing files
+        for (String key : keys) {
+            if (FSFileUtils.isRootDirectory(key)) {
+                // no changes are allowed to root directory
+                continue;
+            }
+
+            if (pFilesystem.getPath(key) == null) {
+                // check whether the path is a link, that means key and target are different
+                String foundPath = pFsPeer.getPath(Number160.createHash(key));
+                if (null != foundPath && !key.equals(foundPath)) {
+                    // target key is different from source key -> is a symlink
+                    this.logger.info("Call 'symlink' for target '" + foundPath + "' on path '" + key + "'");
+                    pFilesystem.symlink(foundPath, key);
+                } else {
+                    this.logger.info("Call 'createLocally' for file/dir on path '" + key + "'");
+                    pFilesystem.createLocally(key);
+                }
+            }
+        }
+
+        // remove deleted files / dirs / symlinks / ...
+        localPaths.removeAll(keys); // list of all localPaths which are removed in the DHT
+        for (String pathToDelete : localPaths) {
+            if (FSFileUtils.isRootDirectory(pathToDelete)) {
+                // no changes are allowed to root directory
+                continue;
+            }
+            this.logger.info("Call removal of element on path '" + pathToDelete + "'. LocalPaths: " + localPaths + ", DHTPaths: " + keys);
+            pFilesystem.unlink(pathToDelete);
+        }
+    }
+
+    /**
+     * Applies a change of the paths on the DHT to the local files
+     * 
+     * @param pFilesystem The file system to synchronize
+     * @param pEntry The change recorded in the journal
+     */
+    private void applyJournalEntry(P2PFS pFilesystem, JournalEntry pEntry) {
+        String path = pEntry.getPath();
+        if (FSFileUtils.isRootDirectory(path)) {
+            return;
+        }
+
+        if (!pEntry.isRemoved()) {
+            if (!pEntry.getContentKey().equals(Number160.createHash(path))) {
+                // a symlink is stored with the key of the link and the path of its target,
+                // the target gets an entry on its own
+                return;
+            }
+
+            AMemoryPath parent = pFilesystem.getMaterializedPath(FSFileUtils.getParentDirectory(path));
+            if (!(parent instanceof MemoryDirectory) || !((MemoryDirectory) parent).isLoaded()) {
+                // the path gets listed once its directory is loaded
+                return;
+            }
+
+            if (null == ((MemoryDirectory) parent).getChild(FSFileUtils.getLastComponent(path))) {
+                this.logger.info("Call 'createLocally' for file/dir on path '" + path + "'");
+                pFilesystem.createLocally(path);
+            }
+
+            return;
+        }
+
+        if (null == pFilesystem.getMaterializedPath(path)) {
+            return;
+        }
+
+        if (pFilesystem.getMonitoredFilePaths().contains(path)) {
+            // local changes are not written yet and store the path again
+            return;
+        }
+
+        this.logger.info("Call removal of element on path '" + path + "'");
+        pFilesystem.unlink(path);
+    }
+
+    /**
+     * Compares the local digest of all names with the one stored by the peers
+     * and synchronizes the differing directories
+     * 
+     * @param pFilesystem The file system to synchronize
+     * @param pFsPeer The peer providing access to the DHT
+     * 
+     * @throws Exception If a digest or path could not be fetched from the DHT
+     */
+    private void compareDigests(P2PFS pFilesystem, FSPeer pFsPeer)
+            throws Exception {
+        MemoryDirectory rootDirectory = (MemoryDirectory) pFilesystem.getPath("/");
+
+        if (!rootDirectory.isLoaded()) {
+            // nothing is listed locally yet
+            return;
+        }
+
+        if (rootDirectory.getDigest().hasDigest(pFsPeer.getRootDigest())) {
+            return;
+        }
+
+        this.logger.info("Digest of the local files differs from the one on the DHT");
+        synchronizeDirectory(pFilesystem, pFsPeer, rootDirectory, "/", pFilesystem.getMonitoredFilePaths());
+    }
+
+    /**
+     * Compares the names in the given directory with the digest stored by the peers.
+     * Descends into subdirectories of which the digests differ, and checks names
+     * contained only on one side against the paths on the DHT. Subdirectories which are
+     * not loaded yet take over the digest stored by the peers instead. Stores the digest of the
+     * directory afterwards, if it still differs and covers all elements below it.
+     * 
+     * @param pFilesystem The file system to synchronize
+     * @param pFsPeer The peer providing access to the DHT
+     * @param pDirectory The local directory
+     * @param pPath The path of the directory
+     * @param pMonitoredPaths Paths which have changes not written to the DHT yet
+     * 
+     * @throws Exception If a digest or path could not be fetched from the DHT
+     */
+    private void synchronizeDirectory(P2PFS pFilesystem, FSPeer pFsPeer, MemoryDirectory pDirectory, String pPath, Set<String> pMonitoredPaths)
+            throws Exception {
+        DirectoryDigest remoteDigest = pFsPeer.getDirectoryDigest(pPath);
+        Map<String, byte[]> remoteChildren = (null == remoteDigest) ? Collections.emptyMap() : remoteDigest.getChildren();
+        Map<String, byte[]> localChildren = pDirectory.getDigest().getChildren();
+
+        Set<String> names = new TreeSet<>(localChildren.keySet());
+        names.addAll(remoteChildren.keySet());
+
+        for (String name : names) {
+            byte[] localHash = localChildren.get(name);
+            byte[] remoteHash = remoteChildren.get(name);
+            if (Arrays.equals(localHash, remoteHash)) {
+                continue;
+            }
+
+            String childPath = FSFileUtils.isRootDirectory(pPath) ? "/" + name : pPath + "/" + name;
+            AMemoryPath child = pDirectory.getChild(name);
+
+            if (null != remoteHash && child instanceof MemoryDirectory && !((MemoryDirectory) child).isLoaded()) {
+                // compared once the directory gets loaded
+                ((MemoryDirectory) child).setListedDigest(remoteHash);
+                continue;
+            }
+
+            if (null != localHash && null != remoteHash && child instanceof MemoryDirectory) {
+                synchronizeDirectory(pFilesystem, pFsPeer, (MemoryDirectory) child, childPath, pMonitoredPaths);
+                continue;
+            }
+
+            String foundPath = pFsPeer.getPath(Number160.createHash(childPath));
+            if (null != foundPath && null == child) {
+                if (!childPath.equals(foundPath)) {
+                    this.logger.info("Call 'symlink' for target '" + foundPath + "' on path '" + childPath + "'");
+                    pFilesystem.symlink(foundPath, childPath);
+                } else {
+                    this.logger.info("Call 'createLocally' for file/dir on path '" + childPath + "'");
+                    pFilesystem.createLocally(childPath);
+                }
+            } else if (null == foundPath && null != child && !pMonitoredPaths.contains(childPath)) {
+                this.logger.info("Call removal of element on path '" + childPath + "'");
+                pFilesystem.unlink(childPath);
+            }
+        }
+
+        // the root is only compared if its separately stored digest differs, so it is stored in any case
+        DirectoryDigest localDigest = pDirectory.getDigest();
+        if (!pDirectory.isDigestComplete()) {
+            this.logger.debug("Digest of directory '" + pPath + "' is not stored, since it contains directories not loaded yet");
+        } else if (null == remoteDigest || !localDigest.hasDigest(remoteDigest.getDigest()) || FSFileUtils.isRootDirectory(pPath)) {
+            pFsPeer.putDirectoryDigest(pPath, localDigest);
+        }
+    }
+
     @Override
     public String getEventName() {
         return AfterWriteEvent.eventName;
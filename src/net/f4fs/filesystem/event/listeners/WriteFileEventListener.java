@@ -1,11 +1,15 @@
 package net.f4fs.filesystem.event.listeners;
 
 import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
 
 import net.f4fs.filesystem.event.events.AEvent;
 import net.f4fs.filesystem.event.events.CompleteWriteEvent;
+import net.f4fs.filesystem.partials.AMemoryPath;
+import net.f4fs.filesystem.partials.MemoryFile;
 import net.f4fs.filesystem.util.FSFileUtils;
 import net.f4fs.persistence.archive.VersionArchiver;
+import net.f4fs.persistence.data.DataVersion;
 import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
 
@@ -38,28 +42,55 @@ public class WriteFileEventListener
 
         CompleteWriteEvent writeEvent = (CompleteWriteEvent) pEvent;
 
-        if (0 != writeEvent.getContent().capacity()) {
+        if (0 != writeEvent.getContent().size()) {
             try {
-                Data oldData = writeEvent.getFsPeer().getData(Number160.createHash(writeEvent.getPath()));
+                // the version stamp tells whether there is data to archive, without fetching it
+                DataVersion storedVersion = writeEvent.getFsPeer().getDataVersion(Number160.createHash(writeEvent.getPath()));
 
-                // data is a already a byte array, no need to get the object of it
-                if (null != oldData && oldData.toBytes().length > 0 &&
+                if (null != storedVersion && storedVersion.getSize() > 0 &&
                         !FSFileUtils.isDirectory(writeEvent.getFilesystem().getPath(writeEvent.getPath()))) {
-                    this.archiver.archive(writeEvent.getFsPeer(), Number160.createHash(writeEvent.getPath()), oldData);
+                    this.archiver.archive(writeEvent.getFsPeer(), writeEvent.getPath());
                 }
             } catch (ClassNotFoundException | IOException | InterruptedException e) {
-                this.logger.error("Could not archive file on path '" + writeEvent.getPath() + "'. An error occurred during fetching old data. Message: " + e.getMessage());
+                this.logger.error("Could not archive file on path '" + writeEvent.getPath() + "'. An error occurred during copying old data. Message: " + e.getMessage());
             }
         }
 
+        AMemoryPath memoryPath = writeEvent.getFilesystem().getPath(writeEvent.getPath());
+        DataVersion baseVersion = (memoryPath instanceof MemoryFile) ? ((MemoryFile) memoryPath).getContentsVersion() : null;
+
+        // a file fetches the blocks not loaded yet only if they are read
+        SeekableByteChannel contentChannel = (memoryPath instanceof MemoryFile && writeEvent.getContent() == ((MemoryFile) memoryPath).getContent())
+                ? ((MemoryFile) memoryPath).newReadChannel()
+                : writeEvent.getContent().newReadChannel();
+
         try {
-            writeEvent.getFsPeer().putData(Number160.createHash(writeEvent.getPath()), new Data(writeEvent.getContent().array()));
+            // stream the content, so that it is not copied as a whole,
+            // and keep the parts of the stored data which did not change
+            DataVersion version = writeEvent.getFsPeer().updateData(
+                    Number160.createHash(writeEvent.getPath()),
+                    contentChannel,
+                    writeEvent.getChangedRanges(),
+                    baseVersion);
             writeEvent.getFsPeer().putPath(Number160.createHash(writeEvent.getPath()), new Data(writeEvent.getPath()));
+
+            // local contents match the stored version now, so reads can be served from them
+            if (memoryPath instanceof MemoryFile) {
+                ((MemoryFile) memoryPath).setContentsVersion(version);
+            }
         } catch (ClassNotFoundException | InterruptedException | IOException e) {
             this.logger.error("Could not save whole file on path '" + writeEvent.getPath() + "'. An error occurred during saving to DHT. Message: " + e.getMessage());
+
+            // the changes are still to be written
+            if (null != writeEvent.getChangedRanges()) {
+                writeEvent.getContent().restoreDirtyRanges(writeEvent.getChangedRanges());
+            }
+            writeEvent.setError(e);
+
+            return;
         }
 
-        logger.info("Wrote whole file on path '" + writeEvent.getPath() + "' containing '" + writeEvent.getContent().capacity() + "' bytes to DHT");
+        logger.info("Wrote whole file on path '" + writeEvent.getPath() + "' containing '" + writeEvent.getContent().size() + "' bytes to DHT");
     }
 
     @Override
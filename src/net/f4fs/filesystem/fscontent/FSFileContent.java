@@ -0,0 +1,636 @@
+package net.f4fs.filesystem.fscontent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.f4fs.persistence.data.ByteRange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Contents of a file held in memory as a map of fixed-size pages,
+ * which are looked up by their index in constant time.
+ * Pages are allocated on first write only, i.e. ranges which were never
+ * written are holes reading as zeros. Writes extending the file therefore
+ * neither allocate nor copy the existing contents. <br>
+ * Each page written since the dirty pages were last cleared is marked dirty,
+ * so that only the changed parts of a file need to be written back. <br>
+ * Once the allocated pages exceed the spill threshold, all pages are moved
+ * from the heap to a memory mapped {@link FSSpillFile}, and new pages are
+ * allocated there. Reads and writes access mapped pages the same way as heap pages. <br>
+ * Reads copy from views on the pages straight into the target buffer, without
+ * changing the state of any page. Concurrent reads therefore only share a read lock.
+ */
+public class FSFileContent {
+
+    /**
+     * Zeros from which holes are read
+     */
+    private static final ByteBuffer         ZEROS  = ByteBuffer.allocate(64 * 1024).asReadOnlyBuffer();
+
+    private final Logger                    logger = LoggerFactory.getLogger(FSFileContent.class);
+
+    private final int                       pageSize;
+
+    /**
+     * Number of bytes of allocated pages above which pages are spilled,
+     * negative if pages are never spilled
+     */
+    private long                            spillThreshold;
+
+    private final String                    spillDirectory;
+
+    /**
+     * File holding the pages once they got spilled, null before
+     */
+    private FSSpillFile                     spillFile;
+
+    /**
+     * Slots in the spill file of the spilled pages by their index
+     */
+    private final Map<Long, Integer>        spilledSlots;
+
+    /**
+     * Allocated pages by their index
+     */
+    private final Map<Long, ByteBuffer>     pages;
+
+    /**
+     * Indices of the pages changed since the dirty pages were last cleared
+     */
+    private final BitSet                    dirtyPages;
+
+    /**
+     * Size of the contents in bytes
+     */
+    private long                            size;
+
+    /**
+     * Shared by reads, exclusive for all changes
+     */
+    private final ReentrantReadWriteLock    lock   = new ReentrantReadWriteLock();
+
+    /**
+     * Creates empty contents which are always held on the heap
+     *
+     * @param pPageSize The size of a page in bytes
+     */
+    public FSFileContent(int pPageSize) {
+        this(pPageSize, -1, null);
+    }
+
+    /**
+     * Creates empty contents
+     *
+     * @param pPageSize The size of a page in bytes
+     * @param pSpillThreshold Number of bytes of allocated pages above which pages
+     *            are moved to a spill file, negative to keep them on the heap
+     * @param pSpillDirectory The directory in which to create the spill file
+     */
+    public FSFileContent(int pPageSize, long pSpillThreshold, String pSpillDirectory) {
+        if (pPageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive, got '" + pPageSize + "'");
+        }
+
+        this.pageSize = pPageSize;
+        this.spillThreshold = pSpillThreshold;
+        this.spillDirectory = pSpillDirectory;
+        this.spilledSlots = new HashMap<>();
+        this.pages = new HashMap<>();
+        this.dirtyPages = new BitSet();
+        this.size = 0;
+    }
+
+    /**
+     * Creates contents holding a copy of the remaining bytes of the given buffer.
+     * No page is marked dirty.
+     *
+     * @param pBytes The bytes to copy. Its position is not modified.
+     * @param pPageSize The size of a page in bytes
+     * @return The contents
+     */
+    public static FSFileContent wrap(ByteBuffer pBytes, int pPageSize) {
+        FSFileContent content = new FSFileContent(pPageSize);
+        content.load(pBytes.duplicate(), 0);
+
+        return content;
+    }
+
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * @return The size of the contents in bytes
+     */
+    public long size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return True, if the pages are held in a spill file instead of the heap
+     */
+    public boolean isSpilled() {
+        this.lock.readLock().lock();
+        try {
+            return null != this.spillFile;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes held by allocated pages
+     */
+    public long getAllocatedBytes() {
+        this.lock.readLock().lock();
+        try {
+            return (long) this.pages.size() * this.pageSize;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies up to <i>pLength</i> bytes starting at <i>pOffset</i> into the given buffer.
+     * Holes are read as zeros.
+     *
+     * @param pTarget The buffer to write the read bytes to
+     * @param pOffset The position in the contents to start reading at
+     * @param pLength The maximum number of bytes to read
+     * @return The number of bytes read
+     */
+    public int read(ByteBuffer pTarget, long pOffset, int pLength) {
+        this.lock.readLock().lock();
+        try {
+            long end = Math.min(this.size, pOffset + Math.min(pLength, pTarget.remaining()));
+            long position = pOffset;
+
+            while (position < end) {
+                long pageIndex = position / this.pageSize;
+                int pageOffset = (int) (position % this.pageSize);
+                int length = (int) Math.min(this.pageSize - pageOffset, end - position);
+
+                ByteBuffer page = this.pages.get(pageIndex);
+                if (null == page) {
+                    for (int written = 0; written < length;) {
+                        ByteBuffer zeros = ZEROS.duplicate();
+                        zeros.limit(Math.min(zeros.capacity(), length - written));
+                        written += zeros.remaining();
+                        pTarget.put(zeros);
+                    }
+                } else {
+                    ByteBuffer part = page.duplicate();
+                    part.limit(pageOffset + length).position(pageOffset);
+                    pTarget.put(part);
+                }
+
+                position += length;
+            }
+
+            return (int) Math.max(0, end - pOffset);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer at the given position.
+     * The contents are extended if the write ends beyond their end.
+     * All pages touched are marked dirty.
+     *
+     * @param pSource The bytes to write, its position is advanced to its limit
+     * @param pOffset The position in the contents to start writing at
+     */
+    public void write(ByteBuffer pSource, long pOffset) {
+        this.lock.writeLock().lock();
+        try {
+            put(pSource, pOffset, true);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer at the given position
+     * without marking any page dirty, e.g. for bytes fetched from the DHT.
+     *
+     * @param pSource The bytes to write, its position is advanced to its limit
+     * @param pOffset The position in the contents to start writing at
+     */
+    public void load(ByteBuffer pSource, long pOffset) {
+        this.lock.writeLock().lock();
+        try {
+            put(pSource, pOffset, false);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the size of the contents. Pages after the new end are released,
+     * an extension is added as a hole. The pages containing changed bytes are marked dirty.
+     *
+     * @param pSize The new size in bytes
+     */
+    public void truncate(long pSize) {
+        this.lock.writeLock().lock();
+        try {
+            if (pSize < this.size) {
+                long firstReleasedPage = (pSize + this.pageSize - 1) / this.pageSize;
+                releasePages(firstReleasedPage);
+
+                if (firstReleasedPage < this.dirtyPages.length()) {
+                    // released pages are not written back anymore
+                    this.dirtyPages.clear(toBitIndex(firstReleasedPage), this.dirtyPages.length());
+                }
+
+                int endOffset = (int) (pSize % this.pageSize);
+                if (0 != endOffset) {
+                    // bytes after the new end must read as zeros when extended again
+                    ByteBuffer page = this.pages.get(pSize / this.pageSize);
+                    if (null != page) {
+                        for (int i = endOffset; i < this.pageSize; i++) {
+                            page.put(i, (byte) 0);
+                        }
+                    }
+
+                    this.dirtyPages.set(toBitIndex(pSize / this.pageSize));
+                }
+            } else {
+                markDirty(this.size, pSize);
+            }
+
+            this.size = pSize;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Discards all pages and sets the size of the contents without
+     * marking any page dirty, e.g. to fetch a newer version lazily.
+     *
+     * @param pSize The new size in bytes
+     */
+    public void reset(long pSize) {
+        this.lock.writeLock().lock();
+        try {
+            releasePages(0);
+            this.dirtyPages.clear();
+            this.size = pSize;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Discards all pages and deletes the spill file, if any.
+     * Must be called once the contents are not used anymore.
+     */
+    public void release() {
+        this.lock.writeLock().lock();
+        try {
+            reset(0);
+
+            if (null != this.spillFile) {
+                try {
+                    this.spillFile.close();
+                } catch (IOException e) {
+                    this.logger.warn("Could not delete spill file. Message: " + e.getMessage());
+                }
+
+                this.spillFile = null;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return A copy of the indices of the pages changed since the dirty pages were last cleared
+     */
+    public BitSet getDirtyPages() {
+        this.lock.readLock().lock();
+        try {
+            return (BitSet) this.dirtyPages.clone();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return True, if any page was changed since the dirty pages were last cleared
+     */
+    public boolean hasDirtyPages() {
+        this.lock.readLock().lock();
+        try {
+            return !this.dirtyPages.isEmpty();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Marks all pages as clean, e.g. after the contents got written back
+     */
+    public void clearDirtyPages() {
+        this.lock.writeLock().lock();
+        try {
+            this.dirtyPages.clear();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the byte ranges covered by dirty pages and marks all pages as clean.
+     * Consecutive dirty pages form a single range, ranges end at the end of the contents at most.
+     *
+     * @return The dirty ranges, sorted by their offset
+     */
+    public List<ByteRange> takeDirtyRanges() {
+        this.lock.writeLock().lock();
+        try {
+            List<ByteRange> ranges = new ArrayList<>();
+
+            int first = this.dirtyPages.nextSetBit(0);
+            while (first >= 0) {
+                int end = this.dirtyPages.nextClearBit(first);
+                long offset = (long) first * this.pageSize;
+                long rangeEnd = Math.min((long) end * this.pageSize, this.size);
+
+                if (offset < rangeEnd) {
+                    ranges.add(new ByteRange(offset, rangeEnd - offset));
+                }
+
+                first = this.dirtyPages.nextSetBit(end);
+            }
+
+            this.dirtyPages.clear();
+
+            return ranges;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the pages covering the given ranges dirty again,
+     * e.g. if writing them back failed
+     *
+     * @param pRanges The ranges taken before
+     */
+    public void restoreDirtyRanges(List<ByteRange> pRanges) {
+        this.lock.writeLock().lock();
+        try {
+            for (ByteRange range : pRanges) {
+                markDirty(range.getOffset(), Math.min(range.getEnd(), this.size));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a read-only channel on the contents, starting at their start.
+     * Each read copies from the pages at the time of the read,
+     * i.e. the contents are never copied as a whole.
+     *
+     * @return The channel
+     */
+    public SeekableByteChannel newReadChannel() {
+        return new ContentChannel();
+    }
+
+    private void put(ByteBuffer pSource, long pOffset, boolean pDirty) {
+        long position = pOffset;
+
+        while (pSource.hasRemaining()) {
+            long pageIndex = position / this.pageSize;
+            int pageOffset = (int) (position % this.pageSize);
+            int length = Math.min(this.pageSize - pageOffset, pSource.remaining());
+
+            ByteBuffer page = this.pages.get(pageIndex);
+            if (null == page) {
+                page = allocatePage(pageIndex);
+                this.pages.put(pageIndex, page);
+            }
+
+            ByteBuffer part = pSource.duplicate();
+            part.limit(part.position() + length);
+            ByteBuffer target = page.duplicate();
+            target.position(pageOffset);
+            target.put(part);
+            pSource.position(pSource.position() + length);
+
+            if (pDirty) {
+                this.dirtyPages.set(toBitIndex(pageIndex));
+            }
+
+            position += length;
+        }
+
+        if (position > this.size) {
+            if (pDirty && pOffset > this.size) {
+                // the hole between the old end and the write is new as well
+                markDirty(this.size, pOffset);
+            }
+
+            this.size = position;
+        }
+    }
+
+    private void markDirty(long pStart, long pEnd) {
+        if (pStart >= pEnd) {
+            return;
+        }
+
+        this.dirtyPages.set(toBitIndex(pStart / this.pageSize), toBitIndex((pEnd - 1) / this.pageSize) + 1);
+    }
+
+    /**
+     * Allocates the memory of a single page, in the spill file
+     * if the pages got spilled or exceed the spill threshold with this page
+     *
+     * @param pPageIndex The index of the page
+     * @return A zeroed buffer of the page size
+     */
+    private ByteBuffer allocatePage(long pPageIndex) {
+        if (null == this.spillFile && this.spillThreshold >= 0 && (this.pages.size() + 1L) * this.pageSize > this.spillThreshold) {
+            spill();
+        }
+
+        if (null != this.spillFile) {
+            try {
+                int slot = this.spillFile.allocateSlot();
+                this.spilledSlots.put(pPageIndex, slot);
+
+                return this.spillFile.getPage(slot);
+            } catch (IOException e) {
+                this.logger.warn("Could not allocate page in spill file, allocating it on the heap. Message: " + e.getMessage());
+            }
+        }
+
+        return ByteBuffer.allocate(this.pageSize);
+    }
+
+    /**
+     * Moves all pages held on the heap to a newly created spill file.
+     * If the file cannot be created, spilling is disabled for these contents.
+     */
+    private void spill() {
+        FSSpillFile file = null;
+
+        try {
+            file = new FSSpillFile(this.spillDirectory, this.pageSize);
+
+            // pages are replaced only once all of them got copied
+            Map<Long, ByteBuffer> spilledPages = new HashMap<>();
+            Map<Long, Integer> slots = new HashMap<>();
+            for (Map.Entry<Long, ByteBuffer> page : this.pages.entrySet()) {
+                int slot = file.allocateSlot();
+                ByteBuffer spilledPage = file.getPage(slot);
+                spilledPage.put(page.getValue().duplicate());
+                spilledPage.clear();
+
+                slots.put(page.getKey(), slot);
+                spilledPages.put(page.getKey(), spilledPage);
+            }
+
+            this.spillFile = file;
+            this.spilledSlots.putAll(slots);
+            this.pages.putAll(spilledPages);
+
+            this.logger.debug("Spilled '" + this.pages.size() + "' pages to a file in '" + this.spillDirectory + "'");
+        } catch (IOException e) {
+            this.logger.warn("Could not spill contents to a file in '" + this.spillDirectory + "', keeping them on the heap. Message: " + e.getMessage());
+            this.spillThreshold = -1;
+
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e1) {
+                    this.logger.warn("Could not delete spill file. Message: " + e1.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the pages from the given index on and frees their slots in the spill file
+     *
+     * @param pFirstPageIndex The index of the first page to remove
+     */
+    private void releasePages(long pFirstPageIndex) {
+        if (0 == pFirstPageIndex && null == this.spillFile) {
+            this.pages.clear();
+            return;
+        }
+
+        Iterator<Long> pageIndices = this.pages.keySet().iterator();
+        while (pageIndices.hasNext()) {
+            Long pageIndex = pageIndices.next();
+            if (pageIndex < pFirstPageIndex) {
+                continue;
+            }
+
+            pageIndices.remove();
+
+            if (null != this.spillFile) {
+                Integer slot = this.spilledSlots.remove(pageIndex);
+                if (null != slot) {
+                    this.spillFile.releaseSlot(slot);
+                }
+            }
+        }
+    }
+
+    private int toBitIndex(long pPageIndex) {
+        if (pPageIndex > Integer.MAX_VALUE) {
+            throw new IllegalStateException("File has more than '" + Integer.MAX_VALUE + "' pages");
+        }
+
+        return (int) pPageIndex;
+    }
+
+    /**
+     * Reads the contents from a position which can be changed
+     */
+    private class ContentChannel
+            implements SeekableByteChannel {
+
+        private long    position = 0;
+
+        private boolean open     = true;
+
+        @Override
+        public int read(ByteBuffer pTarget) {
+            FSFileContent.this.lock.readLock().lock();
+            try {
+                if (this.position >= FSFileContent.this.size) {
+                    return -1;
+                }
+
+                int read = FSFileContent.this.read(pTarget, this.position, pTarget.remaining());
+                this.position += read;
+
+                return read;
+            } finally {
+                FSFileContent.this.lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer pSource) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return this.position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long pPosition) {
+            this.position = pPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return FSFileContent.this.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long pSize) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+}
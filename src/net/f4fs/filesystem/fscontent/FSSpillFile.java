@@ -0,0 +1,195 @@
+package net.f4fs.filesystem.fscontent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Temporary file in a local cache directory holding pages of file contents
+ * outside of the heap. The file is divided into slots of the page size and
+ * mapped into memory in segments of several slots, so that pages are
+ * accessed like heap buffers without any copy. <br>
+ * Free slots are reused lowest first, so that the used slots gather at the start
+ * of the file. Once more than one segment at the end of the file is free,
+ * the file gets truncated behind the last used segment and the mappings of
+ * the free segments are dropped. Pages are not moved, hence the file is bounded
+ * by the highest slot in use, and at most by the peak number of pages held at once. <br>
+ * The file gets truncated and deleted when it is closed. Java provides no way
+ * to unmap a segment explicitly, the memory of dropped mappings is freed once
+ * they are garbage collected, while their disk space is freed by truncating.
+ */
+public class FSSpillFile
+        implements Closeable {
+
+    /**
+     * Size of a mapped segment in bytes
+     */
+    private static final int              SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final Logger                  logger       = LoggerFactory.getLogger(FSSpillFile.class);
+
+    private final FileChannel             channel;
+
+    private final int                     pageSize;
+
+    private final int                     slotsPerSegment;
+
+    private final List<MappedByteBuffer>  segments;
+
+    /**
+     * Slots holding a page
+     */
+    private final BitSet                  usedSlots;
+
+    /**
+     * Number of slots which were used at least once
+     */
+    private int                           touchedSlots;
+
+    /**
+     * Creates a new spill file in the given directory
+     *
+     * @param pDirectory The directory in which to create the file, created if missing
+     * @param pPageSize The size of a page in bytes
+     *
+     * @throws IOException If the file could not be created
+     */
+    public FSSpillFile(String pDirectory, int pPageSize)
+            throws IOException {
+        Path directory = Paths.get(pDirectory);
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "content", ".spill");
+
+        this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        this.pageSize = pPageSize;
+        this.slotsPerSegment = Math.max(1, SEGMENT_SIZE / pPageSize);
+        this.segments = new ArrayList<>();
+        this.usedSlots = new BitSet();
+        this.touchedSlots = 0;
+    }
+
+    /**
+     * Reserves a slot for a page
+     *
+     * @return The index of the slot
+     *
+     * @throws IOException If the segment of the slot could not be mapped
+     */
+    public synchronized int allocateSlot()
+            throws IOException {
+        int slot = this.usedSlots.nextClearBit(0);
+        ByteBuffer page = getPage(slot);
+
+        if (slot < this.touchedSlots) {
+            // a new page must read as zeros
+            for (int i = 0; i < this.pageSize; i++) {
+                page.put(i, (byte) 0);
+            }
+        } else {
+            this.touchedSlots = slot + 1;
+        }
+
+        this.usedSlots.set(slot);
+
+        return slot;
+    }
+
+    /**
+     * Returns the page in the given slot. The returned buffer
+     * reads and writes the mapped file directly.
+     *
+     * @param pSlot The index of the slot
+     * @return The page, positioned at its start
+     *
+     * @throws IOException If the segment of the slot could not be mapped
+     */
+    public synchronized ByteBuffer getPage(int pSlot)
+            throws IOException {
+        int segmentIndex = pSlot / this.slotsPerSegment;
+
+        while (this.segments.size() <= segmentIndex) {
+            long segmentOffset = (long) this.segments.size() * this.slotsPerSegment * this.pageSize;
+            // mapping beyond the end extends the file
+            this.segments.add(this.channel.map(MapMode.READ_WRITE, segmentOffset, (long) this.slotsPerSegment * this.pageSize));
+        }
+
+        ByteBuffer page = this.segments.get(segmentIndex).duplicate();
+        int pageOffset = (pSlot % this.slotsPerSegment) * this.pageSize;
+        page.limit(pageOffset + this.pageSize).position(pageOffset);
+
+        return page.slice();
+    }
+
+    /**
+     * Frees the given slot, so that it can hold another page
+     *
+     * @param pSlot The index of the slot
+     */
+    public synchronized void releaseSlot(int pSlot) {
+        this.usedSlots.clear(pSlot);
+
+        // one free segment is kept, so that pages allocated and released
+        // around the end of the file do not map and truncate it repeatedly
+        int keptSegments = (this.usedSlots.length() + this.slotsPerSegment - 1) / this.slotsPerSegment + 1;
+        if (keptSegments < this.segments.size()) {
+            shrink(keptSegments);
+        }
+    }
+
+    /**
+     * @return The number of slots holding a page
+     */
+    public synchronized int getUsedSlots() {
+        return this.usedSlots.cardinality();
+    }
+
+    /**
+     * Closes and deletes the file. Pages returned before must not be used anymore.
+     */
+    @Override
+    public synchronized void close()
+            throws IOException {
+        this.segments.clear();
+
+        try {
+            // frees the disk space even while dropped mappings are not collected yet
+            this.channel.truncate(0);
+        } finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Truncates the file behind the given number of segments and drops the
+     * mappings of the segments behind them, which must not hold any used slot
+     *
+     * @param pSegments The number of segments to keep
+     */
+    private void shrink(int pSegments) {
+        try {
+            this.channel.truncate((long) pSegments * this.slotsPerSegment * this.pageSize);
+        } catch (IOException e) {
+            // the segments are kept and dropped on the next release
+            this.logger.warn("Could not truncate spill file. Message: " + e.getMessage());
+            return;
+        }
+
+        this.segments.subList(pSegments, this.segments.size()).clear();
+        // slots behind the end read as zeros once they get mapped again
+        this.touchedSlots = Math.min(this.touchedSlots, pSegments * this.slotsPerSegment);
+    }
+}
@@ -1,14 +1,22 @@
 package net.f4fs.filesystem.fsfilemonitor;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.f4fs.config.Config;
 import net.f4fs.filesystem.P2PFS;
 import net.f4fs.filesystem.event.EventDispatcher;
 import net.f4fs.filesystem.event.events.AfterCompleteWriteEvent;
@@ -17,19 +25,18 @@ import net.f4fs.filesystem.event.events.BeforeCompleteWriteEvent;
 import net.f4fs.filesystem.event.events.BeforeWriteEvent;
 import net.f4fs.filesystem.event.events.CompleteWriteEvent;
 import net.f4fs.filesystem.event.listeners.IEventListener;
+import net.f4fs.filesystem.fscontent.FSFileContent;
 import net.f4fs.filesystem.util.FSFileUtils;
 import net.f4fs.fspeer.FSPeer;
-import net.tomp2p.utils.Pair;
 
 
 /**
  * Dispatches the following events according to the state of the file system:
  * <ul>
  * <li>
- * <code>filesystem.before_write_event</code>: Each time, before a check is made, if the file is complete and should be written (including writing the file if it is complete)</li>
+ * <code>filesystem.before_write_event</code>: Each synchronization period, before the files which are due get written</li>
  * <li>
- * <code>filesystem.after_write_event</code>: Each time, after an attempt is made to check if the file is complete and should be written (including writing the file if it is
- * complete)</li>
+ * <code>filesystem.after_write_event</code>: Each synchronization period, after the files which are due got written</li>
  * <li>
  * <code>filesystem.before_complete_write_event</code>: Each time, a file is complete and before it should be written</li>
  * <li>
@@ -38,12 +45,25 @@ import net.tomp2p.utils.Pair;
  * <code>filesystem.after_complete_write_event</code>: Each time, a file is complete and was written</li>
  * </ul>
  * 
+ * A file is complete once it was not changed for {@link Config#getWriteBackDelayMillis()}.
+ * A file which gets flushed explicitly is written at once, without waiting for its deadline. The deadlines of the files are kept in a delay queue,
+ * so the monitor sleeps until the next file is due or the next synchronization period starts,
+ * instead of scanning all monitored files. <br>
+ * Complete files are written by a pool of {@link Config#getWriteBackWorkers()} threads,
+ * so independent files are written concurrently. Writes of the same path are chained,
+ * i.e. they are never run concurrently and complete in the order they were scheduled. <br>
+ * The monitored files are held in a concurrent map of immutable entries, which are replaced
+ * atomically on each change. Therefore, FUSE threads never wait for a write in progress,
+ * and a file changed while it is being taken for writing stays monitored.
+ * A file being written is still reported as monitored until its write completes,
+ * so that the synchronization does not remove it locally in the meantime. <br>
  * Until now, the {@link net.f4fs.filesystem.event.listeners.WriteFileEventListener WriteFileEventListener} is
  * registered to the <code>filesystem.complete_write_event</code>. That means, it writes each
  * file to the DHT when it is complete on the physical disk. <br>
  * The {@link net.f4fs.filesystem.event.listeners.SyncFileEventListener SyncFileEventListeners} is invoked
  * each time a <code>filesystem.after_write_event</code> is dispatched. That
- * means, it only synchronizes the physical disk after all missing files are completely written to the DHT.
+ * means, it only synchronizes the physical disk after all missing files are completely written to the DHT,
+ * including those still being written by the pool.
  * 
  * @author Raphael
  *
@@ -51,21 +71,43 @@ import net.tomp2p.utils.Pair;
 public class FSFileMonitor
         implements Runnable {
 
-    private final Logger                           logger = LoggerFactory.getLogger(FSFileMonitor.class);
+    private final Logger                     logger = LoggerFactory.getLogger(FSFileMonitor.class);
 
-    private EventDispatcher                        eventDispatcher;
+    private EventDispatcher                  eventDispatcher;
 
-    private Map<String, Pair<Integer, ByteBuffer>> monitoredFiles;
+    private final Map<String, MonitoredFile> monitoredFiles;
 
-    private P2PFS                                  filesystem;
+    /**
+     * Deadlines of the monitored files. A file may have several deadlines queued,
+     * those not matching its current deadline are skipped.
+     */
+    private final DelayQueue<WriteBackDeadline> deadlines;
+
+    private final ExecutorService            writeBackWorkers;
+
+    /**
+     * Last write scheduled for each path which is not finished yet
+     */
+    private final Map<String, CompletableFuture<Void>> pendingWrites;
+
+    /**
+     * Guards moving a file from the monitored files to the pending writes,
+     * so that a snapshot of the monitored paths always contains a file being moved
+     */
+    private final Object                     writeLock = new Object();
 
-    private FSPeer                                 fsPeer;
+    private P2PFS                            filesystem;
 
-    private boolean                                isRunning;
+    private FSPeer                           fsPeer;
+
+    private volatile boolean                 isRunning;
 
     public FSFileMonitor(P2PFS pFilesystem, FSPeer pFsPeer) {
         this.eventDispatcher = new EventDispatcher();
-        this.monitoredFiles = new HashMap<>();
+        this.monitoredFiles = new ConcurrentHashMap<>();
+        this.deadlines = new DelayQueue<>();
+        this.writeBackWorkers = Executors.newFixedThreadPool(Config.DEFAULT.getWriteBackWorkers());
+        this.pendingWrites = new ConcurrentHashMap<>();
         this.filesystem = pFilesystem;
         this.fsPeer = pFsPeer;
         this.isRunning = true;
@@ -83,7 +125,8 @@ public class FSFileMonitor
     /**
      * Adds a <i>monitored</i> file to the FileMonitor. Overwrites an already existing
      * entry with the same path, i.e. the provided input must be complete until the current chunk
-     * written to the physical disk.
+     * written to the physical disk. The file gets written once it was not changed for
+     * {@link Config#getWriteBackDelayMillis()}, i.e. each call postpones its deadline.
      * 
      * <p style="color:red">
      * Note: Make sure that not only single chunks are provided to this method as they would get overwritten each time you call this method with the same path
@@ -96,20 +139,72 @@ public class FSFileMonitor
      * @param pPath The path to the file which should be monitored if completely written
      * @param pContents All contents written until now for the file (i.e. not only single chunks)
      */
-    public synchronized void addMonitoredFile(String pPath, ByteBuffer pContents) {
+    public void addMonitoredFile(String pPath, FSFileContent pContents) {
         // NOTE: we do not save FUSE's temporary files. They
         // always start with "._<FILENAME>"
         if (FSFileUtils.getLastComponent(pPath).startsWith("._")) {
             return;
         }
 
-        Pair<Integer, ByteBuffer> pair = new Pair<>(new Integer(1), pContents);
-        this.monitoredFiles.put(pPath, pair);
-        this.logger.trace("Wrote chunk to file on path '" + pPath + "' containing '" + pContents.capacity() + "' bytes to FSFileMonitor");
+        long deadline = System.currentTimeMillis() + Config.DEFAULT.getWriteBackDelayMillis();
+
+        // otherwise, the queued deadline requeues the file once it expires
+        if (null == this.monitoredFiles.put(pPath, new MonitoredFile(pContents, deadline))) {
+            this.deadlines.add(new WriteBackDeadline(pPath, deadline));
+        }
+
+        this.logger.trace("Wrote chunk to file on path '" + pPath + "' containing '" + pContents.size() + "' bytes to FSFileMonitor");
+    }
+
+    /**
+     * Adds a <i>monitored</i> path of which the contents are held in a single buffer,
+     * e.g. a directory or a symlink
+     * 
+     * @param pPath The path which should be monitored
+     * @param pContents All contents of the path
+     * 
+     * @see #addMonitoredFile(String, FSFileContent)
+     */
+    public void addMonitoredFile(String pPath, ByteBuffer pContents) {
+        addMonitoredFile(pPath, FSFileContent.wrap(pContents, Config.DEFAULT.getChunkSizeBytes()));
     }
     
-    public synchronized void removeMonitoredFile(String pPath) {
-        this.monitoredFiles.remove(pPath);
+    /**
+     * Stops monitoring the file on the given path. Changes
+     * which are not written until now get discarded.
+     * 
+     * @param pPath The path of the file
+     * @return True, if the file was monitored
+     */
+    public boolean removeMonitoredFile(String pPath) {
+        return null != this.monitoredFiles.remove(pPath);
+    }
+
+    /**
+     * Writes the file on the given path at once, e.g. when it gets
+     * flushed or closed. If the file is not monitored, the returned
+     * future completes with a write of the file still in progress.
+     * 
+     * @param pPath The path of the file to write
+     * @return A future which completes once the file is written to the DHT,
+     *         or completes exceptionally if writing the file failed
+     */
+    public CompletableFuture<Void> flush(String pPath) {
+        synchronized (this.writeLock) {
+            MonitoredFile monitoredFile = this.monitoredFiles.remove(pPath);
+
+            if (null != monitoredFile) {
+                // its queued deadline gets skipped
+                return scheduleWrite(pPath, monitoredFile.contents);
+            }
+        }
+
+        CompletableFuture<Void> pending = this.pendingWrites.get(pPath);
+        if (null == pending) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return pending;
     }
 
     /**
@@ -119,18 +214,29 @@ public class FSFileMonitor
      * 
      * @return The file contents written until now
      */
-    public synchronized ByteBuffer getFileContent(String pPath) {
-        Pair<Integer, ByteBuffer> file = this.monitoredFiles.get(pPath);
+    public FSFileContent getFileContent(String pPath) {
+        MonitoredFile file = this.monitoredFiles.get(pPath);
 
         if (null == file) {
             return null;
         }
 
-        return file.element1();
+        return file.contents;
     }
 
-    public synchronized Set<String> getMonitoredFilePaths() {
-        return this.monitoredFiles.keySet();
+    /**
+     * Returns the paths of which local changes are not stored in the DHT yet,
+     * i.e. the paths of all monitored files and of those still being written
+     * 
+     * @return A snapshot of the paths of all monitored files
+     */
+    public Set<String> getMonitoredFilePaths() {
+        synchronized (this.writeLock) {
+            Set<String> paths = new HashSet<>(this.monitoredFiles.keySet());
+            paths.addAll(this.pendingWrites.keySet());
+
+            return paths;
+        }
     }
 
     public void terminate() {
@@ -140,49 +246,185 @@ public class FSFileMonitor
 
     @Override
     public void run() {
+        long nextSync = System.currentTimeMillis();
 
         while (this.isRunning) {
-            // update FS
-            BeforeWriteEvent beforeWriteEvent = new BeforeWriteEvent(this.filesystem, this.fsPeer);
-            this.eventDispatcher.dispatchEvent(BeforeWriteEvent.eventName, beforeWriteEvent);
-
-            Map<String, Pair<Integer, ByteBuffer>> notWrittenFiles = new HashMap<>();
-            for (Entry<String, Pair<Integer, ByteBuffer>> entry : this.monitoredFiles.entrySet()) {
-                if (entry.getValue().element0() > 0) {
-                    // file is not ready yet to write to DHT
-                    Pair<Integer, ByteBuffer> decreasedCounterPair = entry.getValue().element0(entry.getValue().element0() - 1);
-                    notWrittenFiles.put(entry.getKey(), decreasedCounterPair);
-                    logger.debug("Decrease counter for file on path '" + entry.getKey() + "'.");
-                } else {
-                    // dispatch beforeCompleteWriteEvent
-                    BeforeCompleteWriteEvent beforeCompleteWriteEvent = new BeforeCompleteWriteEvent(this.filesystem, this.fsPeer, entry.getKey());
-                    this.eventDispatcher.dispatchEvent(BeforeCompleteWriteEvent.eventName, beforeCompleteWriteEvent);
-
-                    // dispatch completeWriteEvent
-                    CompleteWriteEvent completeWriteEvent = new CompleteWriteEvent(this.filesystem, this.fsPeer, entry.getKey(), entry.getValue().element1());
-                    this.eventDispatcher.dispatchEvent(CompleteWriteEvent.eventName, completeWriteEvent);
-
-                    // dispatch afterCompleteWriteEvent
-                    AfterCompleteWriteEvent afterCompleteWriteEvent = new AfterCompleteWriteEvent(this.filesystem, this.fsPeer, entry.getKey());
-                    this.eventDispatcher.dispatchEvent(AfterCompleteWriteEvent.eventName, afterCompleteWriteEvent);
+            try {
+                WriteBackDeadline deadline = this.deadlines.poll(Math.max(0, nextSync - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (null != deadline) {
+                    writeBack(deadline);
                 }
+            } catch (InterruptedException e) {
+                this.logger.error(e.getMessage());
+                e.printStackTrace();
             }
 
-            // dispatch afterWriteEvent
-            AfterWriteEvent afterWriteEvent = new AfterWriteEvent(this.filesystem, this.fsPeer);
-            this.eventDispatcher.dispatchEvent(AfterWriteEvent.eventName, afterWriteEvent);
+            if (System.currentTimeMillis() >= nextSync) {
+                // update FS
+                BeforeWriteEvent beforeWriteEvent = new BeforeWriteEvent(this.filesystem, this.fsPeer);
+                this.eventDispatcher.dispatchEvent(BeforeWriteEvent.eventName, beforeWriteEvent);
 
-            this.monitoredFiles = notWrittenFiles;
+                // write the files which are due before synchronizing
+                WriteBackDeadline deadline;
+                while (null != (deadline = this.deadlines.poll())) {
+                    writeBack(deadline);
+                }
+                awaitPendingWrites();
 
-            try {
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                this.logger.error(e.getMessage());
-                e.printStackTrace();
+                // dispatch afterWriteEvent
+                AfterWriteEvent afterWriteEvent = new AfterWriteEvent(this.filesystem, this.fsPeer);
+                this.eventDispatcher.dispatchEvent(AfterWriteEvent.eventName, afterWriteEvent);
+
+                nextSync = System.currentTimeMillis() + Config.DEFAULT.getSyncIntervalMillis();
             }
         }
 
+        // writes already scheduled are still finished
+        this.writeBackWorkers.shutdown();
+
     }
 
+    /**
+     * Schedules the write of the file of the given deadline, if it was not changed since.
+     * Otherwise, its current deadline gets queued.
+     * 
+     * @param pDeadline The expired deadline
+     */
+    private void writeBack(WriteBackDeadline pDeadline) {
+        MonitoredFile monitoredFile;
+
+        synchronized (this.writeLock) {
+            do {
+                monitoredFile = this.monitoredFiles.get(pDeadline.path);
+
+                if (null == monitoredFile) {
+                    // written already or removed in the meantime
+                    return;
+                }
+
+                if (monitoredFile.deadline > System.currentTimeMillis()) {
+                    // file was changed after the deadline was queued
+                    this.deadlines.add(new WriteBackDeadline(pDeadline.path, monitoredFile.deadline));
+                    return;
+                }
+
+                // fails if the file was changed in the meantime
+            } while (!this.monitoredFiles.remove(pDeadline.path, monitoredFile));
+
+            scheduleWrite(pDeadline.path, monitoredFile.contents);
+        }
+    }
+
+    /**
+     * Schedules the write of the given contents on the pool of workers.
+     * The write runs after the previous write of the same path, even if it failed.
+     * 
+     * @param pPath The path of the file
+     * @param pContents The contents to write
+     * @return A future which completes once the file is written
+     */
+    private CompletableFuture<Void> scheduleWrite(String pPath, FSFileContent pContents) {
+        Runnable write = () -> writeFile(pPath, pContents);
+
+        CompletableFuture<Void> pending = this.pendingWrites.compute(pPath, (pKey, pPrevious) -> (null == pPrevious)
+                ? CompletableFuture.runAsync(write, this.writeBackWorkers)
+                : pPrevious.handle((pResult, pException) -> pResult).thenRunAsync(write, this.writeBackWorkers));
+
+        pending.whenComplete((pResult, pException) -> {
+            if (null != pException) {
+                this.logger.error("Could not write file on path '" + pPath + "'. Message: " + pException.getMessage());
+            }
+            this.pendingWrites.remove(pPath, pending);
+        });
+
+        return pending;
+    }
+
+    /**
+     * Blocks until all writes scheduled until now are finished
+     */
+    private void awaitPendingWrites() {
+        CompletableFuture<?>[] pending = this.pendingWrites.values().toArray(new CompletableFuture<?>[0]);
+
+        try {
+            CompletableFuture.allOf(pending).join();
+        } catch (RuntimeException e) {
+            // already logged for the particular path
+        }
+    }
+
+    /**
+     * Writes the given contents of the file on the given path.
+     * If writing fails, the file gets monitored again.
+     * 
+     * @param pPath The path of the file
+     * @param pContents The contents to write
+     * 
+     * @throws CompletionException If writing the file failed
+     */
+    private void writeFile(String pPath, FSFileContent pContents) {
+        // dispatch beforeCompleteWriteEvent
+        BeforeCompleteWriteEvent beforeCompleteWriteEvent = new BeforeCompleteWriteEvent(this.filesystem, this.fsPeer, pPath);
+        this.eventDispatcher.dispatchEvent(BeforeCompleteWriteEvent.eventName, beforeCompleteWriteEvent);
+
+        // dispatch completeWriteEvent, changes made from now on are written the next time
+        CompleteWriteEvent completeWriteEvent = new CompleteWriteEvent(this.filesystem, this.fsPeer, pPath, pContents, pContents.takeDirtyRanges());
+        this.eventDispatcher.dispatchEvent(CompleteWriteEvent.eventName, completeWriteEvent);
+
+        if (null != completeWriteEvent.getError()) {
+            // retry unless the file was changed or removed in the meantime
+            long deadline = System.currentTimeMillis() + Config.DEFAULT.getWriteBackDelayMillis();
+            if (null != this.filesystem && null != this.filesystem.getPath(pPath)
+                    && null == this.monitoredFiles.putIfAbsent(pPath, new MonitoredFile(pContents, deadline))) {
+                this.deadlines.add(new WriteBackDeadline(pPath, deadline));
+            }
+            throw new CompletionException(completeWriteEvent.getError());
+        }
+
+        // dispatch afterCompleteWriteEvent
+        AfterCompleteWriteEvent afterCompleteWriteEvent = new AfterCompleteWriteEvent(this.filesystem, this.fsPeer, pPath);
+        this.eventDispatcher.dispatchEvent(AfterCompleteWriteEvent.eventName, afterCompleteWriteEvent);
+    }
+
+    /**
+     * Contents of a monitored file and the time at which it gets written
+     */
+    private static class MonitoredFile {
+
+        private final FSFileContent contents;
+
+        private final long          deadline;
+
+        public MonitoredFile(FSFileContent pContents, long pDeadline) {
+            this.contents = pContents;
+            this.deadline = pDeadline;
+        }
+    }
+
+    /**
+     * Time at which a monitored file is due
+     */
+    private static class WriteBackDeadline
+            implements Delayed {
+
+        private final String path;
+
+        private final long   deadline;
+
+        public WriteBackDeadline(String pPath, long pDeadline) {
+            this.path = pPath;
+            this.deadline = pDeadline;
+        }
+
+        @Override
+        public long getDelay(TimeUnit pUnit) {
+            return pUnit.convert(this.deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed pOther) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), pOther.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
 
 }
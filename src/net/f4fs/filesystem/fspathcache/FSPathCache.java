@@ -0,0 +1,317 @@
+package net.f4fs.filesystem.fspathcache;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.f4fs.filesystem.partials.AMemoryPath;
+
+
+/**
+ * Bounded cache mapping absolute paths to their resolved
+ * {@link net.f4fs.filesystem.partials.AMemoryPath AMemoryPath}.
+ * Hits are answered from a concurrent map without walking the directory tree
+ * and without taking any lock. If the capacity is exceeded, an entry which was not
+ * used since the last eviction passed it gets evicted, i.e. the least recently used
+ * entries are approximated by a clock. <br>
+ * Paths which were not found are remembered for a limited time as absent,
+ * so that repeated lookups of missing paths do not walk the tree either.
+ * Each operation which changes the namespace must invalidate the affected paths.
+ * The cached paths are additionally held in sorted order, so that the paths below
+ * an invalidated directory are found without scanning the whole cache.
+ * Lookups resolved concurrently to an invalidation must not be cached,
+ * therefore entries are only added for the generation read before resolving them.
+ */
+public class FSPathCache {
+
+    private final Map<String, CacheEntry>  entries;
+
+    /**
+     * The paths of the entries, sorted so that a subtree is a range
+     */
+    private final NavigableSet<String>     sortedPaths;
+
+    /**
+     * Maximum number of entries held by this cache
+     */
+    private final int                      capacity;
+
+    /**
+     * Time in milliseconds during which a path is considered absent
+     */
+    private final long                     absentMillis;
+
+    /**
+     * Number of invalidations so far
+     */
+    private final AtomicLong               generation;
+
+    /**
+     * Whether a thread is evicting entries at the moment
+     */
+    private final AtomicBoolean            evicting;
+
+    public FSPathCache(int pCapacity) {
+        this(pCapacity, 0);
+    }
+
+    public FSPathCache(int pCapacity, long pAbsentMillis) {
+        this.capacity = pCapacity;
+        this.absentMillis = pAbsentMillis;
+        this.entries = new ConcurrentHashMap<>();
+        this.sortedPaths = new ConcurrentSkipListSet<>();
+        this.generation = new AtomicLong();
+        this.evicting = new AtomicBoolean();
+    }
+
+    /**
+     * Returns the current generation of this cache.
+     * Read it before resolving a path and pass it when caching the result.
+     *
+     * @return The number of invalidations so far
+     */
+    public long getGeneration() {
+        return this.generation.get();
+    }
+
+    /**
+     * Returns the cached memory path on the given path.
+     * Entries of which the memory path got detached from the tree
+     * or moved to another path are dropped.
+     *
+     * @param pPath The absolute path
+     * @return The cached memory path or null, if no valid entry exists
+     */
+    public AMemoryPath get(String pPath) {
+        CacheEntry entry = this.entries.get(pPath);
+
+        if (null == entry || null == entry.memoryPath) {
+            return null;
+        }
+
+        AMemoryPath memoryPath = entry.memoryPath;
+        if ((null == memoryPath.getParent() && !isRootPath(pPath)) || !pPath.equals(memoryPath.getPath())) {
+            // memory path was removed or moved in the meantime
+            remove(pPath, entry);
+            return null;
+        }
+
+        entry.referenced = true;
+
+        return memoryPath;
+    }
+
+    /**
+     * Caches the given memory path on the given path,
+     * unless the cache got invalidated since <code>pGeneration</code>
+     *
+     * @param pPath The absolute path
+     * @param pMemoryPath The memory path resolved for <code>pPath</code>
+     * @param pGeneration The generation read before resolving <code>pPath</code>
+     */
+    public void put(String pPath, AMemoryPath pMemoryPath, long pGeneration) {
+        if (this.capacity <= 0) {
+            return;
+        }
+
+        add(pPath, new CacheEntry(pMemoryPath, 0), pGeneration);
+    }
+
+    /**
+     * Checks whether the given path was not found recently
+     *
+     * @param pPath The absolute path
+     * @return True, if the path is remembered as absent
+     */
+    public boolean isAbsent(String pPath) {
+        CacheEntry entry = this.entries.get(pPath);
+
+        if (null == entry || null != entry.memoryPath) {
+            return false;
+        }
+
+        if (entry.absentUntil < System.currentTimeMillis()) {
+            remove(pPath, entry);
+            return false;
+        }
+
+        entry.referenced = true;
+
+        return true;
+    }
+
+    /**
+     * Remembers the given path as absent,
+     * unless the cache got invalidated since <code>pGeneration</code>
+     *
+     * @param pPath The absolute path which was not found
+     * @param pGeneration The generation read before resolving <code>pPath</code>
+     */
+    public void putAbsent(String pPath, long pGeneration) {
+        if (this.capacity <= 0 || this.absentMillis <= 0) {
+            return;
+        }
+
+        add(pPath, new CacheEntry(null, System.currentTimeMillis() + this.absentMillis), pGeneration);
+    }
+
+    /**
+     * Removes the entry on the given path
+     *
+     * @param pPath The path to invalidate
+     */
+    public void invalidate(String pPath) {
+        this.generation.incrementAndGet();
+        this.entries.remove(pPath);
+        removeSortedPath(pPath);
+    }
+
+    /**
+     * Removes the entry on the given path and the entries
+     * of all paths located below it
+     *
+     * @param pPath The path of the subtree to invalidate
+     */
+    public void invalidateSubtree(String pPath) {
+        invalidate(pPath);
+
+        String prefix = pPath.endsWith("/") ? pPath : pPath + "/";
+        Iterator<String> subtree = this.sortedPaths.subSet(prefix, true, prefix + Character.MAX_VALUE, true).iterator();
+        while (subtree.hasNext()) {
+            String path = subtree.next();
+            this.entries.remove(path);
+            removeSortedPath(path);
+        }
+    }
+
+    /**
+     * Removes all entries from this cache
+     */
+    public void clear() {
+        this.generation.incrementAndGet();
+        this.entries.clear();
+        this.sortedPaths.clear();
+    }
+
+    /**
+     * Adds the given entry unless the cache got invalidated since <code>pGeneration</code>,
+     * and evicts entries if the capacity is exceeded afterwards
+     *
+     * @param pPath The absolute path
+     * @param pEntry The entry to add
+     * @param pGeneration The generation read before resolving <code>pPath</code>
+     */
+    private void add(String pPath, CacheEntry pEntry, long pGeneration) {
+        if (pGeneration != this.generation.get()) {
+            return;
+        }
+
+        this.entries.put(pPath, pEntry);
+        this.sortedPaths.add(pPath);
+
+        if (pGeneration != this.generation.get()) {
+            // the invalidation may have missed the entry
+            remove(pPath, pEntry);
+            return;
+        }
+
+        if (this.entries.size() > this.capacity) {
+            evict(pPath);
+        }
+    }
+
+    /**
+     * Evicts entries until the capacity is not exceeded anymore. Entries used since
+     * they were passed the last time are spared once. Only one thread evicts at a time,
+     * the others do not wait for it.
+     *
+     * @param pAddedPath The path added last, which is not evicted
+     */
+    private void evict(String pAddedPath) {
+        if (!this.evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Iterator<Map.Entry<String, CacheEntry>> clock = this.entries.entrySet().iterator();
+            while (this.entries.size() > this.capacity) {
+                if (!clock.hasNext()) {
+                    clock = this.entries.entrySet().iterator();
+                    if (!clock.hasNext()) {
+                        break;
+                    }
+                }
+
+                Map.Entry<String, CacheEntry> candidate = clock.next();
+                if (candidate.getKey().equals(pAddedPath)) {
+                    continue;
+                }
+
+                if (candidate.getValue().referenced) {
+                    candidate.getValue().referenced = false;
+                    continue;
+                }
+
+                remove(candidate.getKey(), candidate.getValue());
+            }
+        } finally {
+            this.evicting.set(false);
+        }
+    }
+
+    /**
+     * Removes the given entry, if it is still cached on the given path
+     *
+     * @param pPath The absolute path
+     * @param pEntry The entry to remove
+     */
+    private void remove(String pPath, CacheEntry pEntry) {
+        if (this.entries.remove(pPath, pEntry)) {
+            removeSortedPath(pPath);
+        }
+    }
+
+    /**
+     * Removes the given path from the sorted paths, unless
+     * an entry got added on it again in the meantime
+     *
+     * @param pPath The absolute path
+     */
+    private void removeSortedPath(String pPath) {
+        this.sortedPaths.remove(pPath);
+        if (this.entries.containsKey(pPath)) {
+            this.sortedPaths.add(pPath);
+        }
+    }
+
+    private boolean isRootPath(String pPath) {
+        return pPath.isEmpty() || pPath.equals("/");
+    }
+
+    /**
+     * Memory path cached on a path, or the time until which the path is considered absent
+     */
+    private static class CacheEntry {
+
+        /**
+         * The memory path or null, if the path is absent
+         */
+        private final AMemoryPath memoryPath;
+
+        private final long        absentUntil;
+
+        /**
+         * Whether the entry was used since the last eviction passed it
+         */
+        private volatile boolean  referenced;
+
+        public CacheEntry(AMemoryPath pMemoryPath, long pAbsentUntil) {
+            this.memoryPath = pMemoryPath;
+            this.absentUntil = pAbsentUntil;
+        }
+    }
+}
@@ -46,6 +46,23 @@ public abstract class AMemoryPath {
      */
     private long            lastModificationTimestamp;
 
+    /**
+     * Cached absolute path of this path segment.
+     * Null, if it has to be rebuilt from the parents
+     */
+    private volatile String    path;
+
+    /**
+     * Cached DHT key of this path segment, i.e. the hash of its path.
+     * Null, if it has to be rebuilt
+     */
+    private volatile Number160 pathKey;
+
+    /**
+     * Guards rebuilding and invalidating the cached path and key
+     */
+    private final Object       pathLock = new Object();
+
     public AMemoryPath(final String name, final FSPeer peer) {
         this(name, null, peer);
     }
@@ -55,24 +72,9 @@ public abstract class AMemoryPath {
         this.parent = parent;
         this.peer = peer;
 
+        // only created locally, the path gets stored in the DHT once it is written
         this.lastAccessTimestamp = System.currentTimeMillis() / 1000l;
         this.lastModificationTimestamp = this.lastAccessTimestamp;
-
-        // Store an empty element
-        try {
-            // If some data already exists in the DHT, do not update the value of the key
-            // (E.g. could be the case, when invoked from FSFileSyncer)
-            Data data = peer.getData(Number160.createHash(getPath()));
-
-            if (null != data) {
-                logger.debug("MemoryPath with name '" + name + "' already existed in the DHT on path '" + getPath() + "'. Creating it locally...");
-                return;
-            }
-
-        } catch (IOException | InterruptedException | ClassNotFoundException e) {
-            logger.error("Could not create MemoryPath with name '" + name + "' on path '" + getPath() + "'. Message: " + e.getMessage());
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -96,10 +98,10 @@ public abstract class AMemoryPath {
         try {
             // a symbolic link must contain the name of the target as content
             // as stated in <code>man ln</code>
-            peer.putData(Number160.createHash(getPath()), new Data(target.getBytes()));
+            peer.putData(getPathKey(), new Data(target.getBytes()));
 
             // create the symlink to the target
-            peer.putPath(Number160.createHash(getPath()), new Data(existingPath.getPath()));
+            peer.putLink(getPath(), existingPath.getPath());
 
         } catch (InterruptedException | IOException | ClassNotFoundException e) {
             logger.error("Could not create symlink '" + target + "' on path '" + getPath() + "'. Message: " + e.getMessage());
@@ -111,9 +113,10 @@ public abstract class AMemoryPath {
         if (parent != null) {
             try {
                 String path = getPath();
+                Number160 pathKey = getPathKey();
 
-                peer.removePath(Number160.createHash(path));
-                peer.removeData(Number160.createHash(path));
+                peer.removePath(pathKey, path);
+                peer.removeData(pathKey);
 
                 // be aware that this must be after getPath()
                 // otherwise the parent dir will
@@ -153,7 +156,7 @@ public abstract class AMemoryPath {
 
         String oldName = this.name;
         try {
-            Data data = peer.getData(Number160.createHash(getPath()));
+            Data data = peer.getData(getPathKey());
 
             ByteBuffer content = null;
             if (null == data) {
@@ -164,7 +167,15 @@ public abstract class AMemoryPath {
                 content = ByteBuffer.wrap(data.toBytes()); // content stores some bytes as string
             }
 
+            // re-index this path in its parent, since children are looked up by name
+            if (null != this.parent) {
+                this.parent.deleteChild(this);
+            }
             this.name = newName;
+            invalidatePath();
+            if (null != this.parent) {
+                this.parent.addMemoryPath(this);
+            }
 
             logger.info("Renamed file with name '" + oldName + "' to '" + newName + "' on path '" + getPath() + "'.");
         } catch (InterruptedException | ClassNotFoundException | IOException e) {
@@ -186,6 +197,7 @@ public abstract class AMemoryPath {
 
     public void setName(String pName) {
         name = pName;
+        invalidatePath();
     }
 
     public MemoryDirectory getParent() {
@@ -194,6 +206,7 @@ public abstract class AMemoryPath {
 
     public void setParent(MemoryDirectory pParent) {
         parent = pParent;
+        invalidatePath();
     }
 
     public FSPeer getPeer() {
@@ -226,16 +239,60 @@ public abstract class AMemoryPath {
      * @return The memory path
      */
     public String getPath() {
-        String path = this.name;
+        String cachedPath = this.path;
+        if (null != cachedPath) {
+            return cachedPath;
+        }
 
-        if (null != this.parent) {
-            if ("/" != this.parent.getPath()) {
-                path = this.parent.getPath() + "/" + path;
-            } else {
-                path = "/" + path;
+        synchronized (this.pathLock) {
+            if (null == this.path) {
+                String builtPath = this.name;
+
+                if (null != this.parent) {
+                    String parentPath = this.parent.getPath();
+                    if (!"/".equals(parentPath)) {
+                        builtPath = parentPath + "/" + builtPath;
+                    } else {
+                        builtPath = "/" + builtPath;
+                    }
+                }
+
+                this.path = builtPath;
+            }
+
+            return this.path;
+        }
+    }
+
+    /**
+     * Returns the key of this path segment in the DHT,
+     * i.e. the hash of its path
+     * 
+     * @return The key of this memory path
+     */
+    public Number160 getPathKey() {
+        Number160 cachedKey = this.pathKey;
+        if (null != cachedKey) {
+            return cachedKey;
+        }
+
+        synchronized (this.pathLock) {
+            if (null == this.pathKey) {
+                this.pathKey = Number160.createHash(getPath());
             }
+
+            return this.pathKey;
         }
+    }
 
-        return path;
+    /**
+     * Drops the cached path and key of this path segment.
+     * Must be invoked whenever the name or the parent changes.
+     */
+    protected void invalidatePath() {
+        synchronized (this.pathLock) {
+            this.path = null;
+            this.pathKey = null;
+        }
     }
 }
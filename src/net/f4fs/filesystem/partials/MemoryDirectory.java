@@ -1,9 +1,20 @@
 package net.f4fs.filesystem.partials;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.f4fs.filesystem.util.FSFileUtils;
 import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.path.DirectoryDigest;
 import net.fusejna.DirectoryFiller;
 import net.fusejna.StructStat.StatWrapper;
 import net.fusejna.types.TypeMode.NodeType;
@@ -15,50 +26,314 @@ import org.slf4j.LoggerFactory;
 public class MemoryDirectory
         extends AMemoryPath {
 
-    private final Logger            logger   = LoggerFactory.getLogger(MemoryDirectory.class);
+    private final Logger                           logger   = LoggerFactory.getLogger(MemoryDirectory.class);
 
-    private final List<AMemoryPath> contents = new ArrayList<AMemoryPath>();
+    /**
+     * Children of this directory, indexed by their name.
+     * Lookups do not need to hold the monitor of this directory.
+     */
+    private final ConcurrentMap<String, AMemoryPath> contents = new ConcurrentHashMap<>();
+
+    /**
+     * Number of changes of the names below this directory
+     */
+    private final AtomicLong                       changes  = new AtomicLong();
+
+    /**
+     * Digest of the names below this directory, together with the number
+     * of changes at the time it was computed
+     */
+    private volatile CachedDigest                  digest;
+
+    /**
+     * Whether the children stored in the DHT were added to this directory.
+     * Directories which are not loaded yet only contain the children created locally.
+     */
+    private volatile boolean                       loaded;
+
+    /**
+     * Digest of this directory as stored by the peers, used
+     * in place of the own digest as long as this directory is not loaded
+     */
+    private volatile byte[]                        listedDigest;
 
     public MemoryDirectory(final String name, FSPeer peer) {
+        this(name, peer, true);
+    }
+
+    /**
+     * @param name The name of this directory
+     * @param peer The peer
+     * @param pLoaded Whether this directory already contains all its children,
+     *            otherwise they are loaded from the DHT on the first access
+     */
+    public MemoryDirectory(final String name, FSPeer peer, boolean pLoaded) {
         super(name, peer);
+        this.loaded = pLoaded;
         this.logger.info("Created Directory '" + name + "' without parent on path '" + getPath() + "'.");
     }
 
     public MemoryDirectory(final String name, final MemoryDirectory parent, FSPeer peer) {
+        this(name, parent, peer, true);
+    }
+
+    /**
+     * @param name The name of this directory
+     * @param parent The directory in which this directory is located
+     * @param peer The peer
+     * @param pLoaded Whether this directory already contains all its children,
+     *            otherwise they are loaded from the DHT on the first access
+     */
+    public MemoryDirectory(final String name, final MemoryDirectory parent, FSPeer peer, boolean pLoaded) {
         super(name, parent, peer);
+        this.loaded = pLoaded;
         this.logger.info("Created Directory '" + name + "' on path '" + getPath() + "'.");
     }
 
-    public synchronized void deleteChild(final AMemoryPath child) {
-        contents.remove(child);
+    /**
+     * @return True, if the children stored in the DHT were added to this directory
+     */
+    public boolean isLoaded() {
+        return this.loaded;
     }
 
-    @Override
-    public AMemoryPath find(String path) {
-        if (super.find(path) != null) {
-            return super.find(path);
-        }
-        while (path.startsWith("/")) {
-            path = path.substring(1);
+    /**
+     * Adds the children stored in the DHT to this directory, if not done yet.
+     * Children created locally in the meantime are kept.
+     * If the children could not be fetched, loading is tried again on the next access.
+     */
+    public void load() {
+        if (this.loaded) {
+            return;
         }
+
         synchronized (this) {
-            if (!path.contains("/")) {
-                for (final AMemoryPath p : contents) {
-                    if (p.getName().equals(path)) {
-                        return p;
+            if (this.loaded) {
+                return;
+            }
+
+            try {
+                Set<String> childPaths = getPeer().getChildPaths(getPath());
+
+                for (String childPath : childPaths) {
+                    String childName = FSFileUtils.getLastComponent(childPath);
+                    if (contents.containsKey(childName)) {
+                        continue;
                     }
+
+                    // children get loaded themselves once they are accessed
+                    AMemoryPath child = FSFileUtils.isFile(childName)
+                            ? new MemoryFile(childName, this, getPeer())
+                            : new MemoryDirectory(childName, this, getPeer(), false);
+                    contents.put(childName, child);
                 }
-                return null;
+
+                this.loaded = true;
+                this.listedDigest = null;
+                invalidateDigest();
+
+                this.logger.info("Loaded '" + childPaths.size() + "' children of directory '" + getPath() + "'");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.logger.error("Interrupted while loading directory '" + getPath() + "'");
+            } catch (ClassNotFoundException | IOException e) {
+                this.logger.error("Could not load directory '" + getPath() + "'. Message: " + e.getMessage());
             }
-            final String nextName = path.substring(0, path.indexOf("/"));
-            final String rest = path.substring(path.indexOf("/"));
-            for (final AMemoryPath p : contents) {
-                if (p.getName().equals(nextName)) {
-                    return p.find(rest);
+        }
+    }
+
+    public synchronized void deleteChild(final AMemoryPath child) {
+        if (null == child) {
+            return;
+        }
+
+        // only remove the entry if it still references the given child
+        if (contents.remove(child.getName(), child)) {
+            invalidateDigest();
+        }
+    }
+
+    /**
+     * Returns the digest of the names of all elements located below this directory.
+     * The digest is computed again only after a change below this directory. <br>
+     * Subdirectories which are not loaded yet contribute the digest last seen on the DHT.
+     * 
+     * @return The digest
+     */
+    public DirectoryDigest getDigest() {
+        return getCachedDigest().digest;
+    }
+
+    /**
+     * Checks whether the digest of this directory covers all elements located below it,
+     * i.e. whether each subdirectory is loaded or its digest on the DHT is known
+     * 
+     * @return True, if the digest may be stored for the other peers
+     */
+    public boolean isDigestComplete() {
+        return getCachedDigest().complete;
+    }
+
+    /**
+     * Sets the digest of this directory as stored by the peers.
+     * Used in place of the own digest until this directory is loaded.
+     * 
+     * @param pDigest The digest stored by the peers
+     */
+    public void setListedDigest(byte[] pDigest) {
+        if (this.loaded) {
+            return;
+        }
+
+        this.listedDigest = pDigest.clone();
+        invalidateDigest();
+    }
+
+    private CachedDigest getCachedDigest() {
+        CachedDigest cached = this.digest;
+        long changeCount = this.changes.get();
+        if (null != cached && cached.changeCount == changeCount) {
+            return cached;
+        }
+
+        boolean complete = true;
+        Map<String, byte[]> children = new HashMap<>();
+        for (AMemoryPath child : contents.values()) {
+            if (child instanceof MemoryDirectory) {
+                MemoryDirectory childDirectory = (MemoryDirectory) child;
+                byte[] childListedDigest = childDirectory.listedDigest;
+
+                if (!childDirectory.isLoaded() && null != childListedDigest) {
+                    children.put(child.getName(), childListedDigest);
+                } else {
+                    CachedDigest childDigest = childDirectory.getCachedDigest();
+                    children.put(child.getName(), childDigest.digest.getDigest());
+                    complete &= childDirectory.isLoaded() && childDigest.complete;
                 }
+            } else if (child instanceof MemorySymLink) {
+                children.put(child.getName(), DirectoryDigest.symlinkHash(child.getName()));
+            } else {
+                children.put(child.getName(), DirectoryDigest.fileHash(child.getName()));
             }
         }
-        return null;
+
+        // a change in the meantime increased the count, so the digest gets computed again next time
+        cached = new CachedDigest(changeCount, new DirectoryDigest(children), complete);
+        this.digest = cached;
+
+        return cached;
+    }
+
+    /**
+     * Marks the digest of this directory and of all its parents as outdated
+     */
+    protected void invalidateDigest() {
+        this.changes.incrementAndGet();
+
+        MemoryDirectory parent = getParent();
+        if (null != parent) {
+            parent.invalidateDigest();
+        }
+    }
+
+    /**
+     * Drops the cached path of this directory
+     * and of all elements located below it
+     */
+    @Override
+    protected void invalidatePath() {
+        super.invalidatePath();
+
+        // Note: the own lock is not held here, children are invalidated one after another
+        for (final AMemoryPath child : contents.values()) {
+            child.invalidatePath();
+        }
+    }
+
+    /**
+     * Returns the direct child with the given name
+     * without loading this directory
+     * 
+     * @param pName The name of the child
+     * @return The child or null, if no such child exists locally
+     */
+    public AMemoryPath getChild(final String pName) {
+        return contents.get(pName);
+    }
+
+    /**
+     * Returns the direct child with the given name.
+     * Loads this directory if the child does not exist locally.
+     * 
+     * @param pName The name of the child
+     * @return The child or null, if no such child exists
+     */
+    public AMemoryPath lookup(final String pName) {
+        AMemoryPath child = contents.get(pName);
+        if (null != child || this.loaded) {
+            return child;
+        }
+
+        load();
+
+        return contents.get(pName);
+    }
+
+    /**
+     * Finds the element on the given path,
+     * loading the directories on the way as needed
+     */
+    @Override
+    public AMemoryPath find(String path) {
+        return find(path, true);
+    }
+
+    /**
+     * Finds the element on the given path among
+     * the elements which exist locally, without loading any directory
+     * 
+     * @param path The path relative to this directory
+     * @return The element or null, if it does not exist locally
+     */
+    public AMemoryPath findMaterialized(String path) {
+        return find(path, false);
+    }
+
+    private AMemoryPath find(String path, boolean pLoad) {
+        AMemoryPath self = super.find(path);
+        if (null != self) {
+            return self;
+        }
+
+        // walk the path segment by segment, each one is a single hash lookup
+        AMemoryPath current = this;
+        int start = 0;
+        final int length = path.length();
+        while (start < length) {
+            if (path.charAt(start) == '/') {
+                start++;
+                continue;
+            }
+
+            if (!(current instanceof MemoryDirectory)) {
+                return null;
+            }
+
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            String childName = path.substring(start, end);
+            current = pLoad ? ((MemoryDirectory) current).lookup(childName) : ((MemoryDirectory) current).getChild(childName);
+            if (null == current) {
+                return null;
+            }
+
+            start = end + 1;
+        }
+
+        return current;
     }
 
     @Override
@@ -105,29 +380,40 @@ public class MemoryDirectory
     }
 
     public synchronized void mkdir(final String lastComponent) {
-        // stores also the new directory in the DHT with the correct path
-        // because this element was set as parent in the constructor
-        contents.add(new MemoryDirectory(lastComponent, this, super.getPeer()));
+        // only created locally, the caller decides whether to store it in the DHT
+        MemoryDirectory dir = new MemoryDirectory(lastComponent, this, super.getPeer());
+        contents.put(dir.getName(), dir);
+        invalidateDigest();
         this.logger.info("Created subdirectory '" + lastComponent + "' in '" + this.getPath() + "'");
     }
 
     public synchronized void mkfile(final String lastComponent) {
-        // stores also the new file in the DHT with the correct path
-        // because this element was set as parent in the constructor
-        contents.add(new MemoryFile(lastComponent, this, super.getPeer()));
+        // only created locally, the caller decides whether to store it in the DHT
+        MemoryFile file = new MemoryFile(lastComponent, this, super.getPeer());
+        contents.put(file.getName(), file);
+        invalidateDigest();
         this.logger.info("Created file '" + lastComponent + "' in '" + this.getPath() + "'");
     }
     
     public synchronized void addMemoryPath(final AMemoryPath pMemoryPath) {
-        contents.add(pMemoryPath);
+        contents.put(pMemoryPath.getName(), pMemoryPath);
+        invalidateDigest();
         this.logger.info("Created file '" + pMemoryPath.getName() + "' in '" + this.getPath() + "'");
     }
 
-    public synchronized void read(final DirectoryFiller filler) {
+    /**
+     * Adds the names of all children to the given filler.
+     * Names are listed in lexicographical order, so that
+     * the listing is stable between subsequent calls.
+     * 
+     * @param filler The filler to which the names are added
+     */
+    public void read(final DirectoryFiller filler) {
+        load();
         super.setLastAccessTimestamp((System.currentTimeMillis() / 1000l));
-        for (final AMemoryPath p : contents) {
-            filler.add(p.getName());
-        }
+        List<String> names = new ArrayList<>(contents.keySet());
+        Collections.sort(names);
+        filler.add(names);
     }
 
     /**
@@ -137,14 +423,43 @@ public class MemoryDirectory
      * @param path The already existing file to which the link should be created
      * @param target The path of the symlink which points to <code>path</code>
      */
-    public void symlink(final AMemoryPath path, final String target) {
+    public synchronized void symlink(final AMemoryPath path, final String target) {
         // stores also the new directory in the DHT with the correct path
         // because this element was set as parent in the constructor
-        contents.add(new MemorySymLink(path, target, this, super.getPeer()));
+        MemorySymLink symLink = new MemorySymLink(path, target, this, super.getPeer());
+        contents.put(symLink.getName(), symLink);
+        invalidateDigest();
         this.logger.info("Created symlink '" + target + "' in '" + this.getPath() + "'");
     }
 
-    public List<AMemoryPath> getContents() {
-        return contents;
+    /**
+     * Returns an unmodifiable view on the children of this directory.
+     * Does not load this directory, i.e. contains only the children existing locally.
+     * 
+     * @return All children of this directory
+     */
+    public Collection<AMemoryPath> getContents() {
+        return Collections.unmodifiableCollection(contents.values());
+    }
+
+    /**
+     * A digest together with the number of changes it covers
+     */
+    private static class CachedDigest {
+
+        private final long            changeCount;
+
+        private final DirectoryDigest digest;
+
+        /**
+         * Whether all subdirectories contributed their actual digest
+         */
+        private final boolean         complete;
+
+        public CachedDigest(long pChangeCount, DirectoryDigest pDigest, boolean pComplete) {
+            this.changeCount = pChangeCount;
+            this.digest = pDigest;
+            this.complete = pComplete;
+        }
     }
 }
@@ -2,14 +2,18 @@ package net.f4fs.filesystem.partials;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
 
+import net.f4fs.config.Config;
 import net.f4fs.config.FSStatConfig;
+import net.f4fs.filesystem.fscontent.FSFileContent;
 import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.data.DataVersion;
 import net.fusejna.ErrorCodes;
 import net.fusejna.StructStat.StatWrapper;
 import net.fusejna.types.TypeMode.NodeType;
-import net.tomp2p.peers.Number160;
 import net.tomp2p.storage.Data;
 
 import org.slf4j.Logger;
@@ -19,12 +23,48 @@ import org.slf4j.LoggerFactory;
 public class MemoryFile
         extends AMemoryPath {
 
-    private ByteBuffer   contents = ByteBuffer.allocate(0);
+    private final FSFileContent contents = new FSFileContent(Config.DEFAULT.getChunkSizeBytes(),
+                                                 Config.DEFAULT.getContentSpillThresholdBytes(), Config.DEFAULT.getContentSpillDirectory());
 
-    private final Logger logger   = LoggerFactory.getLogger(MemoryFile.class);
+    private final Logger        logger   = LoggerFactory.getLogger(MemoryFile.class);
 
     /**
-     * Creates a new instance of this file in the DHT
+     * Whether contents mirror a known state of this file,
+     * i.e. whether reads can be served locally once their blocks are loaded
+     */
+    private boolean             contentsLoaded;
+
+    /**
+     * Blocks of contents which hold the data of the DHT.
+     * A block has the size of a chunk in the DHT and of a page of contents.
+     */
+    private final BitSet        loadedBlocks = new BitSet();
+
+    /**
+     * Whether contents were changed locally and
+     * are not yet known to be written back to the DHT
+     */
+    private boolean             contentsDirty;
+
+    /**
+     * Version of the data in the DHT on which contents are based,
+     * null if unknown. Local changes made since are marked dirty in contents.
+     */
+    private DataVersion         contentsVersion;
+
+    /**
+     * Incremented each time contents are replaced by another version
+     */
+    private volatile long       contentsEpoch;
+
+    /**
+     * Time in milliseconds when contents were last
+     * checked against the version stored in the DHT
+     */
+    private long                lastValidation;
+
+    /**
+     * Creates a new instance of this file locally
      * 
      * @param name The name of this file
      * @param peer The peer
@@ -35,8 +75,7 @@ public class MemoryFile
     }
 
     /**
-     * Creates this file as a child of parent. Stores this instance
-     * also in the DHT
+     * Creates this file locally as a child of parent
      * 
      * @param name The name of this file
      * @param parent The directory in which to store this file
@@ -55,16 +94,12 @@ public class MemoryFile
      * @param peer The peer
      */
     public MemoryFile(final String name, final String text, final FSPeer peer) {
-        // stores an empty file in the DHT
         super(name, peer);
         try {
             final byte[] contentBytes = text.getBytes(StandardCharsets.UTF_8);
-            contents = ByteBuffer.wrap(contentBytes);
+            contents.load(ByteBuffer.wrap(contentBytes), 0);
 
-            // only update value on the content key because file was already
-            // created in parent constructor
-            String stringContent = new String(contents.array(), StandardCharsets.UTF_8);
-            super.getPeer().putData(Number160.createHash(getPath()), new Data(stringContent));
+            setContentsVersion(super.getPeer().putData(getPathKey(), new Data(contentBytes)));
 
             logger.info("Created File with name '" + name + "' on path '" + getPath() + "'.");
 
@@ -73,8 +108,8 @@ public class MemoryFile
             e.printStackTrace();
             try {
                 // remove file (also the content key in the location keys)
-                super.getPeer().removeData(Number160.createHash(getPath()));
-                super.getPeer().removePath(Number160.createHash(getPath()));
+                super.getPeer().removeData(getPathKey());
+                super.getPeer().removePath(getPathKey(), getPath());
             } catch (InterruptedException e1) {
                 logger.error("Could not create file with name '" + name + "' on path '" + getPath() + "'. Message: " + e.getMessage());
                 e.printStackTrace();
@@ -97,7 +132,8 @@ public class MemoryFile
         stat.blksize(FSStatConfig.BIGGER.getBsize());
         // The actual number of blocks allocated for the file in 512-byte units.
         // As short symbolic links are stored in the inode, this number may be zero.
-        stat.blocks(contents.capacity() / 512l);
+        // holes do not occupy any memory
+        stat.blocks(contents.getAllocatedBytes() / 512l);
 
         // ID of device containing file
         // stat.dev(dev);
@@ -124,7 +160,7 @@ public class MemoryFile
 
         // set access modes
         stat.setMode(NodeType.FILE, true, true, true, true, true, true, true, true, true);
-        stat.size(contents.capacity());
+        stat.size(contents.size());
 
         // NOTE: according to the manual entry of man 2 stat these fields should not be changed
         // RESERVED: DO NOT USE!
@@ -135,6 +171,11 @@ public class MemoryFile
 
     /**
      * Reads <i>size</i> bytes from the content of this file starting at <i>offset</i>.
+     * Contents are cached locally. Only the blocks covering the requested range
+     * which are not cached yet are fetched from the DHT, and all of them get fetched
+     * again once the version stored in the DHT differs from the cached one. <br>
+     * Only validating and loading contents locks this file, the bytes are copied
+     * into the buffer from a view on contents while other reads may proceed.
      * 
      * @param buffer The buffer to which the read bytes are written
      * @param size The amount of bytes which should get read
@@ -144,67 +185,287 @@ public class MemoryFile
      */
     public int read(final ByteBuffer buffer, final long size, final long offset) {
         super.setLastAccessTimestamp((System.currentTimeMillis() / 1000l));
-        final int bytesToRead = (int) Math.min(contents.capacity() - offset, size);
-        final byte[] bytesRead = new byte[bytesToRead];
 
-        synchronized (this) {
-            try {
-                Data data = super.getPeer().getData(Number160.createHash(getPath()));
+        final int start = buffer.position();
 
-                if (null == data) {
-                    logger.warn("Could not read file on path '" + getPath() + "' from the DHT. Data was null");
+        while (true) {
+            final long epoch;
+            synchronized (this) {
+                if (!validateContents() || !loadBlocks(offset, size)) {
                     return -ErrorCodes.EIO();
                 }
 
-                // replace current content with the content stored in the DHT
-                contents = ByteBuffer.wrap(data.toBytes());
+                epoch = this.contentsEpoch;
+            }
+
+            final int bytesRead = contents.read(buffer, offset, (int) Math.min(size, Integer.MAX_VALUE));
+
+            if (epoch == this.contentsEpoch) {
+                return bytesRead;
+            }
+
+            // contents were replaced by a newer version while copying
+            buffer.position(start);
+        }
+    }
+
+    /**
+     * Returns the version of the data in the DHT on which the
+     * current contents of this file are based
+     * 
+     * @return The version or null, if unknown
+     */
+    public synchronized DataVersion getContentsVersion() {
+        return this.contentsVersion;
+    }
+
+    /**
+     * Sets the version of the data in the DHT which matches
+     * the current contents of this file, e.g. after they got written back.
+     * Pages changed while writing back stay dirty.
+     * 
+     * @param pVersion The version of the stored contents
+     */
+    public synchronized void setContentsVersion(DataVersion pVersion) {
+        this.contentsVersion = pVersion;
+        // changes made while writing back are still to be written
+        this.contentsDirty = this.contents.hasDirtyPages();
+        this.contentsLoaded = true;
+        this.lastValidation = System.currentTimeMillis();
+        markAllBlocksLoaded();
+    }
+
+    /**
+     * Ensures that contents are up to date. Within the validation interval
+     * loaded contents are trusted, afterwards their version is compared
+     * to the one in the DHT and the contents are refetched on mismatch.
+     * Blocks are only fetched lazily if the peer can fetch ranges on their own,
+     * otherwise each range would transfer the whole value, so it is fetched once.
+     * Must be called while holding the lock of this file.
+     * 
+     * @return True, if contents can be read, false if they could not be fetched
+     */
+    private boolean validateContents() {
+        long now = System.currentTimeMillis();
+
+        if (this.contentsDirty || (this.contentsLoaded && now - this.lastValidation < Config.DEFAULT.getReadCacheValidationMillis())) {
+            // local changes must not be replaced by the older content in the DHT
+            return true;
+        }
+
+        try {
+            DataVersion version = super.getPeer().getDataVersion(getPathKey());
+
+            if (this.contentsLoaded && null != version && version.equals(this.contentsVersion)) {
+                this.lastValidation = now;
+                return true;
+            }
+
+            if (null != version && super.getPeer().supportsRangedReads()) {
+                // size is known, so blocks can be fetched lazily on read
+                // readers copying at the same time retry
+                this.contentsEpoch++;
+                contents.reset(version.getSize());
+                this.loadedBlocks.clear();
+                this.contentsVersion = version;
+                this.contentsLoaded = true;
+                this.lastValidation = now;
+
+                return true;
+            }
+
+            Data data = super.getPeer().getData(getPathKey());
+
+            if (null == data) {
+                if (this.contentsLoaded) {
+                    // contents were not written back yet
+                    this.lastValidation = now;
+                    return true;
+                }
+
+                logger.warn("Could not read file on path '" + getPath() + "' from the DHT. Data was null");
+                return false;
+            }
+
+            // replace current content with the content stored in the DHT
+            this.contentsEpoch++;
+            contents.reset(0);
+            contents.load(ByteBuffer.wrap(data.toBytes()), 0);
+            loadedBlocks.clear();
+            markAllBlocksLoaded();
+            this.contentsVersion = version;
+            this.contentsLoaded = true;
+            this.lastValidation = now;
+
+            this.logger.trace("Fetched contents of file on path '" + getPath() + "' in version '" + version + "' from the DHT");
+
+            return true;
+        } catch (ClassNotFoundException | IOException | InterruptedException e) {
+            logger.error("Could not read contents of file on path '" + getPath() + "'. StackTrace: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Fetches the blocks covering the given range of contents
+     * which are not loaded yet. Consecutive missing blocks are fetched
+     * with a single range request.
+     * Must be called while holding the lock of this file.
+     * 
+     * @param pOffset Start of the range
+     * @param pLength Length of the range
+     * @return True, if all blocks of the range are loaded, false otherwise
+     */
+    private boolean loadBlocks(long pOffset, long pLength) {
+        long end = Math.min(pOffset + pLength, contents.size());
+
+        if (pOffset >= end) {
+            return true;
+        }
+
+        int blockSize = Config.DEFAULT.getChunkSizeBytes();
+        int lastBlock = (int) ((end - 1) / blockSize);
+        int missingBlock = this.loadedBlocks.nextClearBit((int) (pOffset / blockSize));
+
+        while (missingBlock <= lastBlock) {
+            int nextLoadedBlock = this.loadedBlocks.nextSetBit(missingBlock);
+            int runEnd = (nextLoadedBlock < 0 || nextLoadedBlock > lastBlock) ? lastBlock + 1 : nextLoadedBlock;
+
+            long start = (long) missingBlock * blockSize;
+            int length = (int) (Math.min((long) runEnd * blockSize, contents.size()) - start);
+
+            try {
+                Data data = super.getPeer().getDataRange(getPathKey(), start, length);
+
+                if (null == data) {
+                    logger.warn("Could not read range of file on path '" + getPath() + "' from the DHT. Data was null");
+                    return false;
+                }
 
+                byte[] bytes = data.toBytes();
+                contents.load(ByteBuffer.wrap(bytes, 0, Math.min(bytes.length, length)), start);
             } catch (ClassNotFoundException | IOException | InterruptedException e) {
-                logger.error("Could not read contents of file on path '" + getPath() + "'. StackTrace: " + e.getMessage());
-                e.printStackTrace();
-                return -ErrorCodes.EIO();
+                logger.error("Could not read range of file on path '" + getPath() + "'. Message: " + e.getMessage());
+                return false;
             }
 
+            this.loadedBlocks.set(missingBlock, runEnd);
+            missingBlock = this.loadedBlocks.nextClearBit(runEnd);
+        }
+
+        return true;
+    }
+
+    /**
+     * Fetches the block containing the given position, unless it is not
+     * loaded yet and gets overwritten completely by the given range
+     * 
+     * @param pPosition A position within the block
+     * @param pWriteStart Start of the written range
+     * @param pWriteEnd End of the written range, exclusive
+     * @return True, if the bytes of the block which are kept are loaded
+     */
+    private boolean loadPartiallyWrittenBlock(long pPosition, long pWriteStart, long pWriteEnd) {
+        int blockSize = Config.DEFAULT.getChunkSizeBytes();
+        long blockStart = (pPosition / blockSize) * blockSize;
+        long blockEnd = Math.min(blockStart + blockSize, contents.size());
+
+        if (pWriteStart <= blockStart && pWriteEnd >= blockEnd) {
+            return true;
+        }
+
+        return loadBlocks(blockStart, 1);
+    }
+
+    /**
+     * Fetches the last block of contents if it is not complete,
+     * since a hole appended to the contents starts within it
+     * 
+     * @return True, if the last block is loaded
+     */
+    private boolean loadLastBlock() {
+        long size = contents.size();
+        if (0 == size % Config.DEFAULT.getChunkSizeBytes()) {
+            return true;
+        }
+
+        return loadBlocks(size - 1, 1);
+    }
 
-            contents.position((int) offset);
-            contents.get(bytesRead, 0, bytesToRead);
-            buffer.put(bytesRead);
-            contents.position(0); // Rewind
+    /**
+     * Marks all blocks of contents as loaded
+     */
+    private void markAllBlocksLoaded() {
+        markBlocksLoaded(0, contents.size());
+    }
+
+    /**
+     * Marks the blocks lying completely within the given range of contents as loaded,
+     * as well as the last block of contents if the range reaches their end
+     * 
+     * @param pStart Start of the range
+     * @param pEnd End of the range, exclusive
+     */
+    private void markBlocksLoaded(long pStart, long pEnd) {
+        int blockSize = Config.DEFAULT.getChunkSizeBytes();
+        long end = Math.min(pEnd, contents.size());
+        long firstBlock = (pStart + blockSize - 1) / blockSize;
+        long lastBlock = (end >= contents.size()) ? (end + blockSize - 1) / blockSize : end / blockSize;
+
+        if (firstBlock < lastBlock) {
+            this.loadedBlocks.set((int) firstBlock, (int) lastBlock);
         }
+    }
 
-        return bytesToRead;
+    /**
+     * Removes this file and releases the memory
+     * or spill file held by its contents
+     */
+    @Override
+    public synchronized void delete() {
+        super.delete();
+        contents.release();
     }
 
     /**
      * Causes this file to be truncated to a
      * size of precisely <i>size</i> bytes.
      * If the file is currently larger than <i>size</i>,
-     * the contents after are lost.
+     * the contents after are lost. If it is smaller, it is extended
+     * by a hole reading as zeros, for which no pages are allocated.
+     * Blocks which are not loaded yet stay so, only the last block
+     * of an extended file gets loaded, since the hole starts within it.
      * 
      * @param size The size to which it should be truncated
      */
     public synchronized void truncate(final long size) {
         super.setLastModificationTimestamp((System.currentTimeMillis() / 1000l));
-        if (size < contents.capacity()) {
-            // Need to create a new, smaller buffer
-            final ByteBuffer newContents = ByteBuffer.allocate((int) size);
-            final byte[] bytesRead = new byte[(int) size];
 
-            // writes as much bytes of contents into bytesRead
-            contents.get(bytesRead);
+        long oldSize = contents.size();
+        if (size == oldSize) {
+            return;
+        }
 
-            // update the value on disk
-            newContents.put(bytesRead);
-            contents = newContents;
-            
-            this.logger.info("Truncated '" + this.getPath() + "' to '" + size + "' bytes");
+        if (size > oldSize && !loadLastBlock()) {
+            this.logger.warn("Could not load the last block of file on path '" + this.getPath() + "' before extending it");
+            return;
         }
+
+        // pages after the new end are released, an extension is a hole, no bytes are copied
+        contents.truncate(size);
+        contentsDirty = true;
+        markBlocksLoaded(oldSize, size);
+
+        this.logger.info("Truncated '" + this.getPath() + "' to '" + size + "' bytes");
     }
 
     /**
      * Writes up to <i>bufSize</i> bytes to the
      * file referenced by the file descriptor <i>buffer</i>
-     * from the buffer starting at <i>writeOffset</i> <br>
+     * from the buffer starting at <i>writeOffset</i>.
+     * Only the blocks which are written partially get loaded first,
+     * the others are loaded once they are read. <br>
      * <b style="color:red">NOTE: This method gets called multiple times for a certain file because it gets written in chunks</b>
      * 
      * @param buffer The byteBuffer with the file content in it
@@ -215,21 +476,29 @@ public class MemoryFile
      */
     public int write(final ByteBuffer buffer, final long bufSize, final long writeOffset) {
         super.setLastModificationTimestamp((System.currentTimeMillis() / 1000l));
-        final int maxWriteIndex = (int) (writeOffset + bufSize);
-        final byte[] bytesToWrite = new byte[(int) bufSize];
         synchronized (this) {
-            if (maxWriteIndex > contents.capacity()) {
-                // Need to create a new, larger buffer
-                final ByteBuffer newContents = ByteBuffer.allocate(maxWriteIndex);
-                newContents.put(contents);
-                contents = newContents;
+            long writeEnd = writeOffset + bufSize;
+            long oldSize = contents.size();
+
+            // the bytes of partially written blocks which are kept must be known,
+            // as well as those of the block in which a hole before the write starts
+            if (!loadPartiallyWrittenBlock(writeOffset, writeOffset, writeEnd)
+                    || !loadPartiallyWrittenBlock(Math.max(writeOffset, writeEnd - 1), writeOffset, writeEnd)
+                    || (writeOffset > oldSize && !loadLastBlock())) {
+                return -ErrorCodes.EIO();
             }
-            buffer.get(bytesToWrite, 0, (int) bufSize);
 
-            // update with this chunk
-            contents.position((int) writeOffset);
-            contents.put(bytesToWrite);
-            contents.position(0); // Rewind
+            // only the pages touched get allocated, the existing ones are not copied
+            final ByteBuffer bytesToWrite = buffer.duplicate();
+            bytesToWrite.limit(bytesToWrite.position() + (int) bufSize);
+            contents.write(bytesToWrite, writeOffset);
+            buffer.position(bytesToWrite.position());
+
+            // local changes are newer than anything in the DHT
+            contentsDirty = true;
+            contentsLoaded = true;
+            markBlocksLoaded(writeOffset, writeEnd);
+            markBlocksLoaded(oldSize, contents.size());
         }
         
         this.logger.trace("Wrote '" + bufSize + "' bytes starting at offset '" + writeOffset + "' to file on path '" + this.getPath() + "'");
@@ -238,11 +507,101 @@ public class MemoryFile
     }
 
     /**
-     * Return the content of this MemoryFile
+     * Returns the size of this file without
+     * loading any missing blocks of its contents
      * 
-     * @return Contents ByteBuffer
+     * @return Size in bytes
      */
-    public ByteBuffer getContent() {
+    public synchronized long getSize() {
+        return contents.size();
+    }
+
+    /**
+     * Return the content of this MemoryFile.
+     * Blocks which are not loaded yet are not fetched,
+     * read them through {@link #newReadChannel()} instead.
+     * 
+     * @return The paged contents
+     */
+    public synchronized FSFileContent getContent() {
         return contents;
     }
+
+    /**
+     * Returns a read-only channel on the contents of this file, which fetches
+     * the blocks not loaded yet once they are read. Therefore, writing back only
+     * the changed parts of the contents does not fetch the other blocks.
+     * 
+     * @return The channel, starting at the start of the contents
+     */
+    public SeekableByteChannel newReadChannel() {
+        return new LoadingChannel(contents.newReadChannel());
+    }
+
+    /**
+     * Reads the contents, fetching the blocks which are not loaded yet
+     */
+    private class LoadingChannel
+            implements SeekableByteChannel {
+
+        private final SeekableByteChannel channel;
+
+        public LoadingChannel(SeekableByteChannel pChannel) {
+            this.channel = pChannel;
+        }
+
+        @Override
+        public int read(ByteBuffer pTarget)
+                throws IOException {
+            synchronized (MemoryFile.this) {
+                if (!loadBlocks(this.channel.position(), pTarget.remaining())) {
+                    throw new IOException("Could not load contents of file on path '" + getPath() + "'");
+                }
+
+                return this.channel.read(pTarget);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer pSource)
+                throws IOException {
+            return this.channel.write(pSource);
+        }
+
+        @Override
+        public long position()
+                throws IOException {
+            return this.channel.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long pPosition)
+                throws IOException {
+            this.channel.position(pPosition);
+            return this;
+        }
+
+        @Override
+        public long size()
+                throws IOException {
+            return this.channel.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long pSize)
+                throws IOException {
+            return this.channel.truncate(pSize);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.channel.isOpen();
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            this.channel.close();
+        }
+    }
 }
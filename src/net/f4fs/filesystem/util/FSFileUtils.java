@@ -47,6 +47,24 @@ public class FSFileUtils {
         return pPath.substring(pPath.lastIndexOf("/") + 1);
     }
     
+    /**
+     * Returns the path of the directory containing the given path
+     * 
+     * @param pPath The absolute path of which to get the parent
+     * @return The path without its last part, '/' for the root directory itself
+     */
+    public static String getParentDirectory(String pPath) {
+        while (pPath.length() > 1 && pPath.endsWith("/")) {
+            pPath = pPath.substring(0, pPath.length() - 1);
+        }
+
+        int lastSlash = pPath.lastIndexOf("/");
+        if (lastSlash <= 0) {
+            return "/";
+        }
+        return pPath.substring(0, lastSlash);
+    }
+
     /**
      * Checks if the provided file is a file or a directory
      * based on the existence of a dot in the last component of the path.
@@ -0,0 +1,26 @@
+package net.f4fs.fspeer;
+
+import net.tomp2p.dht.FutureDigest;
+import net.tomp2p.futures.BaseFutureAdapter;
+
+public class DigestListener extends BaseFutureAdapter<FutureDigest> {
+    
+    private final String _output;
+    private final String _peerIP;
+    
+    public DigestListener(String peerIP, String output){
+        _output = output;
+        _peerIP = peerIP;
+    }
+
+    @Override
+    public void operationComplete(FutureDigest future)
+            throws Exception {
+        
+        if (future.isSuccess()){ 
+            System.out.println("[Peer@" + _peerIP + "] " + _output + " successfull") ;
+        } else {
+            System.out.println("[Peer@" + _peerIP + "] " + _output + " failed") ;
+        }
+    }
+}
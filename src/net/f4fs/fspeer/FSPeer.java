@@ -3,12 +3,21 @@ package net.f4fs.fspeer;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 
 import net.f4fs.bootstrapserver.BootstrapServerAccess;
 import net.f4fs.config.Config;
+import net.f4fs.persistence.path.DirectoryDigest;
 import net.f4fs.persistence.path.IPathPersistence;
+import net.f4fs.persistence.path.JournalEntry;
+import net.f4fs.persistence.path.NamespaceJournal;
+import net.f4fs.persistence.data.ByteRange;
+import net.f4fs.persistence.data.DataVersion;
 import net.f4fs.persistence.data.IDataPersistence;
 import net.f4fs.persistence.PersistenceFactory;
 import net.f4fs.util.RandomDevice;
@@ -34,12 +43,45 @@ import org.slf4j.LoggerFactory;
  */
 public class FSPeer {
 
+    /**
+     * Domain from which the keys of version stamps get derived
+     */
+    private static final Number160 VERSION_DOMAIN = Number160.createHash("data-version");
+
+    /**
+     * Domain from which the keys of directory digests get derived
+     */
+    private static final Number160 DIGEST_DOMAIN  = Number160.createHash("directory-digest");
+
+    /**
+     * Key of the digest of the root directory alone
+     */
+    private static final Number160 ROOT_DIGEST_KEY = Number160.createHash("root-digest");
+
     private PeerDHT               peer;
 
-    private IDataPersistence persistence;
+    /**
+     * Stores the contents of files, chunked so that they are streamed
+     * and partially updated if enabled in the configuration
+     */
+    private IDataPersistence      persistence;
+
+    /**
+     * Stores the version stamps of the data, which are small
+     * enough to bypass chunking and consensus. <br>
+     * Each write of data costs one additional put of its stamp. The stamp is put
+     * only after the data is stored, so that a peer seeing a new stamp never
+     * fetches the older data and caches it under the new version.
+     */
+    private IDataPersistence      versionPersistence;
 
     private IPathPersistence      pathPersistence;
 
+    /**
+     * Records each change of the stored paths
+     */
+    private NamespaceJournal      journal;
+
     private BootstrapServerAccess bootstrapServerAccess;
 
     private String                ip;
@@ -47,8 +89,16 @@ public class FSPeer {
     private Logger                logger;
 
     public FSPeer() {
-        this.persistence = PersistenceFactory.getConsensusDhtOperations();
-        this.pathPersistence = PersistenceFactory.getConsensusPathOperations();
+        this.persistence = Config.DEFAULT.isChunkedDataPersistence()
+                ? PersistenceFactory.getChunkedDhtOperations()
+                : PersistenceFactory.getConsensusDhtOperations();
+        this.versionPersistence = PersistenceFactory.getDhtOperations();
+        this.pathPersistence = Config.DEFAULT.isBatchPathCommits()
+                ? PersistenceFactory.getBatchedPathOperations()
+                : Config.DEFAULT.isShardedPathIndex()
+                        ? PersistenceFactory.getShardedPathOperations()
+                        : PersistenceFactory.getConsensusPathOperations();
+        this.journal = new NamespaceJournal(Config.DEFAULT.getNamespaceJournalKey());
         this.bootstrapServerAccess = new BootstrapServerAccess();
 
         this.logger = LoggerFactory.getLogger(FSPeer.class);
@@ -128,6 +178,7 @@ public class FSPeer {
      */
     public void shutdown() {
         removeIpPortPair(peer.peerAddress().toString(), Config.DEFAULT.getPort());
+        this.journal.shutdown();
         peer.shutdown();
     }
 
@@ -163,6 +214,72 @@ public class FSPeer {
         return this.persistence.getData(this.peer, pKey);
     }
 
+    /**
+     * Writes the value stored on the given key to the given channel
+     * as it arrives, without holding all of it in memory
+     * 
+     * @param pKey The key to retrieve its value from
+     * @param pTarget The channel to which the value is written
+     * @return True, if a value was written, false if no value is stored
+     * 
+     * @throws ClassNotFoundException
+     * @throws IOException If writing failed or the value is incomplete
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    public boolean getData(Number160 pKey, WritableByteChannel pTarget)
+            throws ClassNotFoundException, IOException, InterruptedException {
+        return this.persistence.getData(this.peer, pKey, pTarget);
+    }
+
+    /**
+     * Gets <i>pLength</i> bytes of the value stored on the given key, starting at <i>pOffset</i>
+     * 
+     * @param pKey The key to retrieve the range of its value from
+     * @param pOffset Position in the value at which the range starts
+     * @param pLength Maximum number of bytes to get
+     * @return An object containing the bytes of the range or null, if no value is stored
+     * 
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    public Data getDataRange(Number160 pKey, long pOffset, int pLength)
+            throws ClassNotFoundException, IOException, InterruptedException {
+        return this.persistence.getDataRange(this.peer, pKey, pOffset, pLength);
+    }
+
+    /**
+     * Tells whether ranges of values can be fetched without transferring the whole value
+     * 
+     * @return True, if {@link #getDataRange(Number160, long, int) getDataRange} fetches only the requested range
+     */
+    public boolean supportsRangedReads() {
+        return this.persistence.supportsRangedReads();
+    }
+
+    /**
+     * Gets the version stamp of the data stored on the given key.
+     * This is a lot cheaper than fetching the data itself and should be used
+     * to check whether a local copy of the data is still up to date.
+     * 
+     * @param pKey The key of the data
+     * @return The version of the stored data or null, if no version is known
+     * 
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    public DataVersion getDataVersion(Number160 pKey)
+            throws ClassNotFoundException, IOException, InterruptedException {
+        Data data = this.versionPersistence.getData(this.peer, getVersionKey(pKey));
+
+        if (null == data) {
+            return null;
+        }
+
+        return (DataVersion) data.object();
+    }
+
     /**
      * Gets the assigned data (the path to the file) of the given content key on the default location key
      * 
@@ -196,22 +313,162 @@ public class FSPeer {
     }
 
     /**
-     * Stores the given data on the given key
+     * Gets the paths stored directly within the given directory
+     *
+     * @param pDirectoryPath The path of the directory
+     * @return The paths of the children
+     *
+     * @throws IOException
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException
+     */
+    public Set<String> getChildPaths(String pDirectoryPath)
+            throws ClassNotFoundException, InterruptedException, IOException {
+        return this.pathPersistence.getChildPaths(this.peer, pDirectoryPath);
+    }
+
+    /**
+     * Tells whether directories get loaded on their first access. This is only
+     * the case if the paths of a single directory can be fetched on their own,
+     * otherwise loading each directory would fetch all paths.
+     * 
+     * @return True, if directories are loaded lazily
+     */
+    public boolean isLazyDirectoryLoading() {
+        return Config.DEFAULT.isLazyDirectoryLoading() && this.pathPersistence.supportsChildListing();
+    }
+
+    /**
+     * Stores the given data on the given key. Additionally,
+     * a new version stamp is stored for the data.
+     * The bytes of <i>pValue</i> are the contents readers get, so store
+     * file contents as raw bytes rather than as serialized object.
      * 
      * @param pKey The key to store the data
      * @param pValue The data to store
+     * @return The version of the data which got stored
      * 
      * @throws IOException
      * @throws InterruptedException If a failure happened during await of future
      * @throws ClassNotFoundException
      */
-    public void putData(Number160 pKey, Data pValue)
+    public DataVersion putData(Number160 pKey, Data pValue)
             throws InterruptedException, ClassNotFoundException, IOException {
         this.persistence.putData(this.peer, pKey, pValue);
+
+        // the size of the contents as read back, not of the serialized data
+        DataVersion version = new DataVersion(new Number160(RandomDevice.INSTANCE.getRand()), pValue.toBytes().length);
+        this.versionPersistence.putData(this.peer, getVersionKey(pKey), new Data(version));
+
+        return version;
+    }
+
+    /**
+     * Stores the data read from the given channel on the given key,
+     * without holding all of it in memory. Additionally,
+     * a new version stamp is stored for the data.
+     * 
+     * @param pKey The key to store the data
+     * @param pSource The channel providing the data, read until its end
+     * @return The version of the data which got stored
+     * 
+     * @throws IOException If reading from the channel failed
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException
+     */
+    public DataVersion putData(Number160 pKey, ReadableByteChannel pSource)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        long size = this.persistence.putData(this.peer, pKey, pSource);
+
+        DataVersion version = new DataVersion(new Number160(RandomDevice.INSTANCE.getRand()), size);
+        this.versionPersistence.putData(this.peer, getVersionKey(pKey), new Data(version));
+
+        return version;
+    }
+
+    /**
+     * Stores the contents read from the given channel on the given key, of which only
+     * the given ranges changed since <i>pBaseVersion</i>. If the stored data is still
+     * in that version, its unchanged parts are kept. Otherwise all contents are written.
+     * Additionally, a new version stamp is stored for the data.
+     * 
+     * @param pKey The key to store the data
+     * @param pContent The channel providing the whole contents
+     * @param pChangedRanges The ranges changed since the base version, sorted by their offset, null if unknown
+     * @param pBaseVersion The version on which the contents are based, null if unknown
+     * @return The version of the data which got stored
+     * 
+     * @throws IOException If reading from the channel failed
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException
+     */
+    public DataVersion updateData(Number160 pKey, SeekableByteChannel pContent, List<ByteRange> pChangedRanges, DataVersion pBaseVersion)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        if (null == pChangedRanges || null == pBaseVersion || !pBaseVersion.equals(getDataVersion(pKey))) {
+            // the stored data was changed by someone else in the meantime
+            pContent.position(0);
+            return putData(pKey, pContent);
+        }
+
+        long size = this.persistence.updateData(this.peer, pKey, pContent, pChangedRanges);
+
+        DataVersion version = new DataVersion(new Number160(RandomDevice.INSTANCE.getRand()), size);
+        this.versionPersistence.putData(this.peer, getVersionKey(pKey), new Data(version));
+
+        return version;
+    }
+
+    /**
+     * Copies the data stored on the given key to another key, without fetching
+     * the data if the persistence supports it. The version stamp is copied along.
+     * 
+     * @param pSourceKey The key on which the data is stored
+     * @param pTargetKey The key to which the data gets copied
+     * @return True, if data was copied, false if no data is stored on <i>pSourceKey</i>
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public boolean copyData(Number160 pSourceKey, Number160 pTargetKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        if (!this.persistence.copyData(this.peer, pSourceKey, pTargetKey)) {
+            return false;
+        }
+
+        Data version = this.versionPersistence.getData(this.peer, getVersionKey(pSourceKey));
+        if (null != version) {
+            this.versionPersistence.putData(this.peer, getVersionKey(pTargetKey), version);
+        }
+
+        return true;
+    }
+
+    /**
+     * Moves the data stored on the given key to another key.
+     * The version stamp of the data moves along, as the data itself does not change.
+     * 
+     * @param pOldKey The key on which the data is stored
+     * @param pNewKey The key to which the data gets moved
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void moveData(Number160 pOldKey, Number160 pNewKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        this.persistence.moveData(this.peer, pOldKey, pNewKey);
+
+        Data version = this.versionPersistence.getData(this.peer, getVersionKey(pOldKey));
+        if (null != version) {
+            this.versionPersistence.putData(this.peer, getVersionKey(pNewKey), version);
+        }
+        this.versionPersistence.removeData(this.peer, getVersionKey(pOldKey));
     }
 
     /**
      * Stores the given data with the given content key on the default location key
+     * and records the change in the namespace journal
      * 
      * @param pContentKey The key to store the data
      * @param pValue The data to store
@@ -223,6 +480,26 @@ public class FSPeer {
     public void putPath(Number160 pContentKey, Data pValue)
             throws InterruptedException, ClassNotFoundException, IOException {
         this.pathPersistence.putPath(this.peer, pContentKey, pValue);
+        this.journal.append(this.peer, JournalEntry.added(pContentKey, (String) pValue.object()));
+    }
+
+    /**
+     * Stores a symlink with the hash of the path of the link as content key
+     * and the path of its target as value, and records the change in the namespace journal
+     * 
+     * @param pLinkPath The path of the link
+     * @param pTargetPath The path of the target
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void putLink(String pLinkPath, String pTargetPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Number160 contentKey = Number160.createHash(pLinkPath);
+
+        this.pathPersistence.putLink(this.peer, pLinkPath, new Data(pTargetPath));
+        this.journal.append(this.peer, JournalEntry.added(contentKey, pTargetPath));
     }
 
     /**
@@ -235,24 +512,160 @@ public class FSPeer {
     public void removeData(Number160 pKey)
             throws InterruptedException {
         this.persistence.removeData(this.peer, pKey);
+        this.versionPersistence.removeData(this.peer, getVersionKey(pKey));
     }
 
     /**
      * Removes the file key from the file keys which are stored with the default location key
+     * and records the change in the namespace journal
      * 
      * @param pContentKey
+     * @param pPath The path of which the hash is the content key, recorded in the journal
      * 
      * @throws InterruptedException If a failure happened during await of future
      */
-    public void removePath(Number160 pContentKey)
+    public void removePath(Number160 pContentKey, String pPath)
             throws InterruptedException {
         this.pathPersistence.removePath(this.peer, pContentKey);
+        this.journal.append(this.peer, JournalEntry.removed(pContentKey, pPath));
+    }
+
+    /**
+     * Returns the digest of the names below the given directory, as stored by the peers
+     * 
+     * @param pDirectoryPath The path of the directory
+     * @return The digest or null, if none was stored yet
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public DirectoryDigest getDirectoryDigest(String pDirectoryPath)
+            throws ClassNotFoundException, InterruptedException, IOException {
+        Data data = this.versionPersistence.getData(this.peer, Number160.createHash(pDirectoryPath).xor(DIGEST_DOMAIN));
+
+        if (null == data) {
+            return null;
+        }
+
+        return (DirectoryDigest) data.object();
+    }
+
+    /**
+     * Stores the digest of the names below the given directory.
+     * The digest of the root directory is additionally stored on its own,
+     * so that it can be compared without fetching the hashes of its children.
+     * 
+     * @param pDirectoryPath The path of the directory
+     * @param pDigest The digest
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void putDirectoryDigest(String pDirectoryPath, DirectoryDigest pDigest)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        this.versionPersistence.putData(this.peer, Number160.createHash(pDirectoryPath).xor(DIGEST_DOMAIN), new Data(pDigest));
+
+        if ("/".equals(pDirectoryPath)) {
+            this.versionPersistence.putData(this.peer, ROOT_DIGEST_KEY, new Data(pDigest.getDigest()));
+        }
+    }
+
+    /**
+     * Returns the digest of all names in the file system, as stored by the peers
+     * 
+     * @return The digest of the root directory or null, if none was stored yet
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public byte[] getRootDigest()
+            throws ClassNotFoundException, InterruptedException, IOException {
+        Data data = this.versionPersistence.getData(this.peer, ROOT_DIGEST_KEY);
+
+        if (null == data) {
+            return null;
+        }
+
+        return data.toBytes();
+    }
+
+    /**
+     * Returns the sequence number on which the next change of the paths gets recorded
+     * 
+     * @return The sequence number after the last entry of the namespace journal
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public long getJournalHead()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.journal.getHead(this.peer);
+    }
+
+    /**
+     * Returns the sequence number before which the changes of the paths are not recorded anymore
+     * 
+     * @return The sequence number of the first batch of the namespace journal
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public long getJournalTail()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.journal.getTail(this.peer);
+    }
+
+    /**
+     * Returns the changes of the paths recorded from the given sequence number on
+     * 
+     * @param pFromSequence The sequence number of the first batch of changes to return
+     * @param pMaxBatches The number of batches after which no further ones are fetched
+     * @return The batches of changes, in the order they were recorded
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public List<List<JournalEntry>> readJournal(long pFromSequence, int pMaxBatches)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.journal.read(this.peer, pFromSequence, pMaxBatches);
+    }
+
+    /**
+     * Publishes that this peer applied the changes of the paths up to the given sequence number,
+     * so that the older changes can be removed once all peers applied them
+     * 
+     * @param pSequence The sequence number of the next batch of changes to apply
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void acknowledgeJournal(long pSequence)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        this.journal.acknowledge(this.peer, pSequence);
     }
 
     public PeerDHT getPeerDHT() {
         return this.peer;
     }
 
+    /**
+     * Returns the key on which the version stamp
+     * of the data stored on the given key is located
+     * 
+     * @param pKey The key of the data
+     * @return The key of its version stamp
+     */
+    private Number160 getVersionKey(Number160 pKey) {
+        return pKey.xor(VERSION_DOMAIN);
+    }
+
     private void removeIpPortPair(String ip, int port) {
         bootstrapServerAccess.removeIpPortPair(ip, port);
     }
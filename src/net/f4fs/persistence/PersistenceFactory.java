@@ -1,13 +1,16 @@
 package net.f4fs.persistence;
 
+import net.f4fs.config.Config;
 import net.f4fs.persistence.data.ChunkedDHTOperations;
 import net.f4fs.persistence.data.ConsensusDHTOperations;
 import net.f4fs.persistence.data.DHTOperations;
 import net.f4fs.persistence.data.IDataPersistence;
 import net.f4fs.persistence.data.VersionedDHTOperations;
+import net.f4fs.persistence.path.BatchedPathOperations;
 import net.f4fs.persistence.path.ConsensusPathOperations;
 import net.f4fs.persistence.path.DirectPathOperations;
 import net.f4fs.persistence.path.IPathPersistence;
+import net.f4fs.persistence.path.ShardedPathOperations;
 
 
 /**
@@ -22,6 +25,8 @@ public class PersistenceFactory {
     private static ChunkedDHTOperations   chunkedDHTOperations;
     private static DirectPathOperations    directPathOperations;
     private static ConsensusPathOperations consensusPathOperations;
+    private static BatchedPathOperations   batchedPathOperations;
+    private static ShardedPathOperations   shardedPathOperations;
 
     private PersistenceFactory() {
     }
@@ -93,4 +98,35 @@ public class PersistenceFactory {
 
         return consensusPathOperations;
     }
+
+    /**
+     * Returns an adapter to store, get and remove
+     * paths of files on one location key per directory
+     * 
+     * @return The adapter
+     */
+    public synchronized static IPathPersistence getShardedPathOperations() {
+        if (null == shardedPathOperations) {
+            shardedPathOperations = new ShardedPathOperations();
+        }
+
+        return shardedPathOperations;
+    }
+
+    /**
+     * Returns an adapter to store paths which are put concurrently in batches
+     * through the consensus mechanism, see {@link #getConsensusPathOperations()},
+     * or sharded by directory if configured, see {@link #getShardedPathOperations()}
+     * 
+     * @return The adapter
+     */
+    public synchronized static IPathPersistence getBatchedPathOperations() {
+        if (null == batchedPathOperations) {
+            batchedPathOperations = new BatchedPathOperations(Config.DEFAULT.isShardedPathIndex()
+                    ? getShardedPathOperations()
+                    : getConsensusPathOperations());
+        }
+
+        return batchedPathOperations;
+    }
 }
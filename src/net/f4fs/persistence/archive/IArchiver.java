@@ -3,8 +3,6 @@ package net.f4fs.persistence.archive;
 import java.io.IOException;
 
 import net.f4fs.fspeer.FSPeer;
-import net.tomp2p.peers.Number160;
-import net.tomp2p.storage.Data;
 
 
 /**
@@ -17,17 +15,17 @@ import net.tomp2p.storage.Data;
 public interface IArchiver {
 
     /**
-     * Archives the given old data according to the archiver which implements this interface.
+     * Archives the data currently stored for the given path according to the archiver
+     * which implements this interface. Must be called before the data gets overwritten.
      * 
      * @param pPeerDht The PeerDHT to access the current state of the DHT
-     * @param pLocationKey The location key of the file to archive
-     * @param pOldFile The data of the old file
+     * @param pPath The path of the file to archive
      * 
      * @throws ClassNotFoundException When fetching/putting data to the DHT fails
      * @throws IOException If the version folder could not be retrieved
      * @throws InterruptedException If the thread of fetching/putting data from/to the DHT has been interrupted
      */
-    public void archive(FSPeer pFsPeer, Number160 pLocationKey, Data pOldFile)
+    public void archive(FSPeer pFsPeer, String pPath)
             throws ClassNotFoundException, IOException, InterruptedException;
 
 }
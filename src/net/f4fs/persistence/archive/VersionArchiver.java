@@ -49,27 +49,33 @@ public class VersionArchiver
     }
 
     /**
-     * {@inheritDoc}
+     * {@inheritDoc} <br>
+     * The path is not looked up by its key, and the version queue
+     * is fetched and stored only once, as this delays each write-back.
      */
-    public void archive(FSPeer pFsPeer, Number160 pLocationKey, Data pOldFile)
+    public void archive(FSPeer pFsPeer, String pPath)
             throws ClassNotFoundException, IOException, InterruptedException {
 
         this.fsPeer = pFsPeer;
 
-        // Create paths from locationKey
-        Map<String, String> extractedPaths = this.extractPaths(pLocationKey);
+        // Create paths from the path of the file
+        Map<String, String> extractedPaths = this.extractPaths(pPath);
 
-        // Check & create Version Folder
-        if (!this.versionFolderExists(extractedPaths.get(this.VERSION_FOLDER_PATH))) {
-            this.createVersionFolder(extractedPaths.get(this.VERSION_QUEUE_PATH), extractedPaths.get(this.VERSION_FOLDER_PATH));
+        // Get version queue, which exists as long as the version folder exists
+        ArrayBlockingQueue<String> versionQueue = this.getVersionQueue(extractedPaths.get(this.VERSION_QUEUE_PATH));
+        if (null == versionQueue) {
+            versionQueue = this.createVersionFolder(extractedPaths.get(this.VERSION_FOLDER_PATH));
         }
 
         // Save current file to version folder
         this.saveOldFileToVersionFolder(extractedPaths.get(this.VERSION_FOLDER_PATH), extractedPaths.get(this.FILE_NAME), extractedPaths.get(this.FILE_EXTENSION),
-                extractedPaths.get(this.VERSION_QUEUE_PATH), pOldFile);
+                versionQueue, Number160.createHash(pPath));
 
         // Make sure the version folder doesn't bloat.
-        this.pruneVersionFolder(extractedPaths.get(this.VERSION_QUEUE_PATH));
+        this.pruneVersionFolder(versionQueue);
+
+        // put version queue back to version folder
+        this.fsPeer.putData(Number160.createHash(extractedPaths.get(this.VERSION_QUEUE_PATH)), new Data(versionQueue));
     }
 
     public String getVersionFolder(Number160 pLocationKey)
@@ -95,7 +101,7 @@ public class VersionArchiver
             // Delete all version files
             while (!versionQueue.isEmpty()){
                 String versionToDelete = versionQueue.remove();
-                this.fsPeer.removePath(Number160.createHash(versionToDelete));
+                this.fsPeer.removePath(Number160.createHash(versionToDelete), versionToDelete);
                 this.fsPeer.removeData(Number160.createHash(versionToDelete));
             }
             
@@ -132,6 +138,16 @@ public class VersionArchiver
             throw new IOException("Could not retrieve file path. However, this is needed to create the version folder. Aborting...");
         }
 
+        return this.extractPaths(filePath);
+    }
+
+    /**
+     * Extract paths for the given file path
+     * 
+     * @param filePath The path of the file to archive
+     * @return A map containing path segments as described for {@link #extractPaths(Number160)}
+     */
+    protected Map<String, String> extractPaths(String filePath) {
         int slashIndex = filePath.lastIndexOf("/");
         int dotIndex = filePath.lastIndexOf(".");
 
@@ -178,28 +194,50 @@ public class VersionArchiver
 
 
     /**
-     * Creates the version folder on the given path.
-     * The version queue gets stored in the DHT on the path given
+     * Gets the version queue stored in the DHT on the path given
      * 
      * @param pVersionQueuePath The path to the version queue in the DHT
+     * @return The version queue or null, if the version folder does not exist
+     * 
+     * @throws IOException If an error happened during getting the version queue
+     * @throws ClassNotFoundException If an error happened during getting the version queue
+     * @throws InterruptedException If an error happened during getting the version queue
+     */
+    @SuppressWarnings("unchecked")
+    protected ArrayBlockingQueue<String> getVersionQueue(String pVersionQueuePath)
+            throws ClassNotFoundException, InterruptedException, IOException {
+        Data data = this.fsPeer.getData(Number160.createHash(pVersionQueuePath));
+
+        if (null == data) {
+            this.logger.info("Version queue does not exist on path '" + pVersionQueuePath + "'");
+            return null;
+        }
+
+        return (ArrayBlockingQueue<String>) data.object();
+    }
+
+    /**
+     * Creates the version folder on the given path.
+     * The returned version queue has to be stored by the caller
+     * 
      * @param pVersionFolderPath The path of the version folder
+     * @return The empty version queue of the folder
      * 
      * @throws IOException If an error happened during getting the path of the file
      * @throws ClassNotFoundException If an error happened during getting the path of the file
      * @throws InterruptedException If an error happened during getting the path of the file
      */
-    protected void createVersionFolder(String pVersionQueuePath, String pVersionFolderPath)
+    protected ArrayBlockingQueue<String> createVersionFolder(String pVersionFolderPath)
             throws InterruptedException, IOException, ClassNotFoundException {
         // Initialize version queue
         ArrayBlockingQueue<String> versionQueue = new ArrayBlockingQueue<String>(MAX_VERSIONS + 1);
 
-        // Put version queue
-        this.fsPeer.putData(Number160.createHash(pVersionQueuePath), new Data(versionQueue));
-        
         // Put version folder
         this.fsPeer.putPath(Number160.createHash(pVersionFolderPath), new Data(pVersionFolderPath));
 
         this.logger.info("Added version folder on path '" + pVersionFolderPath + "' to the DHT");
+
+        return versionQueue;
     }
     
     /**
@@ -220,7 +258,7 @@ public class VersionArchiver
         this.fsPeer.removeData(Number160.createHash(pVersionQueuePath));
         
         // Remove version folder
-        this.fsPeer.removePath(Number160.createHash(pVersionFolderPath));
+        this.fsPeer.removePath(Number160.createHash(pVersionFolderPath), pVersionFolderPath);
         
         logger.info("Removed version folder/queue on path '" + pVersionFolderPath + "' from the DHT");
     }
@@ -232,61 +270,52 @@ public class VersionArchiver
      * @param pVersionFolderPath The path to the version folder
      * @param pFilename The file name of the file to archive
      * @param pFileExtension The extension of the file to archive
-     * @param pVersionQueuePath The path to the version queue in the DHT
-     * @param pOldFile The data of the old file
+     * @param pVersionQueue The version queue to which the new version is added
+     * @param pLocationKey The location key of the file to archive
      * 
      * @throws IOException If an error happened during getting the path of the file
      * @throws ClassNotFoundException If an error happened during getting the path of the file
      * @throws InterruptedException If an error happened during getting the path of the file
      */
-    protected void saveOldFileToVersionFolder(String pVersionFolderPath, String pFilename, String pFileExtension, String pVersionQueuePath, Data pOldFile)
+    protected void saveOldFileToVersionFolder(String pVersionFolderPath, String pFilename, String pFileExtension, ArrayBlockingQueue<String> pVersionQueue, Number160 pLocationKey)
             throws InterruptedException, IOException, ClassNotFoundException {
 
         String currentVersion = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd-HHmmss"));
         String pathToArchive = pVersionFolderPath.concat("/").concat(pFilename.replace('.', '_')).concat("_").concat(currentVersion).concat(".").concat(pFileExtension);
 
-        // Put data of old version
+        // Copy data of old version, which does not transfer the contents of chunked data
         // Note: no recursion here as long as the the ...DHTOperations does not invoke VersionArchiver
-        this.fsPeer.putData(Number160.createHash(pathToArchive), pOldFile);
+        if (!this.fsPeer.copyData(pLocationKey, Number160.createHash(pathToArchive))) {
+            this.logger.warn("No data to archive on path '" + pathToArchive + "'");
+            return;
+        }
         this.fsPeer.putPath(Number160.createHash(pathToArchive), new Data(pathToArchive));
 
-        // get version queue from version folder and add new version to queue
-        @SuppressWarnings("unchecked")
-        ArrayBlockingQueue<String> versionQueue = (ArrayBlockingQueue<String>) this.fsPeer.getData(Number160.createHash(pVersionQueuePath)).object();
-        versionQueue.put(pathToArchive);
-
-        // put version queue back to version folder
-        this.fsPeer.putData(Number160.createHash(pVersionQueuePath), new Data(versionQueue));
+        // add new version to queue
+        pVersionQueue.put(pathToArchive);
     }
 
     /**
      * Prunes the version folder to a maximum of <i>MAX_VERSIONS</i> versions
      * in the version folder
      * 
-     * @param pVersionQueuePath The path to the version queue in the DHT
+     * @param pVersionQueue The version queue of the version folder
      * 
      * @throws IOException If an error happened during getting the path of the file
      * @throws ClassNotFoundException If an error happened during getting the path of the file
      * @throws InterruptedException If an error happened during getting the path of the file
      */
-    protected void pruneVersionFolder(String pVersionQueuePath)
+    protected void pruneVersionFolder(ArrayBlockingQueue<String> pVersionQueue)
             throws InterruptedException, ClassNotFoundException, IOException {
 
-        // get version queue from version folder
-        @SuppressWarnings("unchecked")
-        ArrayBlockingQueue<String> versionQueue = (ArrayBlockingQueue<String>) this.fsPeer.getData(Number160.createHash(pVersionQueuePath)).object();
-
-        if (versionQueue.size() > MAX_VERSIONS) {
+        if (pVersionQueue.size() > MAX_VERSIONS) {
             // delete version
-            String versionToDelete = versionQueue.remove();
+            String versionToDelete = pVersionQueue.remove();
             // Remove file
             this.fsPeer.removeData(Number160.createHash(versionToDelete));
             // Remove path
-            this.fsPeer.removePath(Number160.createHash(versionToDelete));
+            this.fsPeer.removePath(Number160.createHash(versionToDelete), versionToDelete);
             this.logger.info("Pruned version folder");
         }
-
-        // put version queue back to version folder
-        this.fsPeer.putData(Number160.createHash(pVersionQueuePath), new Data(versionQueue));
     }
 }
@@ -0,0 +1,296 @@
+package net.f4fs.persistence.chunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.tomp2p.peers.Number160;
+
+
+/**
+ * Lists the parts of which data stored in the DHT consists, together
+ * with their lengths so that the parts covering a certain range can be
+ * found without fetching them. A manifest either lists chunks or,
+ * for very large data, pages which are manifests listing chunks themselves. <br>
+ * The binary format is read in place, i.e. no object is created per entry:
+ *
+ * <pre>
+ * int   magic
+ * short format version
+ * byte  type (chunks or pages)
+ * long  total size of the data in bytes
+ * int   number of entries
+ * per entry: 20 byte key, followed by an int (chunks) or long (pages) length
+ * </pre>
+ */
+public class ChunkManifest {
+
+    public static final int    MAGIC             = 0x5032464d;
+
+    public static final short  FORMAT_VERSION    = 1;
+
+    private static final byte  TYPE_CHUNKS       = 0;
+
+    private static final byte  TYPE_PAGES        = 1;
+
+    private static final int   HEADER_SIZE       = 4 + 2 + 1 + 8 + 4;
+
+    private static final int   KEY_SIZE          = Number160.BYTE_ARRAY_SIZE;
+
+    private final ByteBuffer   buffer;
+
+    private final boolean      paged;
+
+    private final long         totalSize;
+
+    private final int          size;
+
+    private final int          entrySize;
+
+    /**
+     * End positions of the entries in the data, computed on first use
+     */
+    private long[]             entryEnds;
+
+    private ChunkManifest(ByteBuffer pBuffer)
+            throws IOException {
+        this.buffer = pBuffer;
+
+        if (pBuffer.remaining() < HEADER_SIZE || MAGIC != pBuffer.getInt(pBuffer.position())) {
+            throw new IOException("Data is not a chunk manifest");
+        }
+
+        short version = pBuffer.getShort(pBuffer.position() + 4);
+        if (FORMAT_VERSION != version) {
+            throw new IOException("Unsupported chunk manifest version '" + version + "'");
+        }
+
+        this.paged = TYPE_PAGES == pBuffer.get(pBuffer.position() + 6);
+        this.totalSize = pBuffer.getLong(pBuffer.position() + 7);
+        this.size = pBuffer.getInt(pBuffer.position() + 15);
+        this.entrySize = KEY_SIZE + (this.paged ? 8 : 4);
+
+        if (pBuffer.remaining() < HEADER_SIZE + (long) this.size * this.entrySize) {
+            throw new IOException("Chunk manifest is truncated");
+        }
+    }
+
+    /**
+     * Reads the manifest from the given bytes without copying them
+     *
+     * @param pBytes The encoded manifest
+     * @return The manifest
+     *
+     * @throws IOException If the bytes are not a manifest of a supported version
+     */
+    public static ChunkManifest parse(byte[] pBytes)
+            throws IOException {
+        return new ChunkManifest(ByteBuffer.wrap(pBytes));
+    }
+
+    /**
+     * Creates a manifest listing the given chunks
+     *
+     * @param pKeys The keys of the chunks
+     * @param pLengths The lengths of the chunks in bytes
+     * @return The manifest
+     */
+    public static ChunkManifest createChunkList(List<Number160> pKeys, List<Integer> pLengths) {
+        List<Long> lengths = new ArrayList<>(pLengths.size());
+        for (Integer length : pLengths) {
+            lengths.add((long) length);
+        }
+
+        return encode(TYPE_CHUNKS, pKeys, lengths);
+    }
+
+    /**
+     * Creates a manifest listing the given pages
+     *
+     * @param pKeys The keys of the pages
+     * @param pLengths The number of bytes of data covered by each page
+     * @return The manifest
+     */
+    public static ChunkManifest createPageIndex(List<Number160> pKeys, List<Long> pLengths) {
+        return encode(TYPE_PAGES, pKeys, pLengths);
+    }
+
+    /**
+     * @return True, if the entries are pages, false if they are chunks
+     */
+    public boolean isPaged() {
+        return this.paged;
+    }
+
+    /**
+     * @return The total size of the data in bytes
+     */
+    public long getTotalSize() {
+        return this.totalSize;
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the key of the given entry, read from the encoded manifest
+     *
+     * @param pIndex The index of the entry
+     * @return The key of the chunk or page
+     */
+    public Number160 getKey(int pIndex) {
+        int position = entryPosition(pIndex);
+        if (this.buffer.hasArray()) {
+            return new Number160(this.buffer.array(), this.buffer.arrayOffset() + position, KEY_SIZE);
+        }
+
+        byte[] key = new byte[KEY_SIZE];
+        ByteBuffer entry = this.buffer.duplicate();
+        entry.position(position);
+        entry.get(key);
+
+        return new Number160(key);
+    }
+
+    /**
+     * Returns the length of the given entry
+     *
+     * @param pIndex The index of the entry
+     * @return The length of the chunk or the number of bytes covered by the page
+     */
+    public long getLength(int pIndex) {
+        int position = entryPosition(pIndex) + KEY_SIZE;
+        return this.paged ? this.buffer.getLong(position) : this.buffer.getInt(position);
+    }
+
+    /**
+     * Creates a list of the keys of all entries. Use {@link #getKey(int)}
+     * to access the keys of only some entries.
+     *
+     * @return The keys of all entries
+     */
+    public List<Number160> getKeys() {
+        List<Number160> keys = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            keys.add(getKey(i));
+        }
+
+        return keys;
+    }
+
+    /**
+     * Returns the position of the given entry in the data
+     *
+     * @param pIndex The index of the entry
+     * @return The offset of the entry in bytes
+     */
+    public long getOffset(int pIndex) {
+        return 0 == pIndex ? 0 : getEntryEnds()[pIndex - 1];
+    }
+
+    /**
+     * Returns the index of the entry containing the byte at the given position
+     *
+     * @param pOffset The position in the data
+     * @return The index of the entry or {@link #size()} if the data ends before
+     */
+    public int getIndex(long pOffset) {
+        long[] ends = getEntryEnds();
+
+        int low = 0;
+        int high = this.size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ends[middle] <= pOffset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the encoded manifest
+     *
+     * @return The bytes of this manifest
+     */
+    public byte[] toBytes() {
+        ByteBuffer bytes = this.buffer.duplicate();
+        if (bytes.hasArray() && 0 == bytes.arrayOffset() && 0 == bytes.position() && bytes.array().length == bytes.remaining()) {
+            return bytes.array();
+        }
+
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+
+        return copy;
+    }
+
+    private int entryPosition(int pIndex) {
+        if (pIndex < 0 || pIndex >= this.size) {
+            throw new IndexOutOfBoundsException("Entry '" + pIndex + "' of '" + this.size + "' entries");
+        }
+
+        return this.buffer.position() + HEADER_SIZE + pIndex * this.entrySize;
+    }
+
+    private long[] getEntryEnds() {
+        if (null == this.entryEnds) {
+            long[] ends = new long[this.size];
+            long end = 0;
+            for (int i = 0; i < this.size; i++) {
+                end += getLength(i);
+                ends[i] = end;
+            }
+
+            this.entryEnds = ends;
+        }
+
+        return this.entryEnds;
+    }
+
+    private static ChunkManifest encode(byte pType, List<Number160> pKeys, List<Long> pLengths) {
+        if (pKeys.size() != pLengths.size()) {
+            throw new IllegalArgumentException("Got '" + pKeys.size() + "' keys but '" + pLengths.size() + "' lengths");
+        }
+
+        int entrySize = KEY_SIZE + (TYPE_PAGES == pType ? 8 : 4);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + pKeys.size() * entrySize);
+
+        long totalSize = 0;
+        for (Long length : pLengths) {
+            totalSize += length;
+        }
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(FORMAT_VERSION);
+        buffer.put(pType);
+        buffer.putLong(totalSize);
+        buffer.putInt(pKeys.size());
+
+        for (int i = 0; i < pKeys.size(); i++) {
+            buffer.put(pKeys.get(i).toByteArray());
+            if (TYPE_PAGES == pType) {
+                buffer.putLong(pLengths.get(i));
+            } else {
+                buffer.putInt(pLengths.get(i).intValue());
+            }
+        }
+
+        buffer.flip();
+
+        try {
+            return new ChunkManifest(buffer);
+        } catch (IOException e) {
+            // cannot happen, the header was just written
+            throw new IllegalStateException(e);
+        }
+    }
+}
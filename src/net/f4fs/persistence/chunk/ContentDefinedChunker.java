@@ -0,0 +1,109 @@
+package net.f4fs.persistence.chunk;
+
+import java.util.Random;
+
+
+/**
+ * Splits data at boundaries derived from its content (FastCDC).
+ * A gear based rolling hash is computed over the bytes and a boundary
+ * is set as soon as the masked hash is zero. Since boundaries only depend
+ * on the bytes close to them, inserting or removing bytes changes
+ * only the chunks around the edit. <br>
+ * Chunks are at least <i>min</i> and at most <i>max</i> bytes long.
+ * Below the average size a stricter mask is used than above it,
+ * which keeps the chunk sizes close to the average.
+ */
+public class ContentDefinedChunker
+        implements IChunker {
+
+    /**
+     * Seed of the gear table. Must never change,
+     * otherwise all boundaries of already stored data move
+     */
+    private static final long   GEAR_SEED = 0x4634667343444321L;
+
+    private static final long[] GEAR      = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int  minSize;
+
+    private final int  avgSize;
+
+    private final int  maxSize;
+
+    /**
+     * Mask used before the average size is reached
+     */
+    private final long strictMask;
+
+    /**
+     * Mask used after the average size is reached
+     */
+    private final long looseMask;
+
+    /**
+     * @param pMinSize Minimal size of a chunk in bytes
+     * @param pAvgSize Targeted average size of a chunk in bytes
+     * @param pMaxSize Maximal size of a chunk in bytes
+     */
+    public ContentDefinedChunker(int pMinSize, int pAvgSize, int pMaxSize) {
+        if (pMinSize <= 0 || pMinSize > pAvgSize || pAvgSize > pMaxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max, got " + pMinSize + ", " + pAvgSize + ", " + pMaxSize);
+        }
+
+        this.minSize = pMinSize;
+        this.avgSize = pAvgSize;
+        this.maxSize = pMaxSize;
+
+        int bits = 31 - Integer.numberOfLeadingZeros(pAvgSize);
+        this.strictMask = highBitsMask(bits + 1);
+        this.looseMask = highBitsMask(Math.max(1, bits - 1));
+    }
+
+    @Override
+    public int nextChunkLength(byte[] pData, int pOffset, int pLength) {
+        if (pLength <= this.minSize) {
+            return pLength;
+        }
+
+        int end = Math.min(pLength, this.maxSize);
+        int normalEnd = Math.min(end, this.avgSize);
+        long hash = 0;
+
+        int i = this.minSize;
+        for (; i < normalEnd; i++) {
+            hash = (hash << 1) + GEAR[pData[pOffset + i] & 0xff];
+            if (0 == (hash & this.strictMask)) {
+                return i + 1;
+            }
+        }
+
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[pData[pOffset + i] & 0xff];
+            if (0 == (hash & this.looseMask)) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    @Override
+    public int getMaxChunkLength() {
+        return this.maxSize;
+    }
+
+    /**
+     * Returns a mask of the given number of the highest bits,
+     * since these depend on the most bytes in the gear hash
+     */
+    private static long highBitsMask(int pBits) {
+        return -1L << (64 - pBits);
+    }
+}
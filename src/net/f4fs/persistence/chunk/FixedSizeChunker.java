@@ -0,0 +1,25 @@
+package net.f4fs.persistence.chunk;
+
+/**
+ * Splits data into chunks of the same size.
+ * Only the last chunk may be smaller.
+ */
+public class FixedSizeChunker
+        implements IChunker {
+
+    private final int chunkSize;
+
+    public FixedSizeChunker(int pChunkSize) {
+        this.chunkSize = pChunkSize;
+    }
+
+    @Override
+    public int nextChunkLength(byte[] pData, int pOffset, int pLength) {
+        return Math.min(this.chunkSize, pLength);
+    }
+
+    @Override
+    public int getMaxChunkLength() {
+        return this.chunkSize;
+    }
+}
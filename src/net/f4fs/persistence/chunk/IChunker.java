@@ -0,0 +1,27 @@
+package net.f4fs.persistence.chunk;
+
+/**
+ * Determines the boundaries at which data
+ * gets split into chunks before storing it in the DHT
+ */
+public interface IChunker {
+
+    /**
+     * Returns the length of the chunk starting at <i>pOffset</i>
+     * 
+     * @param pData The data to split
+     * @param pOffset Position in <i>pData</i> at which the chunk starts
+     * @param pLength Number of bytes left in <i>pData</i> after <i>pOffset</i>
+     * 
+     * @return The length of the chunk, at least 1 if <i>pLength</i> is positive
+     */
+    public int nextChunkLength(byte[] pData, int pOffset, int pLength);
+
+    /**
+     * Returns the maximal length of a chunk. Once this many bytes are
+     * available, the boundary of the next chunk does not depend on any later byte.
+     * 
+     * @return The maximal chunk length in bytes
+     */
+    public int getMaxChunkLength();
+}
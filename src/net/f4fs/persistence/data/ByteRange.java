@@ -0,0 +1,75 @@
+package net.f4fs.persistence.data;
+
+/**
+ * A contiguous range of bytes of some data,
+ * e.g. a part of a file changed since it was last stored
+ */
+public class ByteRange {
+
+    private final long offset;
+
+    private final long length;
+
+    /**
+     * @param pOffset Position of the first byte of the range
+     * @param pLength Number of bytes in the range
+     */
+    public ByteRange(long pOffset, long pLength) {
+        if (pOffset < 0 || pLength < 0) {
+            throw new IllegalArgumentException("Invalid range of '" + pLength + "' bytes at offset '" + pOffset + "'");
+        }
+
+        this.offset = pOffset;
+        this.length = pLength;
+    }
+
+    public long getOffset() {
+        return this.offset;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return The position after the last byte of the range
+     */
+    public long getEnd() {
+        return this.offset + this.length;
+    }
+
+    /**
+     * Checks whether this range shares at least one byte with the given one
+     *
+     * @param pFrom Start of the other range
+     * @param pTo End of the other range, exclusive
+     * @return True, if the ranges overlap
+     */
+    public boolean intersects(long pFrom, long pTo) {
+        return this.offset < pTo && pFrom < getEnd();
+    }
+
+    @Override
+    public boolean equals(Object pOther) {
+        if (this == pOther) {
+            return true;
+        }
+
+        if (!(pOther instanceof ByteRange)) {
+            return false;
+        }
+
+        ByteRange other = (ByteRange) pOther;
+        return this.offset == other.offset && this.length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(this.offset) + Long.hashCode(this.length);
+    }
+
+    @Override
+    public String toString() {
+        return "ByteRange[" + this.offset + ", " + this.length + " bytes]";
+    }
+}
@@ -1,17 +1,37 @@
 package net.f4fs.persistence.data;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Type;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import net.f4fs.config.Config;
+import net.f4fs.fspeer.DigestListener;
 import net.f4fs.fspeer.GetListener;
 import net.f4fs.fspeer.PutListener;
 import net.f4fs.fspeer.RemoveListener;
+import net.f4fs.persistence.chunk.ChunkManifest;
+import net.f4fs.persistence.chunk.ContentDefinedChunker;
+import net.f4fs.persistence.chunk.FixedSizeChunker;
+import net.f4fs.persistence.chunk.IChunker;
+import net.tomp2p.dht.FutureDigest;
 import net.tomp2p.dht.FutureGet;
 import net.tomp2p.dht.FuturePut;
 import net.tomp2p.dht.FutureRemove;
@@ -22,79 +42,124 @@ import net.tomp2p.storage.Data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
 /**
  * Chunks the data before storage and dechunks them on retrieval.
+ * The boundaries of the chunks are determined by an {@link IChunker},
+ * which splits either into chunks of fixed size or at boundaries
+ * derived from the content, depending on the configuration.
  *
- * The chunks' keys are generated as follows:
- *  Number160.createHash(pLocationKey.toString() + new String(chunk))
+ * The chunks are content addressed, i.e. the key of a chunk is the SHA-1
+ * digest of its bytes. Identical chunks of different files, of archived
+ * versions or of renamed files are therefore stored only once.
+ * The location key itself holds a binary {@link ChunkManifest} listing the chunks.
+ * For very large data it lists pages instead, which are manifests of up to
+ * {@link #MAX_CHUNKS_PER_PAGE} chunks stored content addressed like chunks.
  *
- * Where `chunk` is the byte array of that specific chunk.
+ * Each chunk or page has a reference set stored on its key xor'ed with a reference domain,
+ * holding one entry per location key whose data contains it.
+ * A chunk is only removed once its reference set got empty. <br>
+ * <b>Note:</b> Releasing a chunk is not atomic, a chunk may get lost if it is
+ * referenced anew while its last reference is being released concurrently.
  */
 public class ChunkedDHTOperations
         implements IDataPersistence {
 
-    private final static Logger logger = LoggerFactory.getLogger("ChunkedDHTOperations");
+    private final static Logger    logger              = LoggerFactory.getLogger("ChunkedDHTOperations");
+
+    /**
+     * Domain from which the keys of the reference sets of chunks get derived
+     */
+    private static final Number160 REFERENCE_DOMAIN    = Number160.createHash("chunk-references");
+
+    /**
+     * Maximal number of chunks listed by a single manifest.
+     * Data consisting of more chunks gets a paged manifest.
+     */
+    public static final int        MAX_CHUNKS_PER_PAGE = 4096;
+
+    private final IChunker         chunker;
+
+    public ChunkedDHTOperations() {
+        this(createConfiguredChunker());
+    }
+
+    public ChunkedDHTOperations(IChunker pChunker) {
+        this.chunker = pChunker;
+    }
 
     public Data getData(PeerDHT pPeer, Number160 pLocationKey)
             throws InterruptedException {
-        // Get chunk list
-        FutureGet listFutureGet = pPeer.get(pLocationKey).start();
-        listFutureGet.addListener(new GetListener(
-                pPeer.peerAddress().inetAddress().toString(),
-                "Get chunk list"));
-        listFutureGet.await();
+        ChunkManifest manifest = getManifest(pPeer, pLocationKey);
 
         // Check for directory: data.toBytes -> null
-        if (null == listFutureGet.data()) {
-            return listFutureGet.data();
+        if (null == manifest) {
+            return null;
         }
 
-        Type chunkHashesType = new TypeToken<ArrayList<Number160>>() {}.getType();
-        ArrayList<Number160> chunkHashes = null;
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         try {
-            chunkHashes = new Gson().fromJson(
-                    new String(listFutureGet.data().toBytes(), "UTF-8"), chunkHashesType);
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            streamRange(pPeer, pLocationKey, manifest, 0, manifest.getTotalSize(), Channels.newChannel(byteArrayOutputStream));
+        } catch (IOException e) {
+            logger.warn("Could not get data on location key '" + pLocationKey + "'. Message: " + e.getMessage());
+            return null;
         }
 
-        if (null != chunkHashes) {
-            ArrayList<byte[]> chunks = new ArrayList<>(chunkHashes.size());
+        return new Data(byteArrayOutputStream.toByteArray());
+    }
 
-            ArrayList<FutureGet> chunkFutureGets = new ArrayList<>();
+    /**
+     * Writes the chunks to the channel as they arrive. At most
+     * {@link Config#getChunkFetchWindow()} chunks are fetched at once,
+     * so memory usage does not depend on the size of the data.
+     */
+    @Override
+    public boolean getData(PeerDHT pPeer, Number160 pLocationKey, WritableByteChannel pTarget)
+            throws InterruptedException, IOException {
+        ChunkManifest manifest = getManifest(pPeer, pLocationKey);
 
-            // Get all the chunks
-            for (int i = 0; i < chunkHashes.size(); i++) {
-                FutureGet ft = pPeer.get(chunkHashes.get(i)).start();
-                ft.addListener(new GetListener(
-                        pPeer.peerAddress().inetAddress().toString(),
-                        "Get chunk " + (i + 1) + " of " + chunkHashes.size()));
+        if (null == manifest) {
+            return false;
+        }
 
-                chunkFutureGets.add(ft);
-            }
+        streamRange(pPeer, pLocationKey, manifest, 0, manifest.getTotalSize(), pTarget);
 
-            // Wait for the chunks to arrive, and store them in the list.
-            for (int i = 0; i < chunkFutureGets.size(); i++) {
-                chunkFutureGets.get(i).await();
-                logger.info("Wait for chunk " + (i + 1) + " of " + chunkFutureGets.size());
+        return true;
+    }
 
-                if (null != chunkFutureGets.get(i).data()) {
-                    chunks.add(i, chunkFutureGets.get(i).data().toBytes());
-                } else {
-                    logger.debug("Data chunk is null????");
-                }
-            }
+    /**
+     * Fetches only the chunks overlapping the requested range.
+     * Their positions are derived from the chunk lengths in the manifest,
+     * so no other chunk has to be looked at. Of a paged manifest,
+     * only the pages overlapping the range are fetched.
+     */
+    @Override
+    public Data getDataRange(PeerDHT pPeer, Number160 pLocationKey, long pOffset, int pLength)
+            throws InterruptedException {
+        ChunkManifest manifest = getManifest(pPeer, pLocationKey);
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            chunks.forEach(chunk -> byteArrayOutputStream.write(chunk, 0, chunk.length));
+        if (null == manifest) {
+            return null;
+        }
 
-            return new Data(byteArrayOutputStream.toByteArray());
+        long end = Math.min(pOffset + Math.max(pLength, 0), manifest.getTotalSize());
+        if (pOffset >= end) {
+            return new Data(new byte[0]);
         }
 
-        return null;
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream((int) (end - pOffset));
+        try {
+            streamRange(pPeer, pLocationKey, manifest, pOffset, end, Channels.newChannel(byteArrayOutputStream));
+        } catch (IOException e) {
+            logger.warn("Could not get range of data on location key '" + pLocationKey + "'. Message: " + e.getMessage());
+            return null;
+        }
+
+        return new Data(byteArrayOutputStream.toByteArray());
+    }
+
+    @Override
+    public boolean supportsRangedReads() {
+        return true;
     }
 
     @Override
@@ -106,112 +171,848 @@ public class ChunkedDHTOperations
     @Override
     public void putData(PeerDHT pPeer, Number160 pLocationKey, Data pData)
             throws InterruptedException, ClassNotFoundException, IOException {
-        // Save a list of chunks under the key.
-        // Key for chunks is the hash of that chunk -> Reduced storage usage. Great success!
-
-        byte[] bytes = pData.toBytes();
+        this.putData(pPeer, pLocationKey, Channels.newChannel(new ByteArrayInputStream(pData.toBytes())));
+    }
 
-        ArrayList<byte[]> chunks = new ArrayList<>();
+    /**
+     * Reads the channel into a window holding at most the data of
+     * {@link Config#getChunkUploadWindow()} chunks. Chunks are cut, hashed
+     * and uploaded from the window, so that memory usage does not depend on
+     * the size of the data. Only the keys and lengths of the chunks are kept
+     * to build the manifest at the end.
+     */
+    @Override
+    public long putData(PeerDHT pPeer, Number160 pLocationKey, ReadableByteChannel pSource)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        // Save a manifest of chunks under the key.
+        // Key for chunks is the digest of that chunk -> Reduced storage usage. Great success!
 
-        int lob = bytes.length;
+        // chunks of the previous data are referenced by this key already
+        // and chunks not used anymore have to be released afterwards
+        ChunkUpload upload = new ChunkUpload(pPeer, pLocationKey, getReferencedKeys(pPeer, getManifest(pPeer, pLocationKey), Collections.emptyMap()));
 
-        int chunkSize = Config.DEFAULT.getChunkSizeBytes();
+        int maxChunkLength = Math.max(1, this.chunker.getMaxChunkLength());
+        ByteBuffer window = ByteBuffer.allocate(maxChunkLength * 2);
+        boolean endOfSource = false;
 
         // Breaking up the chunks
-        if (lob <= chunkSize) {
-            chunks.add(bytes);
-        } else {
-            for (int i = 0; i < lob - chunkSize + 1; i += chunkSize) {
-                chunks.add(Arrays.copyOfRange(bytes, i, i + chunkSize));
+        while (!endOfSource || window.position() > 0) {
+            while (!endOfSource && window.hasRemaining()) {
+                endOfSource = pSource.read(window) < 0;
             }
 
-            if (lob % chunkSize != 0) {
-                chunks.add(Arrays.copyOfRange(bytes, lob - lob % chunkSize, lob));
+            window.flip();
+
+            // a boundary is final once a whole chunk fits, or there is no more data
+            while (window.hasRemaining() && (endOfSource || window.remaining() >= maxChunkLength)) {
+                int chunkLength = this.chunker.nextChunkLength(window.array(), window.position(), window.remaining());
+                upload.addChunk(Arrays.copyOfRange(window.array(), window.position(), window.position() + chunkLength));
+                window.position(window.position() + chunkLength);
             }
+
+            window.compact();
         }
 
-        ArrayList<Number160> chunkHashes = new ArrayList<>();
+        return upload.finish();
+    }
 
-        chunks.stream().forEach(chunk -> {
-            chunkHashes.add(Number160.createHash(pLocationKey.toString() + new String(chunk)));
-        });
+    /**
+     * Keeps each chunk of the stored data which starts at the same position in the new data,
+     * does not overlap a changed range and does not extend beyond the new end.
+     * Only the bytes not covered by such chunks are read from the channel,
+     * chunked and uploaded. As boundaries of content defined chunks depend on the
+     * content only, chunking realigns with the stored chunks shortly after a changed range.
+     */
+    @Override
+    public long updateData(PeerDHT pPeer, Number160 pLocationKey, SeekableByteChannel pSource, List<ByteRange> pChangedRanges)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        ChunkManifest oldManifest = getManifest(pPeer, pLocationKey);
 
-        ArrayList<FuturePut> futurePuts = new ArrayList<>();
+        List<ChunkManifest> oldChunkLists = null;
+        if (null != oldManifest) {
+            oldChunkLists = oldManifest.isPaged() ? fetchManifests(pPeer, oldManifest.getKeys()) : Collections.singletonList(oldManifest);
+        }
+
+        if (null == oldChunkLists) {
+            // nothing to keep
+            pSource.position(0);
+            return this.putData(pPeer, pLocationKey, pSource);
+        }
+
+        Map<Number160, ChunkManifest> oldPages = new HashMap<>();
+        if (oldManifest.isPaged()) {
+            for (int i = 0; i < oldChunkLists.size(); i++) {
+                oldPages.put(oldManifest.getKey(i), oldChunkLists.get(i));
+            }
+        }
+
+        ChunkUpload upload = new ChunkUpload(pPeer, pLocationKey, getReferencedKeys(pPeer, oldManifest, oldPages));
+
+        int maxChunkLength = Math.max(1, this.chunker.getMaxChunkLength());
+        ByteBuffer window = ByteBuffer.allocate(maxChunkLength * 2);
+        long windowOffset = 0;
+
+        long size = pSource.size();
+        long position = 0;
+        int keptChunks = 0;
+
+        // position of the next stored chunk
+        int oldList = 0;
+        int oldEntry = 0;
+        long oldOffset = 0;
+        int changedRange = 0;
+
+        while (position < size) {
+            while (oldList < oldChunkLists.size() && oldOffset < position) {
+                oldOffset += oldChunkLists.get(oldList).getLength(oldEntry);
+                if (++oldEntry >= oldChunkLists.get(oldList).size()) {
+                    oldList++;
+                    oldEntry = 0;
+                }
+            }
+
+            while (changedRange < pChangedRanges.size() && pChangedRanges.get(changedRange).getEnd() <= position) {
+                changedRange++;
+            }
+
+            if (oldList < oldChunkLists.size() && oldOffset == position) {
+                long oldLength = oldChunkLists.get(oldList).getLength(oldEntry);
+                boolean changed = changedRange < pChangedRanges.size() && pChangedRanges.get(changedRange).intersects(position, position + oldLength);
+
+                if (0 < oldLength && position + oldLength <= size && !changed) {
+                    upload.keepChunk(oldChunkLists.get(oldList).getKey(oldEntry), (int) oldLength);
+                    position += oldLength;
+                    keptChunks++;
+                    continue;
+                }
+            }
+
+            int needed = (int) Math.min(maxChunkLength, size - position);
+            if (position < windowOffset || position + needed > windowOffset + window.position()) {
+                // keep the bytes read already which are still needed
+                if (position >= windowOffset && position < windowOffset + window.position()) {
+                    window.flip();
+                    window.position((int) (position - windowOffset));
+                    window.compact();
+                } else {
+                    window.clear();
+                }
+
+                windowOffset = position;
+                pSource.position(windowOffset + window.position());
+                while (window.hasRemaining() && pSource.read(window) >= 0) {
+                    // fill window
+                }
+            }
+
+            int start = (int) (position - windowOffset);
+            int available = (int) Math.min(window.position() - start, size - position);
+            if (available <= 0) {
+                throw new IOException("Data ended at '" + position + "' before its size of '" + size + "' bytes");
+            }
+
+            int chunkLength = this.chunker.nextChunkLength(window.array(), start, available);
+            upload.addChunk(Arrays.copyOfRange(window.array(), start, start + chunkLength));
+            position += chunkLength;
+        }
+
+        logger.debug("Kept '" + keptChunks + "' chunks of the stored data on location key '" + pLocationKey + "'");
+
+        return upload.finish();
+    }
+
+    /**
+     * Copies only the manifest and adds the target to the reference sets
+     * of the chunks and pages, i.e. no chunk is transferred.
+     */
+    @Override
+    public boolean copyData(PeerDHT pPeer, Number160 pSourceLocationKey, Number160 pTargetLocationKey)
+            throws InterruptedException {
+        ChunkManifest manifest = getManifest(pPeer, pSourceLocationKey);
+
+        if (null == manifest) {
+            return false;
+        }
+
+        // a manifest replaced on the target releases its chunks not used by the copy
+        Set<Number160> oldChunkKeys = getReferencedKeys(pPeer, getManifest(pPeer, pTargetLocationKey), Collections.emptyMap());
+
+        // reference the chunks from the target first, so that none of them gets released
+        Set<Number160> chunkKeys = getReferencedKeys(pPeer, manifest, Collections.emptyMap());
+        ArrayList<FuturePut> futurePuts = putReferences(pPeer, pTargetLocationKey, chunkKeys);
 
-        // Storing the chunk list
         FuturePut futurePutList = pPeer
-                .put(pLocationKey)
-                .data(new Data(new Gson().toJson(chunkHashes).getBytes(Charset.forName("UTF-8"))))
+                .put(pTargetLocationKey)
+                .data(new Data(manifest.toBytes()))
                 .start();
         futurePutList.addListener(new PutListener(
                 pPeer.peerAddress().inetAddress().toString(),
-                "Put chunk list"));
+                "Put copied chunk manifest"));
         futurePuts.add(futurePutList);
 
-        // Storing the chunks
-        for (int i = 0; i < chunks.size(); i++) {
-            FuturePut fp = pPeer
-                    .put(chunkHashes.get(i))
-                    .data(new Data(chunks.get(i)))
-                    .start();
-            futurePutList.addListener(new PutListener(
-                    pPeer.peerAddress().inetAddress().toString(),
-                    "Put chunk " + (i + 1) + " of " + chunks.size()));
-            futurePuts.add(fp);
-        }
-
         for (FuturePut fp : futurePuts) {
             fp.await();
         }
+
+        oldChunkKeys.removeAll(chunkKeys);
+        releaseChunks(pPeer, pTargetLocationKey, oldChunkKeys);
+
+        return true;
     }
 
     @Override
-    public void removeData(PeerDHT pPeer, Number160 pKey) throws InterruptedException {
-        ArrayList<FutureRemove> futureRemoves = new ArrayList<>();
+    public void moveData(PeerDHT pPeer, Number160 pOldLocationKey, Number160 pNewLocationKey)
+            throws InterruptedException {
+        if (this.copyData(pPeer, pOldLocationKey, pNewLocationKey)) {
+            this.removeData(pPeer, pOldLocationKey);
+        }
+    }
 
-        // Since the content is stored in chunks, we need to get the chunk list first.
-        FutureGet listFutureGet = pPeer.get(pKey).start();
-        listFutureGet.addListener(new GetListener(
-                pPeer.peerAddress().inetAddress().toString(),
-                "Get chunk list"));
-        listFutureGet.await();
+    @Override
+    public void removeData(PeerDHT pPeer, Number160 pKey) throws InterruptedException {
+        // Since the content is stored in chunks, we need to get the chunks of the manifest first.
+        ChunkManifest manifest = getManifest(pPeer, pKey);
+        Set<Number160> chunkKeys = getReferencedKeys(pPeer, manifest, Collections.emptyMap());
 
-        // Got it, now we can delete the list.
+        // Got it, now we can delete the manifest.
         FutureRemove listRemove = pPeer.remove(pKey).start();
         listRemove.addListener(
                 new RemoveListener(pPeer.peerAddress().inetAddress().toString(),
-                "Remove chunk list"));
+                "Remove chunk manifest"));
+        listRemove.await();
+
+        // If it's not an directory, release the chunks,
+        // which deletes those not referenced by any other data
+        releaseChunks(pPeer, pKey, chunkKeys);
+    }
 
-        futureRemoves.add(listRemove);
+    @Override
+    public void removeDataOfVersion(PeerDHT pPeer, Number160 pKey, Number160 pVersionKey)
+            throws InterruptedException {
+        this.removeData(pPeer, pKey);
+    }
 
-        // If it's not an directory, delete
-        if (null != listFutureGet.data()) {
-            Type chunkHashesType = new TypeToken<ArrayList<Number160>>(){}.getType();
-            ArrayList<Number160> chunkHashes = null;
-            try {
-                chunkHashes = new Gson().fromJson(
-                        new String(listFutureGet.data().toBytes(), "UTF-8"), chunkHashesType);
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
+    /**
+     * Writes the given range of the data to the channel. Pages of a paged manifest
+     * are fetched one after another, when their chunks are reached.
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data, used for logging
+     * @param pManifest The manifest of the data
+     * @param pFrom Start of the range in the data
+     * @param pTo End of the range in the data, exclusive
+     * @param pTarget The channel to write to
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If a chunk or page is missing or writing to the channel failed
+     */
+    private void streamRange(PeerDHT pPeer, Number160 pLocationKey, ChunkManifest pManifest, long pFrom, long pTo, WritableByteChannel pTarget)
+            throws InterruptedException, IOException {
+        if (pFrom >= pTo) {
+            return;
+        }
+
+        if (!pManifest.isPaged()) {
+            streamChunks(pPeer, pLocationKey, pManifest, 0, pFrom, pTo, pTarget);
+            return;
+        }
+
+        int lastPage = pManifest.getIndex(pTo - 1);
+        for (int i = pManifest.getIndex(pFrom); i <= lastPage; i++) {
+            List<ChunkManifest> page = fetchManifests(pPeer, Collections.singletonList(pManifest.getKey(i)));
+            if (null == page) {
+                throw new IOException("Missing page '" + (i + 1) + "' of '" + pManifest.size() + "'");
             }
 
-            // ... and delete the chunks themselves.
-            for (int i = 0; i < chunkHashes.size(); i++) {
-                FutureRemove fr = pPeer.remove(chunkHashes.get(i)).start();
-                fr.addListener(new RemoveListener(
+            long pageOffset = pManifest.getOffset(i);
+            long from = Math.max(pFrom, pageOffset);
+            long to = Math.min(pTo, pageOffset + pManifest.getLength(i));
+
+            streamChunks(pPeer, pLocationKey, page.get(0), pageOffset, from, to, pTarget);
+        }
+    }
+
+    /**
+     * Fetches the chunks of the given list covering the given range through a window
+     * of concurrent gets and writes them to the channel in order. A new get is started
+     * as soon as the oldest outstanding chunk was written. The key of a chunk is only
+     * read from the list when its get is started.
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data, used for logging
+     * @param pChunkList Manifest listing chunks
+     * @param pListOffset Position in the data at which the first chunk of the list starts
+     * @param pFrom Start of the range in the data
+     * @param pTo End of the range in the data, exclusive
+     * @param pTarget The channel to write to
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If a chunk is missing or writing to the channel failed
+     */
+    private void streamChunks(PeerDHT pPeer, Number160 pLocationKey, ChunkManifest pChunkList, long pListOffset, long pFrom, long pTo, WritableByteChannel pTarget)
+            throws InterruptedException, IOException {
+        int window = Math.max(1, Config.DEFAULT.getChunkFetchWindow());
+        ArrayDeque<FutureGet> pendingGets = new ArrayDeque<>(window);
+
+        int firstChunk = pChunkList.getIndex(Math.max(0, pFrom - pListOffset));
+        int endChunk = Math.min(pChunkList.getIndex(pTo - 1 - pListOffset), pChunkList.size() - 1) + 1;
+
+        int nextChunk = firstChunk;
+        long skip = pFrom - pListOffset - pChunkList.getOffset(Math.min(firstChunk, pChunkList.size() - 1));
+        long remaining = pTo - pFrom;
+
+        while (remaining > 0 && (nextChunk < endChunk || !pendingGets.isEmpty())) {
+            while (nextChunk < endChunk && pendingGets.size() < window) {
+                FutureGet ft = pPeer.get(pChunkList.getKey(nextChunk)).start();
+                ft.addListener(new GetListener(
                         pPeer.peerAddress().inetAddress().toString(),
-                        "Remove chunk " + (i + 1) + " of " + chunkHashes.size()));
+                        "Get chunk " + (nextChunk + 1) + " of " + pChunkList.size()));
+
+                pendingGets.add(ft);
+                nextChunk++;
+            }
+
+            FutureGet chunkFutureGet = pendingGets.poll();
+            chunkFutureGet.await();
+
+            if (null == chunkFutureGet.data()) {
+                throw new IOException("Missing chunk of data on location key '" + pLocationKey + "'");
+            }
+
+            byte[] chunk = chunkFutureGet.data().toBytes();
+            int from = (int) Math.min(skip, chunk.length);
+            int length = (int) Math.min(chunk.length - from, remaining);
+            skip -= from;
+            remaining -= length;
+
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, from, length);
+            while (buffer.hasRemaining()) {
+                pTarget.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Fetches the given pages concurrently
+     * 
+     * @param pPeer The peer
+     * @param pPageKeys The keys of the pages
+     * @return The pages in the given order or null, if a page is missing or invalid
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private List<ChunkManifest> fetchManifests(PeerDHT pPeer, List<Number160> pPageKeys)
+            throws InterruptedException {
+        ArrayList<FutureGet> pageFutureGets = new ArrayList<>();
+        for (Number160 pageKey : pPageKeys) {
+            FutureGet fg = pPeer.get(pageKey).start();
+            fg.addListener(new GetListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Get manifest page"));
+            pageFutureGets.add(fg);
+        }
 
-                futureRemoves.add(fr);
+        List<ChunkManifest> pages = new ArrayList<>(pPageKeys.size());
+        for (FutureGet pageFutureGet : pageFutureGets) {
+            pageFutureGet.await();
+
+            if (null == pageFutureGet.data()) {
+                logger.warn("Missing page of chunk manifest");
+                return null;
+            }
+
+            try {
+                pages.add(ChunkManifest.parse(pageFutureGet.data().toBytes()));
+            } catch (IOException e) {
+                logger.warn("Invalid page of chunk manifest. Message: " + e.getMessage());
+                return null;
             }
         }
 
-        for (FutureRemove fr : futureRemoves) { fr.await(); }
+        return pages;
     }
 
-    @Override
-    public void removeDataOfVersion(PeerDHT pPeer, Number160 pKey, Number160 pVersionKey)
+    /**
+     * Returns the keys of all chunks and pages referenced by the data of the given manifest
+     * 
+     * @param pPeer The peer
+     * @param pManifest The manifest stored on a location key, may be null
+     * @param pKnownPages Pages which do not need to be fetched, by their key
+     * @return The keys of the chunks and pages
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private Set<Number160> getReferencedKeys(PeerDHT pPeer, ChunkManifest pManifest, Map<Number160, ChunkManifest> pKnownPages)
             throws InterruptedException {
-        this.removeData(pPeer, pKey);
+        Set<Number160> keys = new HashSet<>();
+
+        if (null == pManifest) {
+            return keys;
+        }
+
+        addKeys(pManifest, keys);
+
+        if (!pManifest.isPaged()) {
+            return keys;
+        }
+
+        List<Number160> unknownPageKeys = new ArrayList<>();
+        for (Number160 pageKey : pManifest.getKeys()) {
+            ChunkManifest page = pKnownPages.get(pageKey);
+            if (null != page) {
+                addKeys(page, keys);
+            } else {
+                unknownPageKeys.add(pageKey);
+            }
+        }
+
+        List<ChunkManifest> unknownPages = fetchManifests(pPeer, unknownPageKeys);
+        if (null == unknownPages) {
+            logger.warn("Could not determine all chunks of a paged manifest, some chunks may not be released");
+            return keys;
+        }
+
+        for (ChunkManifest page : unknownPages) {
+            addKeys(page, keys);
+        }
+
+        return keys;
+    }
+
+    /**
+     * Adds the keys of all entries of the given manifest to the given keys
+     * 
+     * @param pManifest The manifest
+     * @param pKeys The keys to add to
+     */
+    private static void addKeys(ChunkManifest pManifest, Collection<Number160> pKeys) {
+        for (int i = 0; i < pManifest.size(); i++) {
+            pKeys.add(pManifest.getKey(i));
+        }
+    }
+
+    /**
+     * Stores the given chunks which do not exist yet and references those not referenced
+     * yet from the given location key. The existence of all chunks is probed at once, including
+     * the ones referenced already, since a referenced chunk may have been lost in the meantime.
+     * Returns when all puts completed and clears the given chunks.
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data containing the chunks
+     * @param pChunks The chunks to store, by their key
+     * @param pReferencedChunkKeys Keys of chunks which are referenced by the location key already
+     * @return The number of chunks which were uploaded
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If a chunk could not be stored, so that the data must not refer to it
+     */
+    private int uploadChunks(PeerDHT pPeer, Number160 pLocationKey, Map<Number160, byte[]> pChunks, Set<Number160> pReferencedChunkKeys)
+            throws InterruptedException, IOException {
+        if (pChunks.isEmpty()) {
+            return 0;
+        }
+
+        Set<Number160> existingChunkKeys = probeStoredChunks(pPeer, pChunks.keySet());
+
+        ArrayList<FuturePut> chunkPuts = new ArrayList<>();
+        int uploaded = 0;
+
+        for (Map.Entry<Number160, byte[]> chunk : pChunks.entrySet()) {
+            if (existingChunkKeys.contains(chunk.getKey())) {
+                continue;
+            }
+
+            FuturePut fp = pPeer
+                    .put(chunk.getKey())
+                    .data(new Data(chunk.getValue()))
+                    .start();
+            fp.addListener(new PutListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Put chunk " + (++uploaded) + " of " + pChunks.size()));
+            chunkPuts.add(fp);
+        }
+
+        Set<Number160> unreferencedChunkKeys = new HashSet<>(pChunks.keySet());
+        unreferencedChunkKeys.removeAll(pReferencedChunkKeys);
+        ArrayList<FuturePut> referencePuts = putReferences(pPeer, pLocationKey, unreferencedChunkKeys);
+
+        for (FuturePut fp : referencePuts) {
+            fp.await();
+        }
+
+        boolean chunksStored = true;
+        for (FuturePut fp : chunkPuts) {
+            fp.await();
+            chunksStored &= fp.isSuccess();
+        }
+
+        if (!chunksStored) {
+            // the chunks get probed and uploaded again on the next write
+            throw new IOException("Could not store all chunks of data on location key '" + pLocationKey + "'");
+        }
+
+        pChunks.clear();
+
+        return uploaded;
+    }
+
+    /**
+     * Checks which of the given chunks are stored in the DHT already.
+     * Only the digests of the chunk keys are fetched, not the chunks,
+     * so that a chunk lost or never stored is uploaded again even if
+     * other data still refers to it.
+     * 
+     * @param pPeer The peer
+     * @param pChunkKeys The keys of the chunks to check
+     * @return The keys of the chunks which are stored
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private Set<Number160> probeStoredChunks(PeerDHT pPeer, Collection<Number160> pChunkKeys)
+            throws InterruptedException {
+        Map<Number160, FutureDigest> digests = new HashMap<>();
+        for (Number160 chunkKey : pChunkKeys) {
+            FutureDigest fd = pPeer.digest(chunkKey).start();
+            fd.addListener(new DigestListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Probe chunk"));
+            digests.put(chunkKey, fd);
+        }
+
+        Set<Number160> storedChunkKeys = new HashSet<>();
+        for (Map.Entry<Number160, FutureDigest> entry : digests.entrySet()) {
+            entry.getValue().await();
+
+            if (entry.getValue().isSuccess() && null != entry.getValue().digest() && !entry.getValue().digest().keyDigest().isEmpty()) {
+                storedChunkKeys.add(entry.getKey());
+            }
+        }
+
+        return storedChunkKeys;
+    }
+
+    /**
+     * Checks which of the given chunks are referenced by any data.
+     * The reference sets of all chunks are fetched at once.
+     * 
+     * @param pPeer The peer
+     * @param pChunkKeys The keys of the chunks to check
+     * @return The keys of the chunks which are referenced
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private Set<Number160> probeReferences(PeerDHT pPeer, Collection<Number160> pChunkKeys)
+            throws InterruptedException {
+        Map<Number160, FutureGet> referenceGets = new HashMap<>();
+        for (Number160 chunkKey : pChunkKeys) {
+            FutureGet fg = pPeer.get(getReferenceKey(chunkKey)).all().start();
+            fg.addListener(new GetListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Probe chunk references"));
+            referenceGets.put(chunkKey, fg);
+        }
+
+        Set<Number160> referencedChunkKeys = new HashSet<>();
+        for (Map.Entry<Number160, FutureGet> entry : referenceGets.entrySet()) {
+            entry.getValue().await();
+
+            if (entry.getValue().isSuccess() && !entry.getValue().dataMap().isEmpty()) {
+                referencedChunkKeys.add(entry.getKey());
+            }
+        }
+
+        return referencedChunkKeys;
+    }
+
+    /**
+     * Adds the given location key to the reference sets of the given chunks
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data containing the chunks
+     * @param pChunkKeys The keys of the chunks
+     * @return The futures of the puts, which are not awaited yet
+     */
+    private ArrayList<FuturePut> putReferences(PeerDHT pPeer, Number160 pLocationKey, Collection<Number160> pChunkKeys) {
+        ArrayList<FuturePut> futurePuts = new ArrayList<>();
+
+        for (Number160 chunkKey : pChunkKeys) {
+            FuturePut fp = pPeer
+                    .put(getReferenceKey(chunkKey))
+                    .data(pLocationKey, new Data(new byte[0]))
+                    .start();
+            fp.addListener(new PutListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Put chunk reference"));
+            futurePuts.add(fp);
+        }
+
+        return futurePuts;
+    }
+
+    /**
+     * Removes the given location key from the reference sets of the given chunks
+     * and removes those chunks which are not referenced anymore
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data which does not contain the chunks anymore
+     * @param pChunkKeys The keys of the chunks
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private void releaseChunks(PeerDHT pPeer, Number160 pLocationKey, Collection<Number160> pChunkKeys)
+            throws InterruptedException {
+        if (pChunkKeys.isEmpty()) {
+            return;
+        }
+
+        ArrayList<FutureRemove> referenceRemoves = new ArrayList<>();
+        for (Number160 chunkKey : pChunkKeys) {
+            FutureRemove fr = pPeer.remove(getReferenceKey(chunkKey)).contentKey(pLocationKey).start();
+            fr.addListener(new RemoveListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Remove chunk reference"));
+            referenceRemoves.add(fr);
+        }
+
+        for (FutureRemove fr : referenceRemoves) {
+            fr.await();
+        }
+
+        // fetch the remaining references of all chunks at once
+        Set<Number160> referencedChunkKeys = probeReferences(pPeer, pChunkKeys);
+
+        ArrayList<FutureRemove> chunkRemoves = new ArrayList<>();
+        for (Number160 chunkKey : pChunkKeys) {
+            if (referencedChunkKeys.contains(chunkKey)) {
+                // still referenced by other data
+                continue;
+            }
+
+            FutureRemove fr = pPeer.remove(chunkKey).start();
+            fr.addListener(new RemoveListener(
+                    pPeer.peerAddress().inetAddress().toString(),
+                    "Remove unreferenced chunk"));
+            chunkRemoves.add(fr);
+        }
+
+        for (FutureRemove fr : chunkRemoves) {
+            fr.await();
+        }
+
+        logger.debug("Released '" + pChunkKeys.size() + "' chunks of which '" + chunkRemoves.size() + "' were removed");
+    }
+
+    /**
+     * Returns the content address of the given chunk or page
+     * 
+     * @param pChunk The bytes of the chunk or page
+     * @return The SHA-1 digest of the bytes as key
+     */
+    private static Number160 getChunkKey(byte[] pChunk) {
+        try {
+            return new Number160(MessageDigest.getInstance("SHA-1").digest(pChunk));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Returns the key of the reference set of the given chunk
+     * 
+     * @param pChunkKey The key of the chunk
+     * @return The key of its reference set
+     */
+    private static Number160 getReferenceKey(Number160 pChunkKey) {
+        return pChunkKey.xor(REFERENCE_DOMAIN);
+    }
+
+    /**
+     * Fetches the manifest stored on the given location key
+     * 
+     * @param pPeer The peer
+     * @param pLocationKey The location key of the data
+     * @return The manifest or null, if nothing or no valid manifest is stored on the key
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    private ChunkManifest getManifest(PeerDHT pPeer, Number160 pLocationKey)
+            throws InterruptedException {
+        FutureGet listFutureGet = pPeer.get(pLocationKey).start();
+        listFutureGet.addListener(new GetListener(
+                pPeer.peerAddress().inetAddress().toString(),
+                "Get chunk manifest"));
+        listFutureGet.await();
+
+        if (null == listFutureGet.data()) {
+            return null;
+        }
+
+        try {
+            return ChunkManifest.parse(listFutureGet.data().toBytes());
+        } catch (IOException e) {
+            logger.warn("Data on location key '" + pLocationKey + "' is no valid chunk manifest. Message: " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates the chunker selected in the configuration
+     * 
+     * @return The chunker
+     */
+    private static IChunker createConfiguredChunker() {
+        if (Config.DEFAULT.getContentDefinedChunking()) {
+            return new ContentDefinedChunker(
+                    Config.DEFAULT.getMinChunkSizeBytes(),
+                    Config.DEFAULT.getChunkSizeBytes(),
+                    Config.DEFAULT.getMaxChunkSizeBytes());
+        }
+
+        return new FixedSizeChunker(Config.DEFAULT.getChunkSizeBytes());
+    }
+
+    /**
+     * Collects the chunks of new data in order and uploads those which
+     * are not stored yet in batches of {@link Config#getChunkUploadWindow()} chunks.
+     * Chunks of the previous data which are passed again are probed like new ones,
+     * only chunks kept without passing their bytes are not.
+     */
+    private class ChunkUpload {
+
+        private final PeerDHT                peer;
+
+        private final Number160              locationKey;
+
+        /**
+         * Keys of the chunks and pages referenced by the previous data
+         */
+        private final Set<Number160>         oldChunkKeys;
+
+        private final int                    uploadWindow;
+
+        /**
+         * Keys of all chunks and pages of the new data
+         */
+        private final Set<Number160>         chunkKeySet   = new HashSet<>();
+
+        private final List<Number160>        chunkKeys     = new ArrayList<>();
+
+        private final List<Integer>          chunkLengths  = new ArrayList<>();
+
+        private final Map<Number160, byte[]> pendingChunks = new LinkedHashMap<>();
+
+        private long                         totalLength   = 0;
+
+        private int                          uploaded      = 0;
+
+        public ChunkUpload(PeerDHT pPeer, Number160 pLocationKey, Set<Number160> pOldChunkKeys) {
+            this.peer = pPeer;
+            this.locationKey = pLocationKey;
+            this.oldChunkKeys = pOldChunkKeys;
+            this.uploadWindow = Math.max(1, Config.DEFAULT.getChunkUploadWindow());
+        }
+
+        /**
+         * Appends the given chunk to the data and uploads it, if needed
+         * 
+         * @param pChunk The bytes of the chunk
+         * 
+         * @throws InterruptedException If a failure happened during await of future
+         * @throws IOException If a chunk could not be stored
+         */
+        public void addChunk(byte[] pChunk)
+                throws InterruptedException, IOException {
+            Number160 chunkKey = getChunkKey(pChunk);
+            append(chunkKey, pChunk.length);
+
+            if (this.chunkKeySet.add(chunkKey)) {
+                this.pendingChunks.put(chunkKey, pChunk);
+            }
+
+            if (this.pendingChunks.size() >= this.uploadWindow) {
+                this.uploaded += uploadChunks(this.peer, this.locationKey, this.pendingChunks, this.oldChunkKeys);
+            }
+        }
+
+        /**
+         * Appends a chunk of the previous data, which is referenced by the location key already
+         * 
+         * @param pChunkKey The key of the chunk
+         * @param pLength The length of the chunk
+         */
+        public void keepChunk(Number160 pChunkKey, int pLength) {
+            append(pChunkKey, pLength);
+            this.chunkKeySet.add(pChunkKey);
+        }
+
+        /**
+         * Uploads the remaining chunks and the manifest of the data,
+         * then releases the chunks of the previous data not used anymore
+         * 
+         * @return The size of the data in bytes
+         * 
+         * @throws InterruptedException If a failure happened during await of future
+         * @throws IOException If a chunk could not be stored, in which case the manifest is not stored either
+         */
+        public long finish()
+                throws InterruptedException, IOException {
+            if (this.chunkKeys.isEmpty()) {
+                // empty data still consists of one empty chunk
+                addChunk(new byte[0]);
+            }
+
+            ChunkManifest manifest;
+
+            if (this.chunkKeys.size() <= MAX_CHUNKS_PER_PAGE) {
+                manifest = ChunkManifest.createChunkList(this.chunkKeys, this.chunkLengths);
+            } else {
+                List<Number160> pageKeys = new ArrayList<>();
+                List<Long> pageLengths = new ArrayList<>();
+
+                for (int i = 0; i < this.chunkKeys.size(); i += MAX_CHUNKS_PER_PAGE) {
+                    int pageEnd = Math.min(i + MAX_CHUNKS_PER_PAGE, this.chunkKeys.size());
+                    ChunkManifest page = ChunkManifest.createChunkList(this.chunkKeys.subList(i, pageEnd), this.chunkLengths.subList(i, pageEnd));
+                    byte[] pageBytes = page.toBytes();
+                    Number160 pageKey = getChunkKey(pageBytes);
+
+                    // pages are stored like chunks
+                    if (this.chunkKeySet.add(pageKey)) {
+                        this.pendingChunks.put(pageKey, pageBytes);
+                    }
+
+                    pageKeys.add(pageKey);
+                    pageLengths.add(page.getTotalSize());
+                }
+
+                manifest = ChunkManifest.createPageIndex(pageKeys, pageLengths);
+            }
+
+            this.uploaded += uploadChunks(this.peer, this.locationKey, this.pendingChunks, this.oldChunkKeys);
+
+            logger.debug("Uploaded '" + this.uploaded + "' of '" + this.chunkKeySet.size() + "' distinct chunks and pages");
+
+            // Storing the manifest, once all of its chunks are stored
+            FuturePut futurePutList = this.peer
+                    .put(this.locationKey)
+                    .data(new Data(manifest.toBytes()))
+                    .start();
+            futurePutList.addListener(new PutListener(
+                    this.peer.peerAddress().inetAddress().toString(),
+                    "Put chunk manifest"));
+            futurePutList.await();
+
+            Set<Number160> unusedChunkKeys = new HashSet<>(this.oldChunkKeys);
+            unusedChunkKeys.removeAll(this.chunkKeySet);
+            releaseChunks(this.peer, this.locationKey, unusedChunkKeys);
+
+            return this.totalLength;
+        }
+
+        private void append(Number160 pChunkKey, int pLength) {
+            this.chunkKeys.add(pChunkKey);
+            this.chunkLengths.add(pLength);
+            this.totalLength += pLength;
+        }
     }
 }
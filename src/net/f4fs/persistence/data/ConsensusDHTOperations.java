@@ -1,9 +1,13 @@
 package net.f4fs.persistence.data;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -108,6 +112,57 @@ implements IDataPersistence {
     }
 
 
+    @Override
+    public long putData(PeerDHT pPeer, Number160 pLocationKey, ReadableByteChannel pSource)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        byte[] bytes = DHTOperations.readData(pSource);
+        this.putData(pPeer, pLocationKey, new Data(bytes));
+
+        return bytes.length;
+    }
+
+    @Override
+    public long updateData(PeerDHT pPeer, Number160 pLocationKey, SeekableByteChannel pSource, List<ByteRange> pChangedRanges)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        // the data is stored as a single value, so it is written as a whole
+        pSource.position(0);
+
+        return this.putData(pPeer, pLocationKey, pSource);
+    }
+
+    /**
+     * Moves the data agreed on by all peers to the new location key
+     * 
+     * @param pPeer local DHT of the peer
+     * @param pOldLocationKey location key of the data to be moved
+     * @param pNewLocationKey location key to which the data is moved
+     */
+    @Override
+    public boolean copyData(PeerDHT pPeer, Number160 pSourceLocationKey, Number160 pTargetLocationKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Data data = this.getData(pPeer, pSourceLocationKey);
+
+        if (null == data) {
+            return false;
+        }
+
+        this.putData(pPeer, pTargetLocationKey, data);
+
+        return true;
+    }
+
+    @Override
+    public void moveData(PeerDHT pPeer, Number160 pOldLocationKey, Number160 pNewLocationKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Data data = this.getData(pPeer, pOldLocationKey);
+
+        if (null != data) {
+            this.putData(pPeer, pNewLocationKey, data);
+        }
+
+        this.removeData(pPeer, pOldLocationKey);
+    }
+
     /**
      * Removes the data entry of a specific location key
      * 
@@ -161,6 +216,28 @@ implements IDataPersistence {
     }
 
 
+    @Override
+    public boolean getData(PeerDHT pPeer, Number160 pLocationKey, WritableByteChannel pTarget)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return DHTOperations.transferData(this.getData(pPeer, pLocationKey), pTarget);
+    }
+
+    /**
+     * Retrieves the data agreed on by all peers and cuts the requested range out of it,
+     * since consensus can only be reached on the data as a whole.
+     */
+    @Override
+    public Data getDataRange(PeerDHT pPeer, Number160 pLocationKey, long pOffset, int pLength)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return DHTOperations.sliceData(this.getData(pPeer, pLocationKey), pOffset, pLength);
+    }
+
+    @Override
+    public boolean supportsRangedReads() {
+        return false;
+    }
+
+
     @Override
     public void removeDataOfVersion(PeerDHT pPeer, Number160 pKey, Number160 pVersionKey)
             throws InterruptedException {
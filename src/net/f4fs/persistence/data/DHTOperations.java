@@ -1,5 +1,13 @@
 package net.f4fs.persistence.data;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
 import net.f4fs.fspeer.GetListener;
 import net.f4fs.fspeer.PutListener;
 import net.f4fs.fspeer.RemoveListener;
@@ -30,12 +38,29 @@ public class DHTOperations
         return futureGet.data();
     }
 
+    @Override
+    public boolean getData(PeerDHT pPeer, Number160 pLocationKey, WritableByteChannel pTarget)
+            throws InterruptedException, IOException {
+        return transferData(this.getData(pPeer, pLocationKey), pTarget);
+    }
+
     @Override
     public Data getDataOfVersion(PeerDHT pPeer, Number160 pLocationKey, Number160 pVersionKey)
             throws InterruptedException {
         return this.getData(pPeer, pLocationKey);
     }
 
+    @Override
+    public Data getDataRange(PeerDHT pPeer, Number160 pLocationKey, long pOffset, int pLength)
+            throws InterruptedException {
+        return sliceData(this.getData(pPeer, pLocationKey), pOffset, pLength);
+    }
+
+    @Override
+    public boolean supportsRangedReads() {
+        return false;
+    }
+
     @Override
     public void putData(PeerDHT pPeer, Number160 pLocationKey, Data pData)
             throws InterruptedException {
@@ -45,6 +70,50 @@ public class DHTOperations
         futurePut.await();
     }
 
+    @Override
+    public long putData(PeerDHT pPeer, Number160 pLocationKey, ReadableByteChannel pSource)
+            throws InterruptedException, IOException {
+        byte[] bytes = readData(pSource);
+        this.putData(pPeer, pLocationKey, new Data(bytes));
+
+        return bytes.length;
+    }
+
+    @Override
+    public long updateData(PeerDHT pPeer, Number160 pLocationKey, SeekableByteChannel pSource, List<ByteRange> pChangedRanges)
+            throws InterruptedException, IOException {
+        // the data is stored as a single value, so it is written as a whole
+        pSource.position(0);
+
+        return this.putData(pPeer, pLocationKey, pSource);
+    }
+
+    @Override
+    public boolean copyData(PeerDHT pPeer, Number160 pSourceLocationKey, Number160 pTargetLocationKey)
+            throws InterruptedException {
+        Data data = this.getData(pPeer, pSourceLocationKey);
+
+        if (null == data) {
+            return false;
+        }
+
+        this.putData(pPeer, pTargetLocationKey, data);
+
+        return true;
+    }
+
+    @Override
+    public void moveData(PeerDHT pPeer, Number160 pOldLocationKey, Number160 pNewLocationKey)
+            throws InterruptedException {
+        Data data = this.getData(pPeer, pOldLocationKey);
+
+        if (null != data) {
+            this.putData(pPeer, pNewLocationKey, data);
+        }
+
+        this.removeData(pPeer, pOldLocationKey);
+    }
+
     @Override
     public void removeData(PeerDHT pPeer, Number160 pKey)
             throws InterruptedException {
@@ -60,4 +129,105 @@ public class DHTOperations
 		this.removeData(pPeer, pKey);
 	}
 
+    /**
+     * Cuts the given range out of data which was fetched as a whole
+     * 
+     * @param pData The whole data, may be null
+     * @param pOffset Position at which the range starts
+     * @param pLength Maximum length of the range
+     * @return The range or null, if <i>pData</i> is null
+     */
+    static Data sliceData(Data pData, long pOffset, int pLength) {
+        if (null == pData) {
+            return null;
+        }
+
+        byte[] bytes = pData.toBytes();
+        int from = (int) Math.min(pOffset, bytes.length);
+        int to = (int) Math.min(from + (long) pLength, bytes.length);
+
+        return new Data(Arrays.copyOfRange(bytes, from, to));
+    }
+
+    /**
+     * Writes data which was fetched as a whole to the given channel
+     * 
+     * @param pData The data, may be null
+     * @param pTarget The channel to write to
+     * @return True, if data was written, false if <i>pData</i> is null
+     * 
+     * @throws IOException If writing to the channel failed
+     */
+    static boolean transferData(Data pData, WritableByteChannel pTarget)
+            throws IOException {
+        if (null == pData) {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(pData.toBytes());
+        while (buffer.hasRemaining()) {
+            pTarget.write(buffer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the given channel until its end, for adapters
+     * which can only store data as a whole. The bytes are read into
+     * a single array, which is sized up front if the channel knows its size,
+     * so that they are not buffered and copied once more.
+     * 
+     * @param pSource The channel to read
+     * @return All bytes read
+     * 
+     * @throws IOException If reading from the channel failed
+     */
+    static byte[] readData(ReadableByteChannel pSource)
+            throws IOException {
+        int capacity = 8192;
+        if (pSource instanceof SeekableByteChannel) {
+            SeekableByteChannel seekableSource = (SeekableByteChannel) pSource;
+            long remaining = seekableSource.size() - seekableSource.position();
+            if (remaining > Integer.MAX_VALUE) {
+                throw new IOException("Data of '" + remaining + "' bytes is too large to be stored as a whole");
+            }
+
+            capacity = (int) Math.max(0, remaining);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        ByteBuffer probe = ByteBuffer.allocate(1);
+
+        while (true) {
+            if (buffer.hasRemaining()) {
+                if (pSource.read(buffer) < 0) {
+                    break;
+                }
+
+                continue;
+            }
+
+            // buffer is full, which is the end if the size was known
+            probe.clear();
+            int read = pSource.read(probe);
+            if (read < 0) {
+                break;
+            }
+
+            if (read > 0) {
+                long grownCapacity = Math.max(8192, 2L * buffer.capacity());
+                ByteBuffer grownBuffer = ByteBuffer.allocate((int) Math.min(grownCapacity, Integer.MAX_VALUE - 8));
+                buffer.flip();
+                probe.flip();
+                grownBuffer.put(buffer);
+                grownBuffer.put(probe);
+                buffer = grownBuffer;
+            }
+        }
+
+        byte[] bytes = buffer.array();
+
+        return buffer.position() == bytes.length ? bytes : Arrays.copyOf(bytes, buffer.position());
+    }
 }
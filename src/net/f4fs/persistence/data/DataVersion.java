@@ -0,0 +1,64 @@
+package net.f4fs.persistence.data;
+
+import java.io.Serializable;
+
+import net.tomp2p.peers.Number160;
+
+
+/**
+ * Describes a certain state of the data stored on a key in the DHT.
+ * A new version is created each time the data gets written, so that
+ * peers holding a local copy can check cheaply whether it is still up to date.
+ */
+public class DataVersion
+        implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Random key identifying this version
+     */
+    private final Number160   versionKey;
+
+    /**
+     * Size of the stored data in bytes
+     */
+    private final long        size;
+
+    public DataVersion(Number160 pVersionKey, long pSize) {
+        this.versionKey = pVersionKey;
+        this.size = pSize;
+    }
+
+    public Number160 getVersionKey() {
+        return this.versionKey;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    @Override
+    public boolean equals(Object pOther) {
+        if (this == pOther) {
+            return true;
+        }
+
+        if (!(pOther instanceof DataVersion)) {
+            return false;
+        }
+
+        DataVersion other = (DataVersion) pOther;
+        return this.size == other.size && this.versionKey.equals(other.versionKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.versionKey.hashCode() + Long.hashCode(this.size);
+    }
+
+    @Override
+    public String toString() {
+        return "DataVersion[" + this.versionKey + ", " + this.size + " bytes]";
+    }
+}
@@ -1,6 +1,10 @@
 package net.f4fs.persistence.data;
 
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 import net.tomp2p.dht.PeerDHT;
 import net.tomp2p.peers.Number160;
@@ -23,6 +27,22 @@ public interface IDataPersistence {
      */
     public Data getData(PeerDHT pPeer, Number160 pLocationKey) throws InterruptedException, ClassNotFoundException, IOException;
     
+    /**
+     * Writes the (latest) data with the given location key to the given channel.
+     * Adapters should write the data as it arrives, without holding all of it in memory.
+     * 
+     * @param pPeer Peer to fetch data from
+     * @param pLocationKey Key from file
+     * @param pTarget Channel to which the data is written
+     * 
+     * @return True, if data was written, false if no data is stored on the key
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If writing to the channel failed or the data is incomplete
+     * @throws ClassNotFoundException 
+     */
+    public boolean getData(PeerDHT pPeer, Number160 pLocationKey, WritableByteChannel pTarget) throws InterruptedException, ClassNotFoundException, IOException;
+
     /**
      * Get the specified version of the file identified by its key.
      * In case, versions are not supported, get the only data.
@@ -36,6 +56,34 @@ public interface IDataPersistence {
      * @throws InterruptedException If a failure happened during await of future
      */
     public Data getDataOfVersion(PeerDHT pPeer, Number160 pLocationKey, Number160 pVersionKey) throws InterruptedException;
+
+    /**
+     * Get <i>pLength</i> bytes of the (latest) data with the given location key,
+     * starting at <i>pOffset</i>. Adapters should fetch as little as possible
+     * of the data outside of the requested range.
+     * 
+     * @param pPeer Peer to fetch data from
+     * @param pLocationKey Key from file
+     * @param pOffset Position in the data at which the range starts
+     * @param pLength Maximum number of bytes to get
+     * 
+     * @return The fetched range as Data, which is shorter than requested if the data ends before.
+     *         Null, if no data is stored on the key
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException 
+     * @throws ClassNotFoundException 
+     */
+    public Data getDataRange(PeerDHT pPeer, Number160 pLocationKey, long pOffset, int pLength) throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Tells whether {@link #getDataRange(PeerDHT, Number160, long, int) getDataRange}
+     * fetches only the requested range. Otherwise each call transfers the whole data,
+     * so callers should rather fetch the data once.
+     * 
+     * @return True, if ranges are fetched without transferring the whole data
+     */
+    public boolean supportsRangedReads();
     
     /**
      * Puts a new data object with the given location key to the DHT
@@ -48,6 +96,65 @@ public interface IDataPersistence {
      */
     public void putData(PeerDHT pPeer, Number160 pLocationKey, Data pData) throws InterruptedException, ClassNotFoundException, IOException;
     
+    /**
+     * Puts the data read from the given channel with the given location key to the DHT.
+     * Adapters should store the data while reading it, without holding all of it in memory.
+     * 
+     * @param pPeer Peer
+     * @param pLocationKey Location key of the file
+     * @param pSource Channel providing the content of the file, read until its end
+     * 
+     * @return The number of bytes stored
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If reading from the channel failed
+     */
+    public long putData(PeerDHT pPeer, Number160 pLocationKey, ReadableByteChannel pSource) throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Puts the data read from the given channel with the given location key to the DHT,
+     * of which only the given ranges differ from the data currently stored with the key.
+     * Adapters may keep the unchanged parts of the stored data instead of reading
+     * them from the channel. Adapters which store data as a whole read the channel from its start.
+     * 
+     * @param pPeer Peer
+     * @param pLocationKey Location key of the file
+     * @param pSource Channel providing the whole content of the file
+     * @param pChangedRanges Ranges of the content which changed, sorted by their offset and not overlapping
+     * 
+     * @return The number of bytes stored
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If reading from the channel failed
+     */
+    public long updateData(PeerDHT pPeer, Number160 pLocationKey, SeekableByteChannel pSource, List<ByteRange> pChangedRanges) throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Copies the data stored on <i>pSourceLocationKey</i> to <i>pTargetLocationKey</i>,
+     * e.g. to archive it before it gets overwritten.
+     * Adapters should avoid transferring the data again if possible.
+     * 
+     * @param pPeer Peer
+     * @param pSourceLocationKey Location key on which the data is stored
+     * @param pTargetLocationKey Location key to which the data is copied
+     * @return True, if the data was copied, false if no data is stored on <i>pSourceLocationKey</i>
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    public boolean copyData(PeerDHT pPeer, Number160 pSourceLocationKey, Number160 pTargetLocationKey) throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Moves the data stored on <i>pOldLocationKey</i> to <i>pNewLocationKey</i>.
+     * Adapters should avoid transferring the data again if possible.
+     * 
+     * @param pPeer Peer
+     * @param pOldLocationKey Location key on which the data is stored
+     * @param pNewLocationKey Location key to which the data is moved
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     */
+    public void moveData(PeerDHT pPeer, Number160 pOldLocationKey, Number160 pNewLocationKey) throws InterruptedException, ClassNotFoundException, IOException;
+
     /**
      * Removes the specified data from the DHT.
      * In case versions are supported, remove all versions.
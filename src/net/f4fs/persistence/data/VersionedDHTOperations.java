@@ -1,5 +1,11 @@
 package net.f4fs.persistence.data;
 
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
 import net.f4fs.fspeer.GetListener;
 import net.f4fs.fspeer.PutListener;
 import net.f4fs.fspeer.RemoveListener;
@@ -30,12 +36,29 @@ public class VersionedDHTOperations
         return futureGet.data();
     }
 
+    @Override
+    public boolean getData(PeerDHT pPeer, Number160 pLocationKey, WritableByteChannel pTarget)
+            throws InterruptedException, IOException {
+        return DHTOperations.transferData(this.getData(pPeer, pLocationKey), pTarget);
+    }
+
     @Override
     public Data getDataOfVersion(PeerDHT pPeer, Number160 pLocationKey, Number160 pVersionKey)
             throws InterruptedException {
         return this.getData(pPeer, pLocationKey);
     }
 
+    @Override
+    public Data getDataRange(PeerDHT pPeer, Number160 pLocationKey, long pOffset, int pLength)
+            throws InterruptedException {
+        return DHTOperations.sliceData(this.getData(pPeer, pLocationKey), pOffset, pLength);
+    }
+
+    @Override
+    public boolean supportsRangedReads() {
+        return false;
+    }
+
     @Override
     public void putData(PeerDHT pPeer, Number160 pLocationKey, Data pData)
             throws InterruptedException {
@@ -45,6 +68,50 @@ public class VersionedDHTOperations
         futurePut.await();
     }
 
+    @Override
+    public long putData(PeerDHT pPeer, Number160 pLocationKey, ReadableByteChannel pSource)
+            throws InterruptedException, IOException {
+        byte[] bytes = DHTOperations.readData(pSource);
+        this.putData(pPeer, pLocationKey, new Data(bytes));
+
+        return bytes.length;
+    }
+
+    @Override
+    public long updateData(PeerDHT pPeer, Number160 pLocationKey, SeekableByteChannel pSource, List<ByteRange> pChangedRanges)
+            throws InterruptedException, IOException {
+        // the data is stored as a single value, so it is written as a whole
+        pSource.position(0);
+
+        return this.putData(pPeer, pLocationKey, pSource);
+    }
+
+    @Override
+    public boolean copyData(PeerDHT pPeer, Number160 pSourceLocationKey, Number160 pTargetLocationKey)
+            throws InterruptedException {
+        Data data = this.getData(pPeer, pSourceLocationKey);
+
+        if (null == data) {
+            return false;
+        }
+
+        this.putData(pPeer, pTargetLocationKey, data);
+
+        return true;
+    }
+
+    @Override
+    public void moveData(PeerDHT pPeer, Number160 pOldLocationKey, Number160 pNewLocationKey)
+            throws InterruptedException {
+        Data data = this.getData(pPeer, pOldLocationKey);
+
+        if (null != data) {
+            this.putData(pPeer, pNewLocationKey, data);
+        }
+
+        this.removeData(pPeer, pOldLocationKey);
+    }
+
     @Override
     public void removeData(PeerDHT pPeer, Number160 pKey)
             throws InterruptedException {
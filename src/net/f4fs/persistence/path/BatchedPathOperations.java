@@ -0,0 +1,175 @@
+package net.f4fs.persistence.path;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Coalesces paths which are put concurrently into batches, which are stored
+ * with a single {@link IPathPersistence#putPaths(PeerDHT, Map)} of the wrapped adapter. <br>
+ * A thread putting a path while no batch is stored commits all paths pending
+ * at that time, while the paths put in the meantime are collected for the next batch.
+ * Once a batch is stored, one of the threads waiting for the next batch stores it,
+ * so that each thread stores at most one batch. Putting a path still blocks until
+ * the batch containing it is stored. All other operations are passed to the wrapped adapter.
+ */
+public class BatchedPathOperations
+        implements IPathPersistence {
+
+    private final Logger           logger = LoggerFactory.getLogger(BatchedPathOperations.class);
+
+    private final IPathPersistence pathPersistence;
+
+    /**
+     * Paths to store with the next batch
+     */
+    private Map<Number160, Data>   pendingPaths;
+
+    /**
+     * Completes once the next batch is stored
+     */
+    private CompletableFuture<Void> pendingCommit;
+
+    /**
+     * Whether a thread is storing a batch at the moment
+     */
+    private boolean                committing;
+
+    /**
+     * @param pPathPersistence The adapter storing the batches
+     */
+    public BatchedPathOperations(IPathPersistence pPathPersistence) {
+        this.pathPersistence = pPathPersistence;
+        this.pendingPaths = new LinkedHashMap<>();
+        this.pendingCommit = new CompletableFuture<>();
+        this.committing = false;
+    }
+
+    @Override
+    public Set<String> getAllPaths(PeerDHT pPeer)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.pathPersistence.getAllPaths(pPeer);
+    }
+
+    @Override
+    public Set<String> getChildPaths(PeerDHT pPeer, String pDirectoryPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.pathPersistence.getChildPaths(pPeer, pDirectoryPath);
+    }
+
+    @Override
+    public boolean supportsChildListing() {
+        return this.pathPersistence.supportsChildListing();
+    }
+
+    @Override
+    public String getPath(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return this.pathPersistence.getPath(pPeer, pContentKey);
+    }
+
+    /**
+     * Adds the path to the next batch and waits until the batch is stored
+     */
+    @Override
+    public void putPath(PeerDHT pPeer, Number160 pContentKey, Data pValue)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        CompletableFuture<Void> commit;
+        Map<Number160, Data> batch = null;
+
+        synchronized (this) {
+            this.pendingPaths.put(pContentKey, pValue);
+            commit = this.pendingCommit;
+
+            // the batch containing the path is either stored by another thread
+            // or by this one, as soon as the previous batch is stored
+            while (this.committing && !commit.isDone()) {
+                wait();
+            }
+
+            if (!commit.isDone()) {
+                batch = this.pendingPaths;
+                this.pendingPaths = new LinkedHashMap<>();
+                this.pendingCommit = new CompletableFuture<>();
+                this.committing = true;
+            }
+        }
+
+        if (null != batch) {
+            commitBatch(pPeer, batch, commit);
+        }
+
+        try {
+            commit.get();
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        }
+    }
+
+    @Override
+    public void putLink(PeerDHT pPeer, String pLinkPath, Data pTargetPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        this.pathPersistence.putLink(pPeer, pLinkPath, pTargetPath);
+    }
+
+    @Override
+    public void putPaths(PeerDHT pPeer, Map<Number160, Data> pPaths)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        this.pathPersistence.putPaths(pPeer, pPaths);
+    }
+
+    @Override
+    public void removePath(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException {
+        this.pathPersistence.removePath(pPeer, pContentKey);
+    }
+
+    /**
+     * Stores a single batch and lets one of the threads waiting
+     * for the next batch store it afterwards
+     *
+     * @param pPeer Peer which gets used to store the paths
+     * @param pBatch The paths to store
+     * @param pCommit Completes once the batch is stored
+     */
+    private void commitBatch(PeerDHT pPeer, Map<Number160, Data> pBatch, CompletableFuture<Void> pCommit) {
+        try {
+            this.pathPersistence.putPaths(pPeer, pBatch);
+            this.logger.debug("Stored batch of '" + pBatch.size() + "' paths");
+            pCommit.complete(null);
+        } catch (InterruptedException | ClassNotFoundException | IOException | RuntimeException e) {
+            pCommit.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                this.committing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void rethrow(Throwable pCause)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        if (pCause instanceof InterruptedException) {
+            throw (InterruptedException) pCause;
+        }
+        if (pCause instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) pCause;
+        }
+        if (pCause instanceof IOException) {
+            throw (IOException) pCause;
+        }
+
+        throw new IOException(pCause);
+    }
+}
@@ -2,6 +2,7 @@ package net.f4fs.persistence.path;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -70,6 +71,29 @@ public class ConsensusPathOperations
         return keys;
     }
 
+    /**
+     * Retrieves the path strings of the children of the given directory
+     * from the DHTs master location path key.
+     * 
+     * @param pPeer local DHT of the peer
+     * @param pDirectoryPath path of the directory
+     * 
+     * @return Set<String> containing the paths of all children currently in the DHT
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    @Override
+    public Set<String> getChildPaths(PeerDHT pPeer, String pDirectoryPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        return directPathOperations.getChildPaths(pPeer, pDirectoryPath);
+    }
+
+    @Override
+    public boolean supportsChildListing() {
+        return false;
+    }
+
     /**
      * Retrieves the path string to a requested content key from the DHTs master location path key.
      * 
@@ -141,6 +165,56 @@ public class ConsensusPathOperations
     }
 
 
+    /**
+     * Stores the given path entries in the DHT under the master location path key.
+     * Fetches all stored paths once instead of checking each path on its own:
+     * Paths which do not exist yet or are stored with the same value are put with
+     * a single operation. Only paths stored with a different value are put one by one
+     * by {@link #putPath(PeerDHT, Number160, Data)}, waiting for the peers to agree.
+     * 
+     * @param pPeer local DHT of the peer
+     * @param pPaths path strings wrapped in Data elements, mapped by their content keys
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    @Override
+    public void putLink(PeerDHT pPeer, String pLinkPath, Data pTargetPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        putPath(pPeer, Number160.createHash(pLinkPath), pTargetPath);
+    }
+
+    @Override
+    public void putPaths(PeerDHT pPeer, Map<Number160, Data> pPaths)
+            throws InterruptedException, ClassNotFoundException, IOException {
+
+        FutureGet futureGet = pPeer.get(Number160.createHash(Config.DEFAULT.getMasterLocationPathsKey())).all().start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get all paths"));
+        futureGet.await();
+
+        Map<Number160, Object> storedPaths = new HashMap<>();
+        for (Map.Entry<Number640, Data> entry : futureGet.dataMap().entrySet()) {
+            storedPaths.put(entry.getKey().contentKey(), entry.getValue().object());
+        }
+
+        Map<Number160, Data> agreedPaths = new HashMap<>();
+        for (Map.Entry<Number160, Data> entry : pPaths.entrySet()) {
+            Object storedPath = storedPaths.get(entry.getKey());
+
+            if (null == storedPath || storedPath.equals(entry.getValue().object())) {
+                agreedPaths.put(entry.getKey(), entry.getValue());
+            } else {
+                putPath(pPeer, entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (!agreedPaths.isEmpty()) {
+            directPathOperations.putPaths(pPeer, agreedPaths);
+        }
+        logger.info("Direct putPaths of " + agreedPaths.size() + " of " + pPaths.size() + " paths to DHT");
+    }
+
+
     /**
      * Removes the path of a specific content key
      * 
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Set;
 
 import net.f4fs.config.Config;
+import net.f4fs.filesystem.util.FSFileUtils;
 import net.f4fs.fspeer.GetListener;
 import net.f4fs.fspeer.PutListener;
 import net.f4fs.fspeer.RemoveListener;
@@ -44,6 +45,25 @@ public class DirectPathOperations
         return keys;
     }
     
+    @Override
+    public Set<String> getChildPaths(PeerDHT pPeer, String pDirectoryPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        // all paths are stored on the same key
+        Set<String> childPaths = new HashSet<>();
+        for (String path : getAllPaths(pPeer)) {
+            if (!FSFileUtils.isRootDirectory(path) && pDirectoryPath.equals(FSFileUtils.getParentDirectory(path))) {
+                childPaths.add(path);
+            }
+        }
+
+        return childPaths;
+    }
+
+    @Override
+    public boolean supportsChildListing() {
+        return false;
+    }
+
     @Override
     public String getPath(PeerDHT pPeer, Number160 pContentKey)
             throws InterruptedException, ClassNotFoundException, IOException {
@@ -69,6 +89,22 @@ public class DirectPathOperations
         futurePut.await();
     }
 
+    @Override
+    public void putLink(PeerDHT pPeer, String pLinkPath, Data pTargetPath)
+            throws InterruptedException {
+        putPath(pPeer, Number160.createHash(pLinkPath), pTargetPath);
+    }
+
+    @Override
+    public void putPaths(PeerDHT pPeer, Map<Number160, Data> pPaths)
+            throws InterruptedException {
+
+        FuturePut futurePut = pPeer.put(Number160.createHash(Config.DEFAULT.getMasterLocationPathsKey())).dataMapContent(pPaths).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put " + pPaths.size() + " paths"));
+
+        futurePut.await();
+    }
+
     @Override
     public void removePath(PeerDHT pPeer, Number160 pContentKey)
             throws InterruptedException {
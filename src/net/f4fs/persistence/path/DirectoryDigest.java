@@ -0,0 +1,110 @@
+package net.f4fs.persistence.path;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Node of a hash tree over the names in a directory. Each child contributes
+ * a hash of its own: files and symlinks the hash of their name, directories
+ * the digest of their own children. The digest of a directory is the hash
+ * of the names and hashes of all its children, so two directories have the
+ * same digest if and only if they contain the same names, recursively. <br>
+ * File contents are not covered.
+ */
+public class DirectoryDigest
+        implements Serializable {
+
+    private static final long               serialVersionUID = 1L;
+
+    private static final byte               FILE             = 'f';
+
+    private static final byte               SYMLINK          = 'l';
+
+    private final byte[]                    digest;
+
+    /**
+     * Hashes of the children, by their names
+     */
+    private final TreeMap<String, byte[]>   children;
+
+    /**
+     * @param pChildren The hashes of the children, by their names
+     */
+    public DirectoryDigest(Map<String, byte[]> pChildren) {
+        this.children = new TreeMap<>(pChildren);
+
+        MessageDigest messageDigest = createMessageDigest();
+        for (Map.Entry<String, byte[]> child : this.children.entrySet()) {
+            messageDigest.update(child.getKey().getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(child.getValue());
+        }
+
+        this.digest = messageDigest.digest();
+    }
+
+    /**
+     * @param pName The name of a file
+     * @return The hash of the file as child of a directory
+     */
+    public static byte[] fileHash(String pName) {
+        return hash(FILE, pName);
+    }
+
+    /**
+     * @param pName The name of a symlink
+     * @return The hash of the symlink as child of a directory
+     */
+    public static byte[] symlinkHash(String pName) {
+        return hash(SYMLINK, pName);
+    }
+
+    /**
+     * @return The hash over all children
+     */
+    public byte[] getDigest() {
+        return this.digest.clone();
+    }
+
+    /**
+     * @return The hashes of the children, by their names
+     */
+    public SortedMap<String, byte[]> getChildren() {
+        return Collections.unmodifiableSortedMap(this.children);
+    }
+
+    /**
+     * Checks whether the given digest equals the one of this directory
+     *
+     * @param pDigest The digest to compare, may be null
+     * @return True, if both digests are equal
+     */
+    public boolean hasDigest(byte[] pDigest) {
+        return Arrays.equals(this.digest, pDigest);
+    }
+
+    private static byte[] hash(byte pType, String pName) {
+        MessageDigest messageDigest = createMessageDigest();
+        messageDigest.update(pType);
+        messageDigest.update(pName.getBytes(StandardCharsets.UTF_8));
+
+        return messageDigest.digest();
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.f4fs.persistence.path;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 import net.tomp2p.dht.PeerDHT;
@@ -28,6 +29,29 @@ public interface IPathPersistence {
             throws InterruptedException, ClassNotFoundException, IOException;
 
 
+    /**
+     * Retrieves the paths stored directly within the given directory
+     * 
+     * @param pPeer Peer from which to get the DHT data
+     * @param pDirectoryPath The path of the directory
+     * @return A set containing the paths of the children
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If cast to string set failed
+     * @throws ClassNotFoundException If cast to string set failed
+     */
+    public Set<String> getChildPaths(PeerDHT pPeer, String pDirectoryPath)
+            throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Tells whether {@link #getChildPaths(PeerDHT, String) getChildPaths} fetches
+     * only the paths of the given directory. Otherwise all paths are fetched and filtered,
+     * so directories should rather not be loaded one by one.
+     * 
+     * @return True, if the paths of a single directory are fetched on their own
+     */
+    public boolean supportsChildListing();
+
     /**
      * Retrieves the path on the given content key
      * 
@@ -57,6 +81,35 @@ public interface IPathPersistence {
     public void putPath(PeerDHT pPeer, Number160 pContentKey, Data pValue)
             throws InterruptedException, ClassNotFoundException, IOException;
 
+    /**
+     * Puts a symlink into the DHT. It is identified by the hash of the path of the link
+     * and has the path of its target as value, like a path put with
+     * {@link #putPath(PeerDHT, Number160, Data)}.
+     * 
+     * @param pPeer Peer which gets used to store data in the DHT
+     * @param pLinkPath The path of the link
+     * @param pTargetPath The path of the target which should get stored
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If a stored path could not be read
+     * @throws ClassNotFoundException If a stored path could not be read
+     */
+    public void putLink(PeerDHT pPeer, String pLinkPath, Data pTargetPath)
+            throws InterruptedException, ClassNotFoundException, IOException;
+
+    /**
+     * Puts all given paths into the DHT with a single operation
+     * 
+     * @param pPeer Peer which gets used to store data in the DHT
+     * @param pPaths The paths to store, mapped by the keys which identify them in the DHT
+     * 
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws IOException If a stored path could not be read
+     * @throws ClassNotFoundException If a stored path could not be read
+     */
+    public void putPaths(PeerDHT pPeer, Map<Number160, Data> pPaths)
+            throws InterruptedException, ClassNotFoundException, IOException;
+
     /**
      * Removes a path from the DHT which is identified by the given key
      * 
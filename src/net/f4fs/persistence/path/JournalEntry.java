@@ -0,0 +1,63 @@
+package net.f4fs.persistence.path;
+
+import java.io.Serializable;
+
+import net.tomp2p.peers.Number160;
+
+
+/**
+ * A change of the paths stored in the DHT, as recorded in the {@link NamespaceJournal}
+ */
+public class JournalEntry
+        implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final boolean     removed;
+
+    private final byte[]      contentKey;
+
+    private final String      path;
+
+    private JournalEntry(boolean pRemoved, Number160 pContentKey, String pPath) {
+        this.removed = pRemoved;
+        this.contentKey = pContentKey.toByteArray();
+        this.path = pPath;
+    }
+
+    /**
+     * @param pContentKey The key of the stored path
+     * @param pPath The stored path
+     * @return An entry recording that the path was stored
+     */
+    public static JournalEntry added(Number160 pContentKey, String pPath) {
+        return new JournalEntry(false, pContentKey, pPath);
+    }
+
+    /**
+     * @param pContentKey The key of the removed path
+     * @param pPath The path of which the hash is the key, i.e. the path of the link for a symlink
+     * @return An entry recording that the path was removed
+     */
+    public static JournalEntry removed(Number160 pContentKey, String pPath) {
+        return new JournalEntry(true, pContentKey, pPath);
+    }
+
+    /**
+     * @return True, if the path was removed, false if it was stored
+     */
+    public boolean isRemoved() {
+        return this.removed;
+    }
+
+    public Number160 getContentKey() {
+        return new Number160(this.contentKey);
+    }
+
+    /**
+     * @return The stored path, or the removed path if the path was removed
+     */
+    public String getPath() {
+        return this.path;
+    }
+}
@@ -0,0 +1,429 @@
+package net.f4fs.persistence.path;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.f4fs.fspeer.GetListener;
+import net.f4fs.fspeer.PutListener;
+import net.f4fs.fspeer.RemoveListener;
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.dht.FuturePut;
+import net.tomp2p.dht.FutureRemove;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Sequence numbered log of the changes of the paths stored in the DHT.
+ * Peers read the log from the last sequence number they have seen,
+ * so that they only have to apply the changes made since. <br>
+ * Changes are appended in the background by a single thread, which stores all changes
+ * recorded in the meantime as one batch on the next free sequence number, if absent.
+ * Therefore, storing a path does not wait for the journal, and peers appending concurrently
+ * end up on different sequence numbers. A change lost because appending failed gets detected
+ * by comparing the digests of the directories. <br>
+ * The batches are stored in segments of {@link #SEGMENT_SIZE} sequence numbers, each on a location key
+ * of its own, so that the journal is spread over the peers. Every {@link #HEAD_INTERVAL} batches,
+ * the sequence number is stored as a hint, from which peers joining later start searching for the end of the log. <br>
+ * Each peer publishes the sequence number up to which it applied the journal, which expires unless
+ * it gets published again. Segments before the oldest published sequence number get removed,
+ * and peers which fell behind the start of the journal have to compare all paths instead.
+ */
+public class NamespaceJournal {
+
+    /**
+     * Number of batches after which the hint to the end of the journal gets updated
+     */
+    public static final int  HEAD_INTERVAL      = 64;
+
+    /**
+     * Number of sequence numbers stored on the same location key,
+     * and thus the number of batches removed at once
+     */
+    public static final int  SEGMENT_SIZE       = 256;
+
+    /**
+     * Maximum number of changes stored in one batch
+     */
+    private static final int MAX_BATCH_ENTRIES  = 256;
+
+    /**
+     * Maximum number of batches which are fetched concurrently.
+     * Reading starts with a single batch and doubles the number on each full window.
+     */
+    private static final int READ_WINDOW        = 16;
+
+    /**
+     * Time after which the published sequence number of a peer
+     * expires, unless the peer publishes it again
+     */
+    private static final int CURSOR_TTL_SECONDS = 3600;
+
+    /**
+     * Content key of the hint to the end of the journal
+     */
+    private static final Number160 HEAD_KEY     = Number160.createHash("journal-head");
+
+    /**
+     * Content key of the first sequence number not removed yet
+     */
+    private static final Number160 TAIL_KEY     = Number160.createHash("journal-tail");
+
+    private final Logger     logger             = LoggerFactory.getLogger(NamespaceJournal.class);
+
+    private final String     name;
+
+    /**
+     * Location key of the hints to the start and the end of the journal
+     */
+    private final Number160  locationKey;
+
+    /**
+     * Location key of the sequence numbers published by the peers
+     */
+    private final Number160  cursorsKey;
+
+    /**
+     * Sequence number on which the next batch is tried to be appended, 0 if not known yet
+     */
+    private final AtomicLong nextSequence;
+
+    /**
+     * Changes which are not appended yet
+     */
+    private final Queue<JournalEntry> pendingEntries;
+
+    private final ExecutorService appender;
+
+    /**
+     * Segment of the sequence number published last by this peer
+     */
+    private long             publishedSegment;
+
+    /**
+     * Time at which this peer published its sequence number the last time
+     */
+    private long             publishedMillis;
+
+    /**
+     * @param pName The name from which the location keys of the journal get derived
+     */
+    public NamespaceJournal(String pName) {
+        this.name = pName;
+        this.locationKey = Number160.createHash(pName);
+        this.cursorsKey = Number160.createHash(pName + "/cursors");
+        this.nextSequence = new AtomicLong(0);
+        this.pendingEntries = new ConcurrentLinkedQueue<>();
+        this.appender = Executors.newSingleThreadExecutor();
+        this.publishedSegment = -1;
+    }
+
+    /**
+     * Appends the given entry to the end of the journal in the background,
+     * together with the other entries recorded in the meantime
+     *
+     * @param pPeer Peer which gets used to store the entry
+     * @param pEntry The entry to append
+     */
+    public void append(PeerDHT pPeer, JournalEntry pEntry) {
+        this.pendingEntries.add(pEntry);
+        this.appender.execute(() -> appendPending(pPeer));
+    }
+
+    /**
+     * Blocks until all entries recorded until now are appended or failed to append
+     *
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitAppended()
+            throws InterruptedException {
+        try {
+            this.appender.submit(() -> {}).get();
+        } catch (ExecutionException e) {
+            // an empty task does not fail
+        }
+    }
+
+    /**
+     * Appends the entries recorded until now and stops appending afterwards
+     */
+    public void shutdown() {
+        this.appender.shutdown();
+    }
+
+    /**
+     * Reads the batches following each other from the given sequence number on
+     *
+     * @param pPeer Peer from which to get the batches
+     * @param pFromSequence The sequence number of the first batch to read
+     * @param pMaxBatches The number of batches after which no further batches are fetched
+     * @return The batches found, starting with the one on the given sequence number
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If a batch could not be read
+     * @throws IOException If a batch could not be read
+     */
+    public List<List<JournalEntry>> read(PeerDHT pPeer, long pFromSequence, int pMaxBatches)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        List<List<JournalEntry>> batches = new ArrayList<>();
+        int window = 1;
+
+        reading: while (batches.size() < pMaxBatches) {
+            long windowStart = pFromSequence + batches.size();
+
+            FutureGet[] futureGets = new FutureGet[window];
+            for (int i = 0; i < window; i++) {
+                futureGets[i] = pPeer.get(segmentKey(windowStart + i)).contentKey(sequenceKey(windowStart + i)).start();
+            }
+
+            for (FutureGet futureGet : futureGets) {
+                futureGet.await();
+
+                if (null == futureGet.data()) {
+                    break reading;
+                }
+
+                @SuppressWarnings("unchecked")
+                List<JournalEntry> batch = (List<JournalEntry>) futureGet.data().object();
+                batches.add(batch);
+            }
+
+            window = Math.min(2 * window, READ_WINDOW);
+        }
+
+        observe(pFromSequence + batches.size());
+        this.logger.debug("Read '" + batches.size() + "' journal batches from sequence number '" + pFromSequence + "'");
+
+        return batches;
+    }
+
+    /**
+     * Searches the end of the journal, starting from the stored hints
+     *
+     * @param pPeer Peer from which to get the batches
+     * @return The sequence number on which the next batch will be appended
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If a batch could not be read
+     * @throws IOException If a batch could not be read
+     */
+    public long getHead(PeerDHT pPeer)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        long sequence = Math.max(this.nextSequence.get(), getTail(pPeer));
+
+        Long hint = getHint(pPeer, HEAD_KEY);
+        if (null != hint) {
+            sequence = Math.max(sequence, hint);
+        }
+
+        List<List<JournalEntry>> batches;
+        do {
+            batches = read(pPeer, sequence, HEAD_INTERVAL);
+            sequence += batches.size();
+        } while (!batches.isEmpty());
+
+        return sequence;
+    }
+
+    /**
+     * Returns the start of the journal. Peers which did not read the batches
+     * before it yet cannot read them anymore.
+     *
+     * @param pPeer Peer from which to get the hint
+     * @return The sequence number of the first batch which is not removed
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If the hint could not be read
+     * @throws IOException If the hint could not be read
+     */
+    public long getTail(PeerDHT pPeer)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Long tail = getHint(pPeer, TAIL_KEY);
+
+        return (null == tail) ? 1 : tail;
+    }
+
+    /**
+     * Publishes that the given peer applied all batches before the given sequence number.
+     * Once the sequence number enters a new segment or is about to expire, it gets published again,
+     * and the segments applied by all peers which published their sequence numbers recently get removed.
+     *
+     * @param pPeer Peer which applied the batches
+     * @param pSequence The sequence number of the next batch the peer is going to read
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If the published sequence numbers could not be read
+     * @throws IOException If the sequence number could not be published
+     */
+    public void acknowledge(PeerDHT pPeer, long pSequence)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        long segment = pSequence / SEGMENT_SIZE;
+        if (segment == this.publishedSegment && System.currentTimeMillis() - this.publishedMillis < CURSOR_TTL_SECONDS * 500L) {
+            // the segments before it are removed already if possible
+            return;
+        }
+
+        FuturePut futurePut = pPeer.put(this.cursorsKey).data(pPeer.peerID(), new Data(Long.valueOf(pSequence)).ttlSeconds(CURSOR_TTL_SECONDS)).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Publish journal sequence number " + pSequence));
+        futurePut.await();
+
+        this.publishedSegment = segment;
+        this.publishedMillis = System.currentTimeMillis();
+        truncate(pPeer);
+    }
+
+    /**
+     * Removes the segments before the oldest sequence number published by the peers
+     *
+     * @param pPeer Peer which gets used to remove the segments
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If a sequence number could not be read
+     * @throws IOException If a sequence number could not be read
+     */
+    private void truncate(PeerDHT pPeer)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        FutureGet futureGet = pPeer.get(this.cursorsKey).all().start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get journal sequence numbers of peers"));
+        futureGet.await();
+
+        long oldestSequence = Long.MAX_VALUE;
+        for (Data data : futureGet.dataMap().values()) {
+            oldestSequence = Math.min(oldestSequence, (Long) data.object());
+        }
+
+        long tail = getTail(pPeer);
+        long newTail = (oldestSequence / SEGMENT_SIZE) * SEGMENT_SIZE;
+        if (Long.MAX_VALUE == oldestSequence || newTail <= tail) {
+            return;
+        }
+
+        // moved first, so that no peer starts reading a segment being removed
+        FuturePut futurePut = pPeer.put(this.locationKey).data(TAIL_KEY, new Data(Long.valueOf(newTail))).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put journal tail"));
+        futurePut.await();
+
+        for (long segment = tail / SEGMENT_SIZE; segment < newTail / SEGMENT_SIZE; segment++) {
+            FutureRemove futureRemove = pPeer.remove(segmentKey(segment * SEGMENT_SIZE)).all().start();
+            futureRemove.addListener(new RemoveListener(pPeer.peerAddress().inetAddress().toString(), "Remove journal segment " + segment));
+            futureRemove.await();
+        }
+
+        this.logger.info("Truncated journal up to sequence number '" + newTail + "'");
+    }
+
+    /**
+     * Appends the entries recorded until now as one batch
+     *
+     * @param pPeer Peer which gets used to store the batch
+     */
+    private void appendPending(PeerDHT pPeer) {
+        ArrayList<JournalEntry> batch = new ArrayList<>();
+        JournalEntry entry;
+        while (batch.size() < MAX_BATCH_ENTRIES && null != (entry = this.pendingEntries.poll())) {
+            batch.add(entry);
+        }
+
+        if (batch.isEmpty()) {
+            // appended with an earlier batch
+            return;
+        }
+
+        try {
+            appendBatch(pPeer, batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClassNotFoundException | IOException e) {
+            this.logger.error("Could not append '" + batch.size() + "' journal entries. Message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stores the given batch on the next free sequence number
+     *
+     * @param pPeer Peer which gets used to store the batch
+     * @param pBatch The entries to append
+     * @return The sequence number of the batch
+     *
+     * @throws InterruptedException If a failure happened during await of future
+     * @throws ClassNotFoundException If the hints to the end of the journal could not be read
+     * @throws IOException If the batch could not be stored
+     */
+    private long appendBatch(PeerDHT pPeer, ArrayList<JournalEntry> pBatch)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        long sequence = this.nextSequence.get();
+        if (0 == sequence) {
+            sequence = getHead(pPeer);
+        }
+
+        Data data = new Data(pBatch);
+        while (true) {
+            FuturePut futurePut = pPeer.put(segmentKey(sequence)).data(sequenceKey(sequence), data).putIfAbsent().start();
+            futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Append journal batch " + sequence));
+            futurePut.await();
+
+            if (futurePut.isSuccess()) {
+                break;
+            }
+
+            if (read(pPeer, sequence, 1).isEmpty()) {
+                throw new IOException("Could not append journal batch on sequence number '" + sequence + "'");
+            }
+
+            // appended by another peer in the meantime
+            sequence++;
+        }
+
+        observe(sequence + 1);
+
+        if (0 == sequence % HEAD_INTERVAL) {
+            FuturePut futurePut = pPeer.put(this.locationKey).data(HEAD_KEY, new Data(Long.valueOf(sequence))).start();
+            futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put journal head"));
+            futurePut.await();
+        }
+
+        return sequence;
+    }
+
+    private Long getHint(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        FutureGet futureGet = pPeer.get(this.locationKey).contentKey(pContentKey).start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get journal hint"));
+        futureGet.await();
+
+        if (null == futureGet.data()) {
+            return null;
+        }
+
+        return (Long) futureGet.data().object();
+    }
+
+    /**
+     * Remembers that the journal reaches at least up to the given sequence number
+     *
+     * @param pSequence A sequence number before which all batches exist
+     */
+    private void observe(long pSequence) {
+        this.nextSequence.accumulateAndGet(pSequence, Math::max);
+    }
+
+    private Number160 segmentKey(long pSequence) {
+        return Number160.createHash(this.name + "/" + (pSequence / SEGMENT_SIZE));
+    }
+
+    private static Number160 sequenceKey(long pSequence) {
+        return new Number160(ByteBuffer.allocate(8).putLong(pSequence).array());
+    }
+}
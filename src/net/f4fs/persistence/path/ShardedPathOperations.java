@@ -0,0 +1,299 @@
+package net.f4fs.persistence.path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.f4fs.filesystem.util.FSFileUtils;
+import net.f4fs.fspeer.GetListener;
+import net.f4fs.fspeer.PutListener;
+import net.f4fs.fspeer.RemoveListener;
+import net.tomp2p.dht.FutureGet;
+import net.tomp2p.dht.FuturePut;
+import net.tomp2p.dht.FutureRemove;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.peers.Number640;
+import net.tomp2p.storage.Data;
+
+
+/**
+ * Stores the paths on one location key per directory instead of on the single
+ * master location key, so that the load of the namespace is spread over the peers
+ * and the children of a directory can be fetched on their own. <br>
+ * A path is stored as content key within the shard of the directory containing it,
+ * i.e. a symlink within the shard of the directory containing the link. Additionally,
+ * the value, i.e. the path of a file or the target of a symlink, is stored on an entry
+ * of its own, so that it can be looked up by its content key without knowing the directory.
+ * Symlinks are stored within their shard on a content key of their own, and the entry
+ * of a symlink additionally holds the path of the link, so that its shard is known when removing it.
+ */
+public class ShardedPathOperations
+        implements IPathPersistence {
+
+    /**
+     * Separates the shards from the file contents stored on the hash of a path
+     */
+    private static final Number160 SHARD_DOMAIN = Number160.createHash("path-shard");
+
+    /**
+     * Separates the entries looked up by content key from the file contents
+     */
+    private static final Number160 ENTRY_DOMAIN = Number160.createHash("path-entry");
+
+    /**
+     * Separates symlinks from the other paths within a shard,
+     * and is the content key of the path of the link within its entry
+     */
+    private static final Number160 LINK_DOMAIN  = Number160.createHash("path-link");
+
+    /**
+     * Walks the directory tree breadth-first from the root directory,
+     * fetching the shards of each level concurrently. Paths which are
+     * considered files by their name are not fetched as shards.
+     */
+    @Override
+    public Set<String> getAllPaths(PeerDHT pPeer)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Set<String> paths = new HashSet<>();
+        Set<String> visitedDirectories = new HashSet<>();
+
+        List<String> level = new ArrayList<>();
+        level.add("/");
+        visitedDirectories.add("/");
+
+        while (!level.isEmpty()) {
+            List<FutureGet> futureGets = new ArrayList<>();
+            for (String directory : level) {
+                futureGets.add(getShard(pPeer, directory));
+            }
+
+            List<String> nextLevel = new ArrayList<>();
+            for (FutureGet futureGet : futureGets) {
+                futureGet.await();
+
+                for (Map.Entry<Number640, Data> entry : futureGet.dataMap().entrySet()) {
+                    String path = (String) entry.getValue().object();
+                    paths.add(path);
+
+                    // files and symlinks have no shard
+                    if (!isLink(entry.getKey().contentKey(), path) && !FSFileUtils.isFile(path) && visitedDirectories.add(path)) {
+                        nextLevel.add(path);
+                    }
+                }
+            }
+
+            level = nextLevel;
+        }
+
+        return paths;
+    }
+
+    /**
+     * Symlinks are not listed, since they are created by the synchronization,
+     * which looks up their targets
+     */
+    @Override
+    public Set<String> getChildPaths(PeerDHT pPeer, String pDirectoryPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Set<String> childPaths = new HashSet<>();
+
+        FutureGet futureGet = getShard(pPeer, pDirectoryPath);
+        futureGet.await();
+
+        for (Map.Entry<Number640, Data> entry : futureGet.dataMap().entrySet()) {
+            String path = (String) entry.getValue().object();
+            if (!FSFileUtils.isRootDirectory(path) && !isLink(entry.getKey().contentKey(), path)) {
+                childPaths.add(path);
+            }
+        }
+
+        return childPaths;
+    }
+
+    @Override
+    public boolean supportsChildListing() {
+        return true;
+    }
+
+    @Override
+    public String getPath(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        FutureGet futureGet = pPeer.get(entryKey(pContentKey)).start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get path for content key " + pContentKey.toString(true)));
+
+        futureGet.await();
+
+        if (null == futureGet.data()) {
+            return null;
+        }
+
+        return (String) futureGet.data().object();
+    }
+
+    @Override
+    public void putPath(PeerDHT pPeer, Number160 pContentKey, Data pValue)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        String path = (String) pValue.object();
+
+        FuturePut futurePut = pPeer.put(shardKey(FSFileUtils.getParentDirectory(path))).data(pContentKey, pValue).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put path in shard"));
+        futurePut.await();
+
+        futurePut = pPeer.put(entryKey(pContentKey)).data(pValue).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put path"));
+        futurePut.await();
+    }
+
+    /**
+     * Stores the path of the link within the shard of the directory containing the link,
+     * and the path of the target as well as the one of the link on the entry of the link
+     */
+    @Override
+    public void putLink(PeerDHT pPeer, String pLinkPath, Data pTargetPath)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Number160 contentKey = Number160.createHash(pLinkPath);
+        Data linkPath = new Data(pLinkPath);
+
+        List<FuturePut> futurePuts = new ArrayList<>();
+
+        FuturePut futurePut = pPeer.put(shardKey(FSFileUtils.getParentDirectory(pLinkPath))).data(linkKey(contentKey), linkPath).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put link in shard"));
+        futurePuts.add(futurePut);
+
+        futurePut = pPeer.put(entryKey(contentKey)).data(pTargetPath).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put link"));
+        futurePuts.add(futurePut);
+
+        futurePut = pPeer.put(entryKey(contentKey)).data(LINK_DOMAIN, linkPath).start();
+        futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put path of link"));
+        futurePuts.add(futurePut);
+
+        for (FuturePut future : futurePuts) {
+            future.await();
+        }
+    }
+
+    /**
+     * Stores the paths with one put per affected directory,
+     * plus the entries looked up by content key
+     */
+    @Override
+    public void putPaths(PeerDHT pPeer, Map<Number160, Data> pPaths)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Map<String, Map<Number160, Data>> shards = new HashMap<>();
+        for (Map.Entry<Number160, Data> entry : pPaths.entrySet()) {
+            String directory = FSFileUtils.getParentDirectory((String) entry.getValue().object());
+
+            Map<Number160, Data> shard = shards.get(directory);
+            if (null == shard) {
+                shard = new HashMap<>();
+                shards.put(directory, shard);
+            }
+            shard.put(entry.getKey(), entry.getValue());
+        }
+
+        List<FuturePut> futurePuts = new ArrayList<>();
+        for (Map.Entry<String, Map<Number160, Data>> shard : shards.entrySet()) {
+            FuturePut futurePut = pPeer.put(shardKey(shard.getKey())).dataMapContent(shard.getValue()).start();
+            futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put " + shard.getValue().size() + " paths in shard"));
+            futurePuts.add(futurePut);
+        }
+
+        for (Map.Entry<Number160, Data> entry : pPaths.entrySet()) {
+            FuturePut futurePut = pPeer.put(entryKey(entry.getKey())).data(entry.getValue()).start();
+            futurePut.addListener(new PutListener(pPeer.peerAddress().inetAddress().toString(), "Put path"));
+            futurePuts.add(futurePut);
+        }
+
+        for (FuturePut futurePut : futurePuts) {
+            futurePut.await();
+        }
+    }
+
+    /**
+     * Looks up the stored value to find the shard from which to remove the path,
+     * or the stored path of the link, if the value is the target of a symlink
+     */
+    @Override
+    public void removePath(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException {
+        String path;
+        String linkPath = null;
+        try {
+            path = getPath(pPeer, pContentKey);
+            if (null != path && isLink(pContentKey, path)) {
+                linkPath = getLinkPath(pPeer, pContentKey);
+            }
+        } catch (ClassNotFoundException | IOException e) {
+            path = null;
+        }
+
+        if (null != linkPath) {
+            FutureRemove futureRemove = pPeer.remove(shardKey(FSFileUtils.getParentDirectory(linkPath))).contentKey(linkKey(pContentKey)).start();
+            futureRemove.addListener(new RemoveListener(pPeer.peerAddress().inetAddress().toString(), "Remove link from shard"));
+            futureRemove.await();
+
+            futureRemove = pPeer.remove(entryKey(pContentKey)).contentKey(LINK_DOMAIN).start();
+            futureRemove.addListener(new RemoveListener(pPeer.peerAddress().inetAddress().toString(), "Remove path of link"));
+            futureRemove.await();
+        } else if (null != path) {
+            FutureRemove futureRemove = pPeer.remove(shardKey(FSFileUtils.getParentDirectory(path))).contentKey(pContentKey).start();
+            futureRemove.addListener(new RemoveListener(pPeer.peerAddress().inetAddress().toString(), "Remove path from shard"));
+            futureRemove.await();
+        }
+
+        FutureRemove futureRemove = pPeer.remove(entryKey(pContentKey)).start();
+        futureRemove.addListener(new RemoveListener(pPeer.peerAddress().inetAddress().toString(), "Remove path"));
+        futureRemove.await();
+    }
+
+    private String getLinkPath(PeerDHT pPeer, Number160 pContentKey)
+            throws InterruptedException, ClassNotFoundException, IOException {
+        FutureGet futureGet = pPeer.get(entryKey(pContentKey)).contentKey(LINK_DOMAIN).start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get path of link for content key " + pContentKey.toString(true)));
+
+        futureGet.await();
+
+        if (null == futureGet.data()) {
+            return null;
+        }
+
+        return (String) futureGet.data().object();
+    }
+
+    /**
+     * Checks whether the given path is stored as symlink. The content key of
+     * a symlink is not the hash of the stored path, neither within a shard nor on its entry.
+     *
+     * @param pContentKey The content key on which the path is stored
+     * @param pPath The stored path
+     * @return True, if the path is the one of a link or the one of the target of a link
+     */
+    private static boolean isLink(Number160 pContentKey, String pPath) {
+        return !Number160.createHash(pPath).equals(pContentKey);
+    }
+
+    private FutureGet getShard(PeerDHT pPeer, String pDirectoryPath) {
+        FutureGet futureGet = pPeer.get(shardKey(pDirectoryPath)).all().start();
+        futureGet.addListener(new GetListener(pPeer.peerAddress().inetAddress().toString(), "Get paths in " + pDirectoryPath));
+
+        return futureGet;
+    }
+
+    private static Number160 shardKey(String pDirectoryPath) {
+        return Number160.createHash(pDirectoryPath).xor(SHARD_DOMAIN);
+    }
+
+    private static Number160 entryKey(Number160 pContentKey) {
+        return pContentKey.xor(ENTRY_DOMAIN);
+    }
+
+    private static Number160 linkKey(Number160 pContentKey) {
+        return pContentKey.xor(LINK_DOMAIN);
+    }
+}
@@ -0,0 +1,162 @@
+package test.filesystem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import net.f4fs.filesystem.fscontent.FSFileContent;
+import net.f4fs.persistence.data.ByteRange;
+
+import org.junit.Test;
+
+
+public class FSFileContentTest {
+
+    private static final int PAGE_SIZE = 8;
+
+    @Test
+    public void testWriteAcrossPages() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.write(ByteBuffer.wrap("hello paged world".getBytes()), 0);
+
+        assertEquals(17, content.size());
+        assertEquals("hello paged world", read(content, 0, 100));
+        assertEquals("paged", read(content, 6, 5));
+
+        BitSet dirty = content.getDirtyPages();
+        assertEquals(3, dirty.cardinality());
+    }
+
+    @Test
+    public void testHolesReadAsZeros() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.write(ByteBuffer.wrap(new byte[] { 1 }), 4 * PAGE_SIZE);
+
+        assertEquals(4 * PAGE_SIZE + 1, content.size());
+        assertEquals(PAGE_SIZE, content.getAllocatedBytes());
+
+        ByteBuffer target = ByteBuffer.allocate((int) content.size());
+        content.read(target, 0, target.capacity());
+        byte[] expected = new byte[4 * PAGE_SIZE + 1];
+        expected[4 * PAGE_SIZE] = 1;
+        assertArrayEquals(expected, target.array());
+    }
+
+    @Test
+    public void testTruncateZeroesTail() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.write(ByteBuffer.wrap("abcdefghijklmnop".getBytes()), 0);
+        content.clearDirtyPages();
+
+        content.truncate(3);
+        assertEquals(3, content.size());
+        assertEquals(PAGE_SIZE, content.getAllocatedBytes());
+        assertTrue(content.getDirtyPages().get(0));
+        assertFalse(content.getDirtyPages().get(1));
+
+        content.truncate(6);
+        assertEquals("abc", read(content, 0, 3));
+        assertArrayEquals(new byte[3], read(content, 3, 3).getBytes());
+    }
+
+    @Test
+    public void testTruncateExtendsWithHole() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.write(ByteBuffer.wrap("abc".getBytes()), 0);
+        content.write(ByteBuffer.wrap("xyz".getBytes()), 40);
+
+        content.truncate(1000);
+        assertEquals(1000, content.size());
+        assertEquals(2 * PAGE_SIZE, content.getAllocatedBytes());
+        assertArrayEquals(new byte[10], read(content, 990, 10).getBytes());
+
+        content.truncate(20);
+        assertEquals(PAGE_SIZE, content.getAllocatedBytes());
+        assertEquals("abc", read(content, 0, 3));
+    }
+
+    @Test
+    public void testLoadDoesNotMarkDirty() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.reset(20);
+        content.load(ByteBuffer.wrap("0123456789".getBytes()), 8);
+
+        assertEquals(20, content.size());
+        assertTrue(content.getDirtyPages().isEmpty());
+        assertEquals("0123", read(content, 8, 4));
+    }
+
+    @Test
+    public void testTakeDirtyRanges() {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.load(ByteBuffer.wrap(new byte[5 * PAGE_SIZE]), 0);
+        content.write(ByteBuffer.wrap(new byte[] { 1 }), 1);
+        content.write(ByteBuffer.wrap(new byte[] { 1 }), PAGE_SIZE + 2);
+        content.write(ByteBuffer.wrap(new byte[] { 1, 1 }), 5 * PAGE_SIZE - 1);
+
+        List<ByteRange> ranges = content.takeDirtyRanges();
+        assertEquals(Arrays.asList(new ByteRange(0, 2 * PAGE_SIZE), new ByteRange(4 * PAGE_SIZE, PAGE_SIZE + 1)), ranges);
+        assertFalse(content.hasDirtyPages());
+
+        content.restoreDirtyRanges(ranges);
+        assertEquals(ranges, content.takeDirtyRanges());
+    }
+
+    @Test
+    public void testSpillToFile()
+            throws IOException {
+        Path directory = Files.createTempDirectory("spill");
+        FSFileContent content = new FSFileContent(PAGE_SIZE, 2 * PAGE_SIZE, directory.toString());
+        content.write(ByteBuffer.wrap("on the heap".getBytes()), 0);
+        assertFalse(content.isSpilled());
+
+        content.write(ByteBuffer.wrap("in the spill file".getBytes()), 20);
+        assertTrue(content.isSpilled());
+        assertEquals("on the heap", read(content, 0, 11));
+        assertEquals("in the spill file", read(content, 20, 17));
+
+        content.truncate(4);
+        content.write(ByteBuffer.wrap("reused".getBytes()), 30);
+        assertEquals("on t", read(content, 0, 4));
+        assertArrayEquals(new byte[26], read(content, 4, 26).getBytes());
+
+        content.release();
+        assertFalse(content.isSpilled());
+        assertEquals(0, Files.list(directory).count());
+    }
+
+    @Test
+    public void testReadChannel()
+            throws IOException {
+        FSFileContent content = new FSFileContent(PAGE_SIZE);
+        content.write(ByteBuffer.wrap("streamed contents".getBytes()), 0);
+
+        ReadableByteChannel channel = content.newReadChannel();
+        ByteBuffer target = ByteBuffer.allocate(64);
+        ByteBuffer step = ByteBuffer.allocate(5);
+        while (channel.read(step) >= 0) {
+            step.flip();
+            target.put(step);
+            step.clear();
+        }
+
+        assertEquals("streamed contents", new String(target.array(), 0, target.position()));
+    }
+
+    private String read(FSFileContent pContent, long pOffset, int pLength) {
+        ByteBuffer target = ByteBuffer.allocate(pLength);
+        int read = pContent.read(target, pOffset, pLength);
+
+        return new String(target.array(), 0, read);
+    }
+}
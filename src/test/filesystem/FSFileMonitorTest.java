@@ -0,0 +1,180 @@
+package test.filesystem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.f4fs.filesystem.event.events.AEvent;
+import net.f4fs.filesystem.event.events.CompleteWriteEvent;
+import net.f4fs.filesystem.event.listeners.IEventListener;
+import net.f4fs.filesystem.fscontent.FSFileContent;
+import net.f4fs.filesystem.fsfilemonitor.FSFileMonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class FSFileMonitorTest {
+
+    private FSFileMonitor  monitor;
+
+    private List<String>   writtenPaths;
+
+    private CountDownLatch writes;
+
+    @Before
+    public void setUp() {
+        this.monitor = new FSFileMonitor(null, null);
+        this.writtenPaths = Collections.synchronizedList(new ArrayList<>());
+        this.writes = new CountDownLatch(1);
+
+        this.monitor.addEventListener(new IEventListener() {
+
+            @Override
+            public void handleEvent(AEvent pEvent) {
+                CompleteWriteEvent writeEvent = (CompleteWriteEvent) pEvent;
+                if (writeEvent.getPath().equals("/failing")) {
+                    writeEvent.setError(new IOException("no peers"));
+                    return;
+                }
+
+                writtenPaths.add(writeEvent.getPath());
+                writes.countDown();
+            }
+
+            @Override
+            public String getEventName() {
+                return CompleteWriteEvent.eventName;
+            }
+        });
+
+        new Thread(this.monitor).start();
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.terminate();
+    }
+
+    @Test
+    public void testFlushWritesImmediately()
+            throws Exception {
+        this.monitor.addMonitoredFile("/file", contentOf("contents"));
+        assertTrue(this.monitor.getMonitoredFilePaths().contains("/file"));
+
+        this.monitor.flush("/file").get(500, TimeUnit.MILLISECONDS);
+        assertEquals(Collections.singletonList("/file"), this.writtenPaths);
+        assertFalse(this.monitor.getMonitoredFilePaths().contains("/file"));
+        assertTrue(this.monitor.flush("/file").isDone());
+    }
+
+    @Test
+    public void testFileBeingWrittenStaysMonitored()
+            throws Exception {
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch releaseWrite = new CountDownLatch(1);
+        this.monitor.addEventListener(new HoldingListener("/held", writeStarted, releaseWrite));
+
+        this.monitor.addMonitoredFile("/held", contentOf("contents"));
+        CompletableFuture<Void> write = this.monitor.flush("/held");
+        assertTrue(writeStarted.await(500, TimeUnit.MILLISECONDS));
+
+        assertTrue(this.monitor.getMonitoredFilePaths().contains("/held"));
+
+        releaseWrite.countDown();
+        write.get(500, TimeUnit.MILLISECONDS);
+        assertFalse(this.monitor.getMonitoredFilePaths().contains("/held"));
+    }
+
+    @Test
+    public void testFlushReportsError()
+            throws Exception {
+        this.monitor.addMonitoredFile("/failing", contentOf("contents"));
+
+        try {
+            this.monitor.flush("/failing").get(500, TimeUnit.MILLISECONDS);
+            fail("Expected the write to fail");
+        } catch (ExecutionException e) {
+            assertEquals("no peers", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testRemovedFileIsNotWritten()
+            throws InterruptedException {
+        this.monitor.addMonitoredFile("/removed", contentOf("contents"));
+        assertTrue(this.monitor.removeMonitoredFile("/removed"));
+        assertFalse(this.monitor.removeMonitoredFile("/removed"));
+
+        assertFalse(this.writes.await(1500, TimeUnit.MILLISECONDS));
+        assertTrue(this.writtenPaths.isEmpty());
+    }
+
+    @Test
+    public void testWriteAfterDelay()
+            throws InterruptedException {
+        FSFileContent contents = contentOf("first");
+        this.monitor.addMonitoredFile("/delayed", contents);
+        assertEquals(contents, this.monitor.getFileContent("/delayed"));
+
+        assertTrue(this.writes.await(3000, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList("/delayed"), this.writtenPaths);
+    }
+
+    static FSFileContent contentOf(String pContent) {
+        FSFileContent content = new FSFileContent(8);
+        content.write(ByteBuffer.wrap(pContent.getBytes()), 0);
+
+        return content;
+    }
+
+    /**
+     * Blocks the write of the given path until it gets released
+     */
+    static class HoldingListener
+            implements IEventListener {
+
+        private final String         path;
+
+        private final CountDownLatch writeStarted;
+
+        private final CountDownLatch releaseWrite;
+
+        public HoldingListener(String pPath, CountDownLatch pWriteStarted, CountDownLatch pReleaseWrite) {
+            this.path = pPath;
+            this.writeStarted = pWriteStarted;
+            this.releaseWrite = pReleaseWrite;
+        }
+
+        @Override
+        public void handleEvent(AEvent pEvent) {
+            if (!((CompleteWriteEvent) pEvent).getPath().equals(this.path)) {
+                return;
+            }
+
+            this.writeStarted.countDown();
+            try {
+                this.releaseWrite.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public String getEventName() {
+            return CompleteWriteEvent.eventName;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package test.filesystem;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.f4fs.filesystem.fspathcache.FSPathCache;
+import net.f4fs.filesystem.partials.MemoryDirectory;
+import net.f4fs.filesystem.partials.MemoryFile;
+
+import org.junit.Test;
+
+
+public class FSPathCacheTest {
+
+    @Test
+    public void absentTest() {
+        FSPathCache cache = new FSPathCache(16, 60000);
+
+        assertFalse(cache.isAbsent("/missing.txt"));
+
+        cache.putAbsent("/missing.txt", cache.getGeneration());
+        assertTrue(cache.isAbsent("/missing.txt"));
+    }
+
+    @Test
+    public void absentExpiresTest()
+            throws InterruptedException {
+        FSPathCache cache = new FSPathCache(16, 10);
+
+        cache.putAbsent("/missing.txt", cache.getGeneration());
+        Thread.sleep(50);
+
+        assertFalse(cache.isAbsent("/missing.txt"));
+    }
+
+    @Test
+    public void absentInvalidatedTest() {
+        FSPathCache cache = new FSPathCache(16, 60000);
+
+        cache.putAbsent("/missing.txt", cache.getGeneration());
+        cache.putAbsent("/dir/missing.txt", cache.getGeneration());
+        cache.putAbsent("/directory.txt", cache.getGeneration());
+
+        cache.invalidate("/missing.txt");
+        cache.invalidateSubtree("/dir");
+
+        assertFalse(cache.isAbsent("/missing.txt"));
+        assertFalse(cache.isAbsent("/dir/missing.txt"));
+        assertTrue(cache.isAbsent("/directory.txt"));
+    }
+
+    @Test
+    public void absentDisabledTest() {
+        FSPathCache cache = new FSPathCache(16);
+
+        cache.putAbsent("/missing.txt", cache.getGeneration());
+
+        assertFalse(cache.isAbsent("/missing.txt"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEvictedTest() {
+        FSPathCache cache = new FSPathCache(2);
+        MemoryDirectory root = new MemoryDirectory("/", null);
+        MemoryFile first = new MemoryFile("first.txt", root, null);
+        MemoryFile second = new MemoryFile("second.txt", root, null);
+        MemoryFile third = new MemoryFile("third.txt", root, null);
+
+        cache.put("/first.txt", first, cache.getGeneration());
+        cache.put("/second.txt", second, cache.getGeneration());
+
+        // makes the second entry the least recently used one
+        assertNotNull(cache.get("/first.txt"));
+        cache.put("/third.txt", third, cache.getGeneration());
+
+        assertNotNull(cache.get("/first.txt"));
+        assertNull(cache.get("/second.txt"));
+        assertNotNull(cache.get("/third.txt"));
+    }
+
+    @Test
+    public void subtreeInvalidatedTest() {
+        FSPathCache cache = new FSPathCache(16);
+        MemoryDirectory root = new MemoryDirectory("/", null);
+        MemoryDirectory dir = new MemoryDirectory("dir", root, null);
+        MemoryFile nested = new MemoryFile("file.txt", dir, null);
+        MemoryFile sibling = new MemoryFile("dir.txt", root, null);
+
+        cache.put("/dir", dir, cache.getGeneration());
+        cache.put("/dir/file.txt", nested, cache.getGeneration());
+        cache.put("/dir.txt", sibling, cache.getGeneration());
+
+        cache.invalidateSubtree("/dir");
+
+        assertNull(cache.get("/dir"));
+        assertNull(cache.get("/dir/file.txt"));
+        assertNotNull(cache.get("/dir.txt"));
+    }
+
+    @Test
+    public void staleGenerationIgnoredTest() {
+        FSPathCache cache = new FSPathCache(16, 60000);
+        MemoryDirectory root = new MemoryDirectory("/", null);
+        MemoryFile file = new MemoryFile("file.txt", root, null);
+
+        long generation = cache.getGeneration();
+        cache.invalidate("/file.txt");
+
+        cache.put("/file.txt", file, generation);
+        cache.putAbsent("/missing.txt", generation);
+
+        assertNull(cache.get("/file.txt"));
+        assertFalse(cache.isAbsent("/missing.txt"));
+    }
+}
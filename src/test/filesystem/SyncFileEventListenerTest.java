@@ -0,0 +1,81 @@
+package test.filesystem;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.f4fs.filesystem.P2PFS;
+import net.f4fs.filesystem.event.events.AfterWriteEvent;
+import net.f4fs.filesystem.event.listeners.SyncFileEventListener;
+import net.f4fs.filesystem.fsfilemonitor.FSFileMonitor;
+import net.f4fs.fspeer.FSPeer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class SyncFileEventListenerTest {
+
+    private static FSPeer fsPeer;
+
+    private FSFileMonitor monitor;
+
+    private P2PFS         filesystem;
+
+    @BeforeClass
+    public static void initTest()
+            throws Exception {
+        fsPeer = new FSPeer();
+        fsPeer.startAsBootstrapPeer();
+    }
+
+    @Before
+    public void setUp()
+            throws IOException {
+        this.monitor = new FSFileMonitor(null, null);
+        new Thread(this.monitor).start();
+
+        // reports the files of the monitor controlled by the test
+        this.filesystem = new P2PFS(fsPeer) {
+
+            @Override
+            public Set<String> getMonitoredFilePaths() {
+                return monitor.getMonitoredFilePaths();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        this.monitor.terminate();
+    }
+
+    @Test
+    public void testFileBeingWrittenSurvivesSync()
+            throws Exception {
+        CountDownLatch writeStarted = new CountDownLatch(1);
+        CountDownLatch releaseWrite = new CountDownLatch(1);
+        this.monitor.addEventListener(new FSFileMonitorTest.HoldingListener("/held.txt", writeStarted, releaseWrite));
+
+        // exists locally only, since its write is not finished
+        this.filesystem.createLocally("/held.txt");
+        this.monitor.addMonitoredFile("/held.txt", FSFileMonitorTest.contentOf("contents"));
+        this.monitor.flush("/held.txt");
+        assertTrue(writeStarted.await(500, TimeUnit.MILLISECONDS));
+
+        SyncFileEventListener syncListener = new SyncFileEventListener();
+        // the first invocation compares all paths, the second one the digests
+        syncListener.handleEvent(new AfterWriteEvent(this.filesystem, fsPeer));
+        assertNotNull(this.filesystem.getPath("/held.txt"));
+        syncListener.handleEvent(new AfterWriteEvent(this.filesystem, fsPeer));
+        assertNotNull(this.filesystem.getPath("/held.txt"));
+
+        releaseWrite.countDown();
+    }
+}
@@ -0,0 +1,71 @@
+package test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.f4fs.persistence.chunk.ChunkManifest;
+import net.tomp2p.peers.Number160;
+
+import org.junit.Test;
+
+
+public class ChunkManifestTest {
+
+    @Test
+    public void testChunkListRoundTrip()
+            throws IOException {
+        List<Number160> keys = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            keys.add(Number160.createHash("chunk" + i));
+        }
+
+        ChunkManifest manifest = ChunkManifest.createChunkList(keys, Arrays.asList(100, 50, 25));
+        ChunkManifest parsed = ChunkManifest.parse(manifest.toBytes());
+
+        assertFalse(parsed.isPaged());
+        assertEquals(3, parsed.size());
+        assertEquals(175, parsed.getTotalSize());
+        assertEquals(keys, parsed.getKeys());
+        assertEquals(50, parsed.getLength(1));
+    }
+
+    @Test
+    public void testOffsetLookup()
+            throws IOException {
+        List<Number160> keys = Arrays.asList(Number160.createHash("a"), Number160.createHash("b"), Number160.createHash("c"));
+        ChunkManifest manifest = ChunkManifest.parse(ChunkManifest.createChunkList(keys, Arrays.asList(100, 50, 25)).toBytes());
+
+        assertEquals(0, manifest.getOffset(0));
+        assertEquals(150, manifest.getOffset(2));
+
+        assertEquals(0, manifest.getIndex(0));
+        assertEquals(0, manifest.getIndex(99));
+        assertEquals(1, manifest.getIndex(100));
+        assertEquals(2, manifest.getIndex(174));
+        assertEquals(3, manifest.getIndex(175));
+    }
+
+    @Test
+    public void testPageIndex()
+            throws IOException {
+        List<Number160> keys = Arrays.asList(Number160.createHash("page0"), Number160.createHash("page1"));
+        ChunkManifest manifest = ChunkManifest.parse(ChunkManifest.createPageIndex(keys, Arrays.asList(3000000000L, 10L)).toBytes());
+
+        assertTrue(manifest.isPaged());
+        assertEquals(3000000010L, manifest.getTotalSize());
+        assertEquals(3000000000L, manifest.getLength(0));
+        assertEquals(1, manifest.getIndex(3000000000L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsInvalidData()
+            throws IOException {
+        ChunkManifest.parse("[{\"val\":[1,2,3]}]".getBytes());
+    }
+}
@@ -0,0 +1,95 @@
+package test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import net.f4fs.persistence.chunk.ContentDefinedChunker;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class ContentDefinedChunkerTest {
+
+    private static final int             MIN_SIZE = 1024;
+    private static final int             AVG_SIZE = 4096;
+    private static final int             MAX_SIZE = 16384;
+
+    private static byte[]                testData = null;
+    private static ContentDefinedChunker chunker  = null;
+
+    @BeforeClass
+    public static void initTest() {
+        chunker = new ContentDefinedChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+
+        testData = new byte[1024 * 1024];
+        new Random(42).nextBytes(testData);
+    }
+
+    @Test
+    public void testChunkSizesWithinBounds() {
+        List<byte[]> chunks = split(testData);
+
+        int total = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunks.get(i).length;
+            total += length;
+
+            assertTrue(length <= MAX_SIZE);
+            // only the last chunk may be smaller than the minimum
+            assertTrue(length >= MIN_SIZE || i == chunks.size() - 1);
+        }
+
+        assertEquals(testData.length, total);
+    }
+
+    @Test
+    public void testSmallDataIsSingleChunk() {
+        byte[] data = Arrays.copyOf(testData, MIN_SIZE / 2);
+
+        assertEquals(data.length, chunker.nextChunkLength(data, 0, data.length));
+    }
+
+    @Test
+    public void testInsertOnlyChangesChunksAroundEdit() {
+        byte[] edited = new byte[testData.length + 10];
+        System.arraycopy(testData, 0, edited, 0, 100);
+        System.arraycopy(testData, 100, edited, 110, testData.length - 100);
+
+        Set<String> originalChunks = new HashSet<>();
+        for (byte[] chunk : split(testData)) {
+            originalChunks.add(Arrays.toString(chunk));
+        }
+
+        List<byte[]> editedChunks = split(edited);
+        int changed = 0;
+        for (byte[] chunk : editedChunks) {
+            if (!originalChunks.contains(Arrays.toString(chunk))) {
+                changed++;
+            }
+        }
+
+        // boundaries resynchronize shortly after the insert
+        assertTrue(changed <= 3);
+    }
+
+    private static List<byte[]> split(byte[] pData) {
+        List<byte[]> chunks = new ArrayList<>();
+
+        int offset = 0;
+        while (offset < pData.length) {
+            int length = chunker.nextChunkLength(pData, offset, pData.length - offset);
+            chunks.add(Arrays.copyOfRange(pData, offset, offset + length));
+            offset += length;
+        }
+
+        return chunks;
+    }
+}
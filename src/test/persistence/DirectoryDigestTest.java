@@ -0,0 +1,63 @@
+package test.persistence;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.f4fs.persistence.path.DirectoryDigest;
+
+import org.junit.Test;
+
+
+public class DirectoryDigestTest {
+
+    @Test
+    public void independentOfOrderTest() {
+        Map<String, byte[]> children = new LinkedHashMap<>();
+        children.put("b.txt", DirectoryDigest.fileHash("b.txt"));
+        children.put("a.txt", DirectoryDigest.fileHash("a.txt"));
+
+        Map<String, byte[]> reversed = new LinkedHashMap<>();
+        reversed.put("a.txt", DirectoryDigest.fileHash("a.txt"));
+        reversed.put("b.txt", DirectoryDigest.fileHash("b.txt"));
+
+        assertArrayEquals(new DirectoryDigest(children).getDigest(), new DirectoryDigest(reversed).getDigest());
+    }
+
+    @Test
+    public void nestedChangeTest() {
+        Map<String, byte[]> subdirectory = new HashMap<>();
+        subdirectory.put("a.txt", DirectoryDigest.fileHash("a.txt"));
+        DirectoryDigest before = withSubdirectory(new DirectoryDigest(subdirectory));
+
+        subdirectory.put("b.txt", DirectoryDigest.fileHash("b.txt"));
+        DirectoryDigest after = withSubdirectory(new DirectoryDigest(subdirectory));
+
+        assertFalse(after.hasDigest(before.getDigest()));
+        assertTrue(after.hasDigest(withSubdirectory(new DirectoryDigest(subdirectory)).getDigest()));
+        assertFalse(after.hasDigest(null));
+    }
+
+    @Test
+    public void typesDifferTest() {
+        Map<String, byte[]> file = new HashMap<>();
+        file.put("link", DirectoryDigest.fileHash("link"));
+
+        Map<String, byte[]> symlink = new HashMap<>();
+        symlink.put("link", DirectoryDigest.symlinkHash("link"));
+
+        assertFalse(new DirectoryDigest(file).hasDigest(new DirectoryDigest(symlink).getDigest()));
+    }
+
+    private DirectoryDigest withSubdirectory(DirectoryDigest pSubdirectory) {
+        Map<String, byte[]> children = new HashMap<>();
+        children.put("file.txt", DirectoryDigest.fileHash("file.txt"));
+        children.put("dir", pSubdirectory.getDigest());
+
+        return new DirectoryDigest(children);
+    }
+}
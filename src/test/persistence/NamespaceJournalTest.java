@@ -0,0 +1,109 @@
+package test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.path.JournalEntry;
+import net.f4fs.persistence.path.NamespaceJournal;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.peers.Number160;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class NamespaceJournalTest {
+
+    private static PeerDHT peerDht = null;
+
+    @BeforeClass
+    public static void initTest()
+            throws Exception {
+        FSPeer fsPeer = new FSPeer();
+
+        fsPeer.startAsBootstrapPeer();
+        peerDht = fsPeer.getPeerDHT();
+    }
+
+    @Test
+    public void appendAndReadTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        NamespaceJournal journal = new NamespaceJournal("journal-append");
+        long head = journal.getHead(peerDht);
+
+        journal.append(peerDht, JournalEntry.added(Number160.createHash("/a.txt"), "/a.txt"));
+        journal.append(peerDht, JournalEntry.removed(Number160.createHash("/a.txt"), "/a.txt"));
+        journal.awaitAppended();
+
+        List<JournalEntry> entries = new ArrayList<>();
+        for (List<JournalEntry> batch : journal.read(peerDht, head, 100)) {
+            entries.addAll(batch);
+        }
+        assertEquals(2, entries.size());
+        assertFalse(entries.get(0).isRemoved());
+        assertEquals("/a.txt", entries.get(0).getPath());
+        assertTrue(entries.get(1).isRemoved());
+        assertEquals(Number160.createHash("/a.txt"), entries.get(1).getContentKey());
+        assertEquals("/a.txt", entries.get(1).getPath());
+
+        assertEquals(journal.getHead(peerDht), head + journal.read(peerDht, head, 100).size());
+    }
+
+    @Test
+    public void concurrentJournalsTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        NamespaceJournal journal = new NamespaceJournal("journal-concurrent");
+        NamespaceJournal otherJournal = new NamespaceJournal("journal-concurrent");
+        long head = journal.getHead(peerDht);
+
+        journal.append(peerDht, JournalEntry.added(Number160.createHash("/b.txt"), "/b.txt"));
+        journal.awaitAppended();
+        // does not know the batch appended by the first journal yet
+        otherJournal.append(peerDht, JournalEntry.added(Number160.createHash("/c.txt"), "/c.txt"));
+        otherJournal.awaitAppended();
+
+        List<List<JournalEntry>> batches = journal.read(peerDht, head, 100);
+        assertEquals(2, batches.size());
+        assertEquals("/b.txt", batches.get(0).get(0).getPath());
+        assertEquals("/c.txt", batches.get(1).get(0).getPath());
+        assertEquals(head + 2, new NamespaceJournal("journal-concurrent").getHead(peerDht));
+    }
+
+    @Test
+    public void headHintTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        NamespaceJournal journal = new NamespaceJournal("journal-head");
+        for (int i = 0; i < NamespaceJournal.HEAD_INTERVAL + 3; i++) {
+            journal.append(peerDht, JournalEntry.added(Number160.createHash("/" + i), "/" + i));
+            journal.awaitAppended();
+        }
+
+        assertEquals(NamespaceJournal.HEAD_INTERVAL + 4, new NamespaceJournal("journal-head").getHead(peerDht));
+    }
+
+    @Test
+    public void truncateTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        NamespaceJournal journal = new NamespaceJournal("journal-truncate");
+        for (int i = 0; i < NamespaceJournal.SEGMENT_SIZE + 3; i++) {
+            journal.append(peerDht, JournalEntry.added(Number160.createHash("/" + i), "/" + i));
+            journal.awaitAppended();
+        }
+        assertEquals(1, journal.getTail(peerDht));
+
+        long head = journal.getHead(peerDht);
+        journal.acknowledge(peerDht, head);
+
+        // only the segments before the segment of the oldest published sequence number get removed
+        assertEquals(NamespaceJournal.SEGMENT_SIZE, journal.getTail(peerDht));
+        assertTrue(journal.read(peerDht, 1, 100).isEmpty());
+        assertEquals(head - NamespaceJournal.SEGMENT_SIZE, journal.read(peerDht, NamespaceJournal.SEGMENT_SIZE, 100).size());
+        assertEquals(head, new NamespaceJournal("journal-truncate").getHead(peerDht));
+    }
+}
@@ -0,0 +1,115 @@
+package test.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.f4fs.fspeer.FSPeer;
+import net.f4fs.persistence.path.ShardedPathOperations;
+import net.tomp2p.dht.PeerDHT;
+import net.tomp2p.peers.Number160;
+import net.tomp2p.storage.Data;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class ShardedPathOperationsTest {
+
+    private static final String[]        PATHS          = { "/dir", "/dir/sub", "/dir/sub/file.txt", "/dir/file.txt", "/file.txt" };
+
+    private static PeerDHT               peerDht        = null;
+    private static ShardedPathOperations pathOperations = null;
+
+    @BeforeClass
+    public static void initTest()
+            throws Exception {
+        pathOperations = new ShardedPathOperations();
+
+        FSPeer fsPeer = new FSPeer();
+
+        fsPeer.startAsBootstrapPeer();
+        peerDht = fsPeer.getPeerDHT();
+    }
+
+    @Before
+    public void putPaths()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        for (String path : PATHS) {
+            pathOperations.putPath(peerDht, Number160.createHash(path), new Data(path));
+        }
+    }
+
+    @Test
+    public void getAllPathsTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        assertEquals(new HashSet<>(Arrays.asList(PATHS)), pathOperations.getAllPaths(peerDht));
+    }
+
+    @Test
+    public void getChildPathsTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        assertEquals(new HashSet<>(Arrays.asList("/dir", "/file.txt")), pathOperations.getChildPaths(peerDht, "/"));
+        assertEquals(new HashSet<>(Arrays.asList("/dir/sub", "/dir/file.txt")), pathOperations.getChildPaths(peerDht, "/dir"));
+        assertEquals(new HashSet<String>(), pathOperations.getChildPaths(peerDht, "/dir/sub/file.txt"));
+    }
+
+    @Test
+    public void getPathTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        assertEquals("/dir/sub/file.txt", pathOperations.getPath(peerDht, Number160.createHash("/dir/sub/file.txt")));
+        assertNull(pathOperations.getPath(peerDht, Number160.createHash("/missing.txt")));
+    }
+
+    @Test
+    public void removePathTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        pathOperations.removePath(peerDht, Number160.createHash("/dir/file.txt"));
+
+        assertEquals(new HashSet<>(Arrays.asList("/dir/sub")), pathOperations.getChildPaths(peerDht, "/dir"));
+        assertNull(pathOperations.getPath(peerDht, Number160.createHash("/dir/file.txt")));
+    }
+
+    @Test
+    public void linkTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Number160 linkKey = Number160.createHash("/link.txt");
+        pathOperations.putLink(peerDht, "/link.txt", new Data("/dir/sub/file.txt"));
+
+        // stored within the shard of the link, but only listed as path of the link
+        assertEquals(new HashSet<>(Arrays.asList("/dir", "/file.txt")), pathOperations.getChildPaths(peerDht, "/"));
+        assertEquals(new HashSet<>(Arrays.asList("/dir/sub/file.txt")), pathOperations.getChildPaths(peerDht, "/dir/sub"));
+        assertEquals("/dir/sub/file.txt", pathOperations.getPath(peerDht, linkKey));
+
+        Set<String> expected = new HashSet<>(Arrays.asList(PATHS));
+        expected.add("/link.txt");
+        assertEquals(expected, pathOperations.getAllPaths(peerDht));
+
+        pathOperations.removePath(peerDht, linkKey);
+
+        assertEquals(new HashSet<>(Arrays.asList(PATHS)), pathOperations.getAllPaths(peerDht));
+        assertNull(pathOperations.getPath(peerDht, linkKey));
+        assertEquals("/dir/sub/file.txt", pathOperations.getPath(peerDht, Number160.createHash("/dir/sub/file.txt")));
+    }
+
+    @Test
+    public void putPathsTest()
+            throws InterruptedException, ClassNotFoundException, IOException {
+        Map<Number160, Data> paths = new HashMap<>();
+        paths.put(Number160.createHash("/dir/sub/a.txt"), new Data("/dir/sub/a.txt"));
+        paths.put(Number160.createHash("/dir/sub/b.txt"), new Data("/dir/sub/b.txt"));
+        paths.put(Number160.createHash("/c.txt"), new Data("/c.txt"));
+        pathOperations.putPaths(peerDht, paths);
+
+        Set<String> expected = new HashSet<>(Arrays.asList("/dir/sub/file.txt", "/dir/sub/a.txt", "/dir/sub/b.txt"));
+        assertEquals(expected, pathOperations.getChildPaths(peerDht, "/dir/sub"));
+        assertEquals("/c.txt", pathOperations.getPath(peerDht, Number160.createHash("/c.txt")));
+    }
+}